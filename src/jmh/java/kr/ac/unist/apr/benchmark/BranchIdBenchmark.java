@@ -0,0 +1,96 @@
+package kr.ac.unist.apr.benchmark;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import kr.ac.unist.apr.BranchSelection;
+import kr.ac.unist.apr.asm.BranchIdAnalyzer;
+
+/**
+ * Time to compute the branch IDs of every method of a synthetic corpus, with {@link BranchIdAnalyzer}.
+ * <p>
+ * Each class is read by a {@link ClassReader} that visits an analyzer for each method, as the instrumenter
+ * analyzes an original class. So the time includes parsing the class file, but not building a tree.
+ * The legacy fingerprint is quadratic in the size of methods, so compare it on {@link SyntheticCorpus.Shape#LARGE_METHODS}.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BranchIdBenchmark {
+    @Param({ "LARGE_METHODS", "MANY_BRANCHES", "DEEP_HIERARCHY" })
+    public SyntheticCorpus.Shape shape;
+
+    @Param({ "16", "128" })
+    public int size;
+
+    @Param({ "false", "true" })
+    public boolean legacyFingerprint;
+
+    private SyntheticCorpus corpus;
+    private final BranchSelection selection = new BranchSelection();
+    private final List<String> classNames = new ArrayList<>();
+    private final List<byte[]> classes = new ArrayList<>();
+
+    @Setup
+    public void setup() throws IOException {
+        corpus = SyntheticCorpus.generate(shape, size);
+        for (Map.Entry<String, byte[]> entry : corpus.getClasses().entrySet()) {
+            classNames.add(entry.getKey());
+            classes.add(entry.getValue());
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        corpus.delete();
+    }
+
+    @Benchmark
+    public void analyzeBranchIds(Blackhole blackhole) {
+        for (int i = 0; i < classes.size(); i++) {
+            String className = classNames.get(i);
+            List<BranchIdAnalyzer> analyzers = new ArrayList<>();
+            new ClassReader(classes.get(i)).accept(new ClassVisitor(Opcodes.ASM9) {
+                private int nextId = 0;
+
+                @Override
+                public MethodVisitor visitMethod(int access, String name, String descriptor, String signature,
+                        String[] exceptions) {
+                    if (!analyzers.isEmpty())
+                        nextId += analyzers.get(analyzers.size() - 1).getJumpCount();
+                    BranchIdAnalyzer analyzer = new BranchIdAnalyzer(Opcodes.ASM9, className, name, descriptor,
+                            nextId, selection, legacyFingerprint, null);
+                    analyzers.add(analyzer);
+                    return analyzer;
+                }
+            }, 0);
+            for (BranchIdAnalyzer analyzer : analyzers)
+                blackhole.consume(analyzer.getIds());
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package kr.ac.unist.apr.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import kr.ac.unist.apr.GlobalStates;
+
+/**
+ * Cost of a single branch counter update, executed by every probe.
+ * <p>
+ * Each benchmark updates the same four branch IDs from every thread, which is the worst case
+ * for hot branches in multi-threaded programs.
+ * Run with <code>-t 1</code> to compare the modes without contention.
+ * <ul>
+ * <li>legacy: counter of {@link kr.ac.unist.apr.asm.ProbeMode#LEGACY} without the method entry check,
+ * staged through GlobalStates.curId. Loses counts under contention.</li>
+ * <li>racy: counter of {@link kr.ac.unist.apr.asm.ProbeMode#BOOTSTRAP}. Loses counts under contention.</li>
+ * <li>concurrent: counter of {@link kr.ac.unist.apr.asm.ProbeMode#CONCURRENT}. Exact.</li>
+ * <li>atomic: shared {@link AtomicIntegerArray}, for reference. Exact.</li>
+ * </ul>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class CounterBenchmark {
+    private final AtomicIntegerArray atomicCounts = new AtomicIntegerArray(GlobalStates.branchCount.length);
+
+    private static void legacyProbe(int branchId) {
+        GlobalStates.curId = branchId;
+        GlobalStates.branchCount[GlobalStates.curId]++;
+    }
+
+    @Benchmark
+    public void legacy() {
+        legacyProbe(10);
+        legacyProbe(11);
+        legacyProbe(12);
+        legacyProbe(13);
+    }
+
+    @Benchmark
+    public void racy() {
+        GlobalStates.branchCount[10]++;
+        GlobalStates.branchCount[11]++;
+        GlobalStates.branchCount[12]++;
+        GlobalStates.branchCount[13]++;
+    }
+
+    @Benchmark
+    public void concurrent() {
+        GlobalStates.countBranch(10);
+        GlobalStates.countBranch(11);
+        GlobalStates.countBranch(12);
+        GlobalStates.countBranch(13);
+    }
+
+    @Benchmark
+    public void atomic() {
+        atomicCounts.incrementAndGet(10);
+        atomicCounts.incrementAndGet(11);
+        atomicCounts.incrementAndGet(12);
+        atomicCounts.incrementAndGet(13);
+    }
+}
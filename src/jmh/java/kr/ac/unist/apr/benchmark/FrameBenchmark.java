@@ -0,0 +1,106 @@
+package kr.ac.unist.apr.benchmark;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import kr.ac.unist.apr.Instrumenter;
+import kr.ac.unist.apr.Main;
+import kr.ac.unist.apr.OriginalProgram;
+import kr.ac.unist.apr.asm.InstrumentClassWriter;
+import kr.ac.unist.apr.asm.ProbeMode;
+import kr.ac.unist.apr.asm.TypeHierarchy;
+
+/**
+ * Time to compute the frames of a single instrumented class of a synthetic corpus.
+ * <p>
+ * Classes are instrumented in the setup. Each call reads the next class without its frames
+ * and writes it with {@link ClassWriter#COMPUTE_FRAMES}, resolving common super classes with:
+ * <ul>
+ * <li>index: {@link InstrumentClassWriter} with a {@link TypeHierarchy} of the corpus, shared by every call
+ * as in an instrumentation.</li>
+ * <li>loader: the default of ASM, which loads the classes with the class loader of the corpus.</li>
+ * </ul>
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameBenchmark {
+    @Param({ "LARGE_METHODS", "MANY_BRANCHES", "DEEP_HIERARCHY" })
+    public SyntheticCorpus.Shape shape;
+
+    @Param({ "16", "128" })
+    public int size;
+
+    @Param({ "index", "loader" })
+    public String resolver;
+
+    private SyntheticCorpus corpus;
+    private TypeHierarchy hierarchy;
+    private ClassLoader loader;
+    private final List<byte[]> classFiles = new ArrayList<>();
+    private int next = 0;
+
+    @Setup
+    public void setup() throws IOException {
+        Main.LOGGER.setLevel(Level.WARNING);
+        corpus = SyntheticCorpus.generate(shape, size);
+        hierarchy = new TypeHierarchy(corpus.getDirectory().getPath());
+        loader = corpus.createClassLoader();
+
+        Instrumenter instrumenter = new Instrumenter(
+                new OriginalProgram(corpus.getDirectory().getPath(), false, false), new ArrayList<>());
+        instrumenter.setProbeMode(ProbeMode.BOOTSTRAP);
+        instrumenter.prepare();
+        for (Map.Entry<String, byte[]> entry : corpus.getClasses().entrySet()) {
+            classFiles.add(instrumenter.instrumentLoadedClass(entry.getKey(), entry.getValue(), loader));
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        corpus.delete();
+    }
+
+    @Benchmark
+    public byte[] computeFrames() {
+        byte[] classFile = classFiles.get(next);
+        next = (next + 1) % classFiles.size();
+
+        ClassWriter writer;
+        if (resolver.equals("index")) {
+            writer = new InstrumentClassWriter(hierarchy, ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS);
+        } else {
+            writer = new ClassWriter(ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS) {
+                @Override
+                protected ClassLoader getClassLoader() {
+                    return loader;
+                }
+            };
+        }
+        new ClassReader(classFile).accept(writer, ClassReader.SKIP_FRAMES);
+        return writer.toByteArray();
+    }
+}
@@ -0,0 +1,87 @@
+package kr.ac.unist.apr.benchmark;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import kr.ac.unist.apr.Instrumenter;
+import kr.ac.unist.apr.Main;
+import kr.ac.unist.apr.OriginalProgram;
+import kr.ac.unist.apr.asm.ProbeMode;
+
+/**
+ * End-to-end time to instrument a single class of a synthetic corpus, from the class files
+ * to the instrumented class file.
+ * <p>
+ * Each call instruments the next class of the corpus with {@link Instrumenter#instrumentLoadedClass}:
+ * branch IDs of the original class, probes, field logs and frames. The patched program is same with the
+ * original, so every branch is instrumented. Classes are not written, and the class loader of the corpus
+ * resolves super classes as in the agent.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InstrumentBenchmark {
+    @Param({ "LARGE_METHODS", "MANY_BRANCHES", "DEEP_HIERARCHY" })
+    public SyntheticCorpus.Shape shape;
+
+    @Param({ "16", "128" })
+    public int size;
+
+    @Param({ "BOOTSTRAP", "LEGACY" })
+    public ProbeMode probeMode;
+
+    private SyntheticCorpus corpus;
+    private Instrumenter instrumenter;
+    private ClassLoader loader;
+    private final List<String> classNames = new ArrayList<>();
+    private final List<byte[]> classFiles = new ArrayList<>();
+    private int next = 0;
+
+    @Setup
+    public void setup() throws IOException {
+        Main.LOGGER.setLevel(Level.WARNING);
+        corpus = SyntheticCorpus.generate(shape, size);
+        instrumenter = new Instrumenter(new OriginalProgram(corpus.getDirectory().getPath(), false, false),
+                new ArrayList<>());
+        instrumenter.setProbeMode(probeMode);
+        instrumenter.prepare();
+        loader = corpus.createClassLoader();
+        for (Map.Entry<String, byte[]> entry : corpus.getClasses().entrySet()) {
+            classNames.add(entry.getKey());
+            classFiles.add(entry.getValue());
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        corpus.delete();
+    }
+
+    @Benchmark
+    public byte[] instrumentClass() throws IOException {
+        int index = next;
+        next = (next + 1) % classNames.size();
+        return instrumenter.instrumentLoadedClass(classNames.get(index), classFiles.get(index), loader);
+    }
+}
@@ -0,0 +1,179 @@
+package kr.ac.unist.apr.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntUnaryOperator;
+import java.util.logging.Level;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import kr.ac.unist.apr.GlobalStates;
+import kr.ac.unist.apr.Instrumenter;
+import kr.ac.unist.apr.Main;
+import kr.ac.unist.apr.asm.ProbeMode;
+
+/**
+ * Time of a workload of the <code>workload</code> package, uninstrumented and instrumented with each probe mode.
+ * <p>
+ * In the setup, the class files of the workloads are copied to a temporary directory and instrumented there
+ * with every branch, as the command line does. Then the workload is loaded from the directory with its own
+ * GlobalStates, so each fork measures the probes, method entry checks and field logs of one mode only.
+ * <code>none</code> loads the copies without instrumenting them.
+ * <p>
+ * Workloads are not in <code>kr.ac.unist.apr</code>, which the instrumenter skips.
+ * <p>
+ * Instrumented workloads need GREYBOX_BRANCH=1, GREYBOX_RESULT and GREYBOX_FIELD_RESULT, as a test run.
+ * Run with <code>./gradlew jmhOverhead</code>, which sets them and reports the slowdown with {@link OverheadReport}.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OverheadBenchmark {
+    /**
+     * Probe mode of the uninstrumented workload.
+     */
+    public static final String NO_PROBE = "none";
+
+    private static final String WORKLOAD_PACKAGE = "workload";
+    // Every class of the workload package, instrumented together
+    private static final String[] WORKLOAD_CLASSES = { "TightLoop", "Recursion", "FieldObjects", "Particle",
+            "MultiThreaded", "Worker" };
+
+    @Param({ "TightLoop", "Recursion", "FieldObjects", "MultiThreaded" })
+    public String workload;
+
+    @Param({ NO_PROBE, "legacy", "bootstrap", "concurrent", "edge", "hit" })
+    public String probe;
+
+    private File directory;
+    private IntUnaryOperator operator;
+    private int seed = 0;
+
+    @Setup
+    public void setup() throws Exception {
+        if (!probe.equals(NO_PROBE) && !"1".equals(System.getenv(GlobalStates.STATE_ENV_RECORD)))
+            throw new IllegalStateException("Instrumented workloads need " + GlobalStates.STATE_ENV_RECORD
+                    + "=1, GREYBOX_RESULT and GREYBOX_FIELD_RESULT. Run ./gradlew jmhOverhead.");
+
+        Main.LOGGER.setLevel(Level.WARNING);
+        directory = Files.createTempDirectory("jpatchinst-overhead-").toFile();
+        File original = new File(directory, "original");
+        File target = new File(directory, "target");
+        for (String name : WORKLOAD_CLASSES) {
+            String path = WORKLOAD_PACKAGE + "/" + name + ".class";
+            byte[] classFile = readResource(OverheadBenchmark.class.getClassLoader(), path);
+            for (File root : new File[] { original, target }) {
+                File file = new File(root, path);
+                Files.createDirectories(file.getParentFile().toPath());
+                Files.write(file.toPath(), classFile);
+            }
+        }
+
+        if (!probe.equals(NO_PROBE)) {
+            Instrumenter instrumenter = new Instrumenter(target.getPath(), original.getPath(), new ArrayList<>());
+            instrumenter.setProbeMode(ProbeMode.fromName(probe));
+            instrumenter.instrument("");
+        }
+        ClassLoader loader = new ProgramClassLoader(target, OverheadBenchmark.class.getClassLoader());
+        operator = (IntUnaryOperator) loader.loadClass(WORKLOAD_PACKAGE + "." + workload).getDeclaredConstructor()
+                .newInstance();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        // Files before their directories
+        try (Stream<Path> paths = Files.walk(directory.toPath()).sorted(Comparator.reverseOrder())) {
+            for (Path path : (Iterable<Path>) paths::iterator)
+                Files.delete(path);
+        }
+    }
+
+    @Benchmark
+    public int run() {
+        return operator.applyAsInt(seed++ & 0xFF);
+    }
+
+    private static byte[] readResource(ClassLoader loader, String path) throws IOException {
+        try (InputStream stream = loader.getResourceAsStream(path)) {
+            if (stream == null)
+                throw new IOException("Class file not found: " + path);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = stream.read(buffer)) != -1)
+                bytes.write(buffer, 0, read);
+            return bytes.toByteArray();
+        }
+    }
+
+    /**
+     * Class loader of an instrumented program, as the class path of a test run.
+     * <p>
+     * Loads the classes in the directory, and GlobalStates from the parent, before asking the parent.
+     * So each program has its own counters and reads the manifest in its directory.
+     * </p>
+     */
+    private static class ProgramClassLoader extends ClassLoader {
+        private final File directory;
+
+        ProgramClassLoader(File directory, ClassLoader parent) {
+            super(parent);
+            this.directory = directory;
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            synchronized (getClassLoadingLock(name)) {
+                Class<?> loaded = findLoadedClass(name);
+                if (loaded == null) {
+                    byte[] classFile;
+                    try {
+                        classFile = readClass(name);
+                    } catch (IOException e) {
+                        throw new ClassNotFoundException(name, e);
+                    }
+                    if (classFile == null)
+                        return super.loadClass(name, resolve);
+                    loaded = defineClass(name, classFile, 0, classFile.length);
+                }
+                if (resolve)
+                    resolveClass(loaded);
+                return loaded;
+            }
+        }
+
+        private byte[] readClass(String name) throws IOException {
+            String path = name.replace('.', '/') + ".class";
+            File file = new File(directory, path);
+            if (file.isFile())
+                return Files.readAllBytes(file.toPath());
+            // GlobalStates and its inner classes
+            if (name.startsWith(GlobalStates.STATE_CLASS_NAME))
+                return readResource(getParent(), path);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package kr.ac.unist.apr.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs {@link OverheadBenchmark} with the GC profiler and reports the runtime overhead of each probe mode.
+ * <p>
+ * For each workload and probe mode, the report has the time per call, the slowdown factor from the
+ * uninstrumented workload, and the allocation per call and per second. It is printed, and saved to
+ * <code>overhead.csv</code> in the output directory with the JMH results in <code>results.json</code>.
+ * <p>
+ * Usage: <code>OverheadReport [output directory]</code>. The environment of the instrumented workloads
+ * (see {@link OverheadBenchmark}) is inherited by the forks. <code>./gradlew jmhOverhead</code> sets it.
+ * </p>
+ */
+public class OverheadReport {
+    private static final String ALLOCATION = "gc.alloc.rate.norm";
+    private static final String ALLOCATION_RATE = "gc.alloc.rate";
+
+    public static void main(String[] args) throws RunnerException, IOException {
+        File outputDirectory = new File(args.length > 0 ? args[0] : "build/results/jmh-overhead");
+        Files.createDirectories(outputDirectory.toPath());
+
+        Options options = new OptionsBuilder()
+                .include(OverheadBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON)
+                .result(new File(outputDirectory, "results.json").getPath())
+                .build();
+        Collection<RunResult> results = new Runner(options).run();
+
+        // Probe modes of each workload, in the order of runs
+        Map<String, Map<String, RunResult>> workloads = new LinkedHashMap<>();
+        for (RunResult result : results) {
+            String workload = result.getParams().getParam("workload");
+            workloads.computeIfAbsent(workload, k -> new LinkedHashMap<>())
+                    .put(result.getParams().getParam("probe"), result);
+        }
+
+        String header = "workload,probe,time (us/op),slowdown,allocation (B/op),allocation rate (MB/sec)";
+        try (PrintWriter csv = new PrintWriter(new File(outputDirectory, "overhead.csv"),
+                StandardCharsets.UTF_8.name())) {
+            csv.println(header);
+            System.out.println();
+            System.out.println(String.format("%-14s %-11s %14s %9s %18s %25s", (Object[]) header.split(",")));
+            for (Map.Entry<String, Map<String, RunResult>> workload : workloads.entrySet()) {
+                RunResult baseline = workload.getValue().get(OverheadBenchmark.NO_PROBE);
+                for (Map.Entry<String, RunResult> probe : workload.getValue().entrySet()) {
+                    double time = probe.getValue().getPrimaryResult().getScore();
+                    double slowdown = baseline == null ? Double.NaN
+                            : time / baseline.getPrimaryResult().getScore();
+                    double allocation = getSecondaryScore(probe.getValue(), ALLOCATION);
+                    double allocationRate = getSecondaryScore(probe.getValue(), ALLOCATION_RATE);
+
+                    csv.println(workload.getKey() + "," + probe.getKey() + "," + time + "," + slowdown + ","
+                            + allocation + "," + allocationRate);
+                    System.out.println(String.format("%-14s %-11s %14.3f %8.2fx %18.1f %25.1f", workload.getKey(),
+                            probe.getKey(), time, slowdown, allocation, allocationRate));
+                }
+            }
+        }
+    }
+
+    private static double getSecondaryScore(RunResult result, String name) {
+        Result<?> secondary = result.getSecondaryResults().get(name);
+        return secondary == null ? Double.NaN : secondary.getScore();
+    }
+}
@@ -0,0 +1,333 @@
+package kr.ac.unist.apr.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import kr.ac.unist.apr.asm.InstrumentClassWriter;
+import kr.ac.unist.apr.asm.TypeHierarchy;
+
+/**
+ * Synthetic class files for benchmarks, written to a temporary directory.
+ * <p>
+ * Classes are generated from a seed computed from the shape and the size, so the same corpus is generated
+ * on every machine. Every statement has its own line number, so every branch gets a probe.
+ * <ul>
+ * <li>{@link Shape#LARGE_METHODS}: <code>size</code> classes with two methods of
+ * {@value #LARGE_METHOD_STATEMENTS} statements, half of them branching.</li>
+ * <li>{@link Shape#MANY_BRANCHES}: <code>size</code> classes with {@value #SMALL_METHODS} small methods,
+ * where every statement is a condition, a loop or a switch.</li>
+ * <li>{@link Shape#DEEP_HIERARCHY}: a chain of <code>size</code> classes with a leaf class at each depth.
+ * Methods merge objects of different depths, so computing frames walks the hierarchy.</li>
+ * </ul>
+ * </p>
+ */
+public class SyntheticCorpus {
+    public enum Shape {
+        LARGE_METHODS, MANY_BRANCHES, DEEP_HIERARCHY
+    }
+
+    private static final int LARGE_METHOD_STATEMENTS = 300;
+    private static final int SMALL_METHODS = 20;
+    private static final int SMALL_METHOD_STATEMENTS = 12;
+    // Local variables of generated work methods
+    private static final int X = 2, Y = 3, I = 4;
+
+    private final File directory;
+    private final Map<String, byte[]> classes = new TreeMap<>();
+    private final TypeHierarchy hierarchy;
+    private final Random random;
+    private int line;
+
+    private SyntheticCorpus(File directory, long seed) {
+        this.directory = directory;
+        this.hierarchy = new TypeHierarchy(directory.getPath());
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Generate a corpus in a new temporary directory.
+     *
+     * @param shape kind of classes
+     * @param size  number of classes, or the depth of the hierarchy
+     * @return generated corpus
+     * @throws IOException if the class files cannot be written
+     */
+    public static SyntheticCorpus generate(Shape shape, int size) throws IOException {
+        File directory = Files.createTempDirectory("jpatchinst-" + shape.name().toLowerCase() + "-").toFile();
+        SyntheticCorpus corpus = new SyntheticCorpus(directory, 31L * shape.ordinal() + size);
+        switch (shape) {
+            case LARGE_METHODS:
+                for (int i = 0; i < size; i++)
+                    corpus.generateWorkClass("synthetic/large/C" + i, 2, LARGE_METHOD_STATEMENTS, 6);
+                break;
+            case MANY_BRANCHES:
+                for (int i = 0; i < size; i++)
+                    corpus.generateWorkClass("synthetic/branches/C" + i, SMALL_METHODS, SMALL_METHOD_STATEMENTS, 3);
+                break;
+            case DEEP_HIERARCHY:
+                corpus.generateHierarchy(size);
+                break;
+        }
+        corpus.write();
+        return corpus;
+    }
+
+    /**
+     * @return class path directory of the corpus
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return class file of each relative path, e.g. synthetic/large/C0.class, in the order of paths
+     */
+    public Map<String, byte[]> getClasses() {
+        return Collections.unmodifiableMap(classes);
+    }
+
+    /**
+     * @return class loader of the corpus only, with the bootstrap class loader as its parent
+     * @throws MalformedURLException never for a local directory
+     */
+    public ClassLoader createClassLoader() throws MalformedURLException {
+        return new URLClassLoader(new URL[] { directory.toURI().toURL() }, null);
+    }
+
+    /**
+     * Delete the directory of the corpus.
+     *
+     * @throws IOException if a file cannot be deleted
+     */
+    public void delete() throws IOException {
+        // Files before their directories
+        try (Stream<Path> paths = Files.walk(directory.toPath()).sorted(Comparator.reverseOrder())) {
+            for (Path path : (Iterable<Path>) paths::iterator)
+                Files.delete(path);
+        }
+    }
+
+    private void write() throws IOException {
+        for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+            File file = new File(directory, entry.getKey());
+            Files.createDirectories(file.getParentFile().toPath());
+            Files.write(file.toPath(), entry.getValue());
+        }
+    }
+
+    private ClassWriter startClass(String name, String superName) {
+        // Register the header first, so frames of the class can refer to itself
+        ClassWriter header = new ClassWriter(0);
+        header.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, name, null, superName, null);
+        header.visitEnd();
+        hierarchy.add(header.toByteArray());
+
+        ClassWriter writer = new InstrumentClassWriter(hierarchy, ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS);
+        writer.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, name, null, superName, null);
+        writer.visitSource(name.substring(name.lastIndexOf('/') + 1) + ".java", null);
+        line = 1;
+
+        MethodVisitor mv = writer.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+        mv.visitCode();
+        visitLine(mv);
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitMethodInsn(Opcodes.INVOKESPECIAL, superName, "<init>", "()V", false);
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        return writer;
+    }
+
+    private void endClass(String name, ClassWriter writer) {
+        writer.visitEnd();
+        byte[] classFile = writer.toByteArray();
+        hierarchy.add(classFile);
+        classes.put(name.replace('/', File.separatorChar) + ".class", classFile);
+    }
+
+    // Class with static int work methods, and a helper method and a field used by them
+    private void generateWorkClass(String name, int methods, int statements, int kinds) {
+        ClassWriter writer = startClass(name, "java/lang/Object");
+        writer.visitField(Opcodes.ACC_STATIC, "total", "I", null, null).visitEnd();
+        generateHelper(writer, name);
+        for (int i = 0; i < methods; i++)
+            generateWorkMethod(writer, name, "work" + i, statements, kinds);
+        endClass(name, writer);
+    }
+
+    private void generateHierarchy(int depth) {
+        String previous = "java/lang/Object";
+        for (int i = 0; i < depth; i++) {
+            String node = "synthetic/deep/Node" + i;
+            if (i > 0) {
+                ClassWriter leaf = startClass("synthetic/deep/Leaf" + i, previous);
+                endClass("synthetic/deep/Leaf" + i, leaf);
+            }
+
+            ClassWriter writer = startClass(node, previous);
+            writer.visitField(Opcodes.ACC_STATIC, "total", "I", null, null).visitEnd();
+            generateHelper(writer, node);
+            generateWorkMethod(writer, node, "work", SMALL_METHOD_STATEMENTS, 6);
+            if (i > 0)
+                generateSelectMethod(writer, node, i);
+            endClass(node, writer);
+            previous = node;
+        }
+    }
+
+    // static Object select(int a): merges this class with leaves of random depths
+    private void generateSelectMethod(ClassWriter writer, String node, int depth) {
+        MethodVisitor mv = writer.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "select",
+                "(I)Ljava/lang/Object;", null, null);
+        mv.visitCode();
+        for (int round = 0; round < 4; round++) {
+            Label otherwise = new Label(), end = new Label();
+            visitLine(mv);
+            mv.visitVarInsn(Opcodes.ILOAD, 0);
+            mv.visitIntInsn(Opcodes.BIPUSH, round);
+            mv.visitJumpInsn(Opcodes.IF_ICMPLE, otherwise);
+            newObject(mv, node);
+            mv.visitJumpInsn(Opcodes.GOTO, end);
+            mv.visitLabel(otherwise);
+            newObject(mv, "synthetic/deep/Leaf" + (1 + random.nextInt(depth)));
+            mv.visitLabel(end);
+        }
+        visitLine(mv);
+        mv.visitVarInsn(Opcodes.ALOAD, 1);
+        mv.visitInsn(Opcodes.ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    private static void newObject(MethodVisitor mv, String type) {
+        mv.visitTypeInsn(Opcodes.NEW, type);
+        mv.visitInsn(Opcodes.DUP);
+        mv.visitMethodInsn(Opcodes.INVOKESPECIAL, type, "<init>", "()V", false);
+        mv.visitVarInsn(Opcodes.ASTORE, 1);
+    }
+
+    // static int mix(int a, int b) { return a ^ b * 31; }
+    private void generateHelper(ClassWriter writer, String owner) {
+        MethodVisitor mv = writer.visitMethod(Opcodes.ACC_STATIC, "mix", "(II)I", null, null);
+        mv.visitCode();
+        visitLine(mv);
+        mv.visitVarInsn(Opcodes.ILOAD, 0);
+        mv.visitVarInsn(Opcodes.ILOAD, 1);
+        mv.visitIntInsn(Opcodes.BIPUSH, 31);
+        mv.visitInsn(Opcodes.IMUL);
+        mv.visitInsn(Opcodes.IXOR);
+        mv.visitInsn(Opcodes.IRETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    /*
+     * static int work(int a, int b) { int x = a, y = b, i; <statements> return x + y; }
+     * Kinds of statements are the first kinds of: if-else, loop, switch, arithmetic, field, call.
+     */
+    private void generateWorkMethod(ClassWriter writer, String owner, String name, int statements, int kinds) {
+        MethodVisitor mv = writer.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, name, "(II)I", null, null);
+        mv.visitCode();
+        visitLine(mv);
+        mv.visitVarInsn(Opcodes.ILOAD, 0);
+        mv.visitVarInsn(Opcodes.ISTORE, X);
+        mv.visitVarInsn(Opcodes.ILOAD, 1);
+        mv.visitVarInsn(Opcodes.ISTORE, Y);
+        for (int i = 0; i < statements; i++) {
+            visitLine(mv);
+            int constant = random.nextInt(100);
+            switch (random.nextInt(kinds)) {
+                case 0: // if (x > c) x -= c; else y += c;
+                    Label otherwise = new Label(), end = new Label();
+                    mv.visitVarInsn(Opcodes.ILOAD, X);
+                    mv.visitIntInsn(Opcodes.BIPUSH, constant);
+                    mv.visitJumpInsn(Opcodes.IF_ICMPLE, otherwise);
+                    mv.visitIincInsn(X, -constant);
+                    mv.visitJumpInsn(Opcodes.GOTO, end);
+                    mv.visitLabel(otherwise);
+                    mv.visitIincInsn(Y, constant);
+                    mv.visitLabel(end);
+                    break;
+                case 1: // for (i = 0; i < c; i++) x += i;
+                    Label body = new Label(), condition = new Label();
+                    mv.visitInsn(Opcodes.ICONST_0);
+                    mv.visitVarInsn(Opcodes.ISTORE, I);
+                    mv.visitJumpInsn(Opcodes.GOTO, condition);
+                    mv.visitLabel(body);
+                    mv.visitVarInsn(Opcodes.ILOAD, X);
+                    mv.visitVarInsn(Opcodes.ILOAD, I);
+                    mv.visitInsn(Opcodes.IADD);
+                    mv.visitVarInsn(Opcodes.ISTORE, X);
+                    mv.visitIincInsn(I, 1);
+                    mv.visitLabel(condition);
+                    mv.visitVarInsn(Opcodes.ILOAD, I);
+                    mv.visitIntInsn(Opcodes.BIPUSH, constant);
+                    mv.visitJumpInsn(Opcodes.IF_ICMPLT, body);
+                    break;
+                case 2: // switch (x & 3) { case k: y += c + k; break; }
+                    Label[] cases = { new Label(), new Label(), new Label(), new Label() };
+                    Label after = new Label();
+                    mv.visitVarInsn(Opcodes.ILOAD, X);
+                    mv.visitInsn(Opcodes.ICONST_3);
+                    mv.visitInsn(Opcodes.IAND);
+                    mv.visitTableSwitchInsn(0, 3, after, cases);
+                    for (int k = 0; k < cases.length; k++) {
+                        mv.visitLabel(cases[k]);
+                        mv.visitIincInsn(Y, constant + k);
+                        mv.visitJumpInsn(Opcodes.GOTO, after);
+                    }
+                    mv.visitLabel(after);
+                    break;
+                case 3: // x = x * c + y;
+                    mv.visitVarInsn(Opcodes.ILOAD, X);
+                    mv.visitIntInsn(Opcodes.BIPUSH, constant);
+                    mv.visitInsn(Opcodes.IMUL);
+                    mv.visitVarInsn(Opcodes.ILOAD, Y);
+                    mv.visitInsn(Opcodes.IADD);
+                    mv.visitVarInsn(Opcodes.ISTORE, X);
+                    break;
+                case 4: // total += x;
+                    mv.visitFieldInsn(Opcodes.GETSTATIC, owner, "total", "I");
+                    mv.visitVarInsn(Opcodes.ILOAD, X);
+                    mv.visitInsn(Opcodes.IADD);
+                    mv.visitFieldInsn(Opcodes.PUTSTATIC, owner, "total", "I");
+                    break;
+                default: // y = mix(x, y);
+                    mv.visitVarInsn(Opcodes.ILOAD, X);
+                    mv.visitVarInsn(Opcodes.ILOAD, Y);
+                    mv.visitMethodInsn(Opcodes.INVOKESTATIC, owner, "mix", "(II)I", false);
+                    mv.visitVarInsn(Opcodes.ISTORE, Y);
+                    break;
+            }
+        }
+        visitLine(mv);
+        mv.visitVarInsn(Opcodes.ILOAD, X);
+        mv.visitVarInsn(Opcodes.ILOAD, Y);
+        mv.visitInsn(Opcodes.IADD);
+        mv.visitInsn(Opcodes.IRETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    private void visitLine(MethodVisitor mv) {
+        Label label = new Label();
+        mv.visitLabel(label);
+        mv.visitLineNumber(line++, label);
+    }
+}
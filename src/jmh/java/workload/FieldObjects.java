@@ -0,0 +1,28 @@
+package workload;
+
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Simulation of objects with many fields, so most of the time is spent in short methods that update fields.
+ */
+public class FieldObjects implements IntUnaryOperator {
+    private static final int PARTICLES = 64;
+    private static final int STEPS = 200;
+    private static final double SIZE = 100;
+
+    @Override
+    public int applyAsInt(int seed) {
+        Particle[] particles = new Particle[PARTICLES];
+        for (int i = 0; i < PARTICLES; i++)
+            particles[i] = new Particle(seed + i);
+        for (int step = 0; step < STEPS; step++) {
+            for (Particle particle : particles)
+                particle.step(SIZE);
+        }
+
+        int bounces = 0;
+        for (Particle particle : particles)
+            bounces += particle.getBounces();
+        return bounces;
+    }
+}
@@ -0,0 +1,34 @@
+package workload;
+
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Same branches executed by several threads at once, so probes of different threads update the same counters.
+ */
+public class MultiThreaded implements IntUnaryOperator {
+    private static final int THREADS = 4;
+    private static final int RANGE = 50000;
+
+    @Override
+    public int applyAsInt(int seed) {
+        Worker[] workers = new Worker[THREADS];
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            workers[i] = new Worker(seed + i * RANGE, seed + (i + 1) * RANGE);
+            threads[i] = new Thread(workers[i]);
+            threads[i].start();
+        }
+
+        int count = 0;
+        for (int i = 0; i < THREADS; i++) {
+            try {
+                threads[i].join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return count;
+            }
+            count += workers[i].getCount();
+        }
+        return count;
+    }
+}
@@ -0,0 +1,47 @@
+package workload;
+
+/**
+ * Object with many primitive fields, updated by small methods. Every method exit logs the fields.
+ */
+public class Particle {
+    private double x;
+    private double y;
+    private double velocityX;
+    private double velocityY;
+    private int bounces;
+    private boolean moving = true;
+
+    public Particle(int seed) {
+        x = seed % 97;
+        y = seed % 89;
+        velocityX = (seed % 7) - 3.5;
+        velocityY = (seed % 5) - 2.5;
+    }
+
+    public void step(double size) {
+        if (!moving)
+            return;
+        x += velocityX;
+        y += velocityY;
+        if (x < 0 || x > size)
+            bounceX();
+        if (y < 0 || y > size)
+            bounceY();
+        if (bounces > 1000)
+            moving = false;
+    }
+
+    private void bounceX() {
+        velocityX = -velocityX;
+        bounces++;
+    }
+
+    private void bounceY() {
+        velocityY = -velocityY;
+        bounces++;
+    }
+
+    public int getBounces() {
+        return bounces;
+    }
+}
@@ -0,0 +1,33 @@
+package workload;
+
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Deep and wide recursion: every call is a method entry and a return, with a branch.
+ */
+public class Recursion implements IntUnaryOperator {
+    @Override
+    public int applyAsInt(int seed) {
+        return fibonacci(22 + (seed & 1)) + hanoi(14, 0, 1, 2) + ackermann(2, 200 + (seed & 7));
+    }
+
+    private static int fibonacci(int n) {
+        if (n < 2)
+            return n;
+        return fibonacci(n - 1) + fibonacci(n - 2);
+    }
+
+    private static int hanoi(int disks, int from, int to, int via) {
+        if (disks == 0)
+            return 0;
+        return hanoi(disks - 1, from, via, to) + 1 + hanoi(disks - 1, via, to, from);
+    }
+
+    private static int ackermann(int m, int n) {
+        if (m == 0)
+            return n + 1;
+        if (n == 0)
+            return ackermann(m - 1, 1);
+        return ackermann(m - 1, ackermann(m, n - 1));
+    }
+}
@@ -0,0 +1,47 @@
+package workload;
+
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Tight loops with a branch in every iteration: primes by trial division and Collatz sequences.
+ */
+public class TightLoop implements IntUnaryOperator {
+    private static final int PRIME_LIMIT = 20000;
+    private static final int COLLATZ_LIMIT = 3000;
+
+    @Override
+    public int applyAsInt(int seed) {
+        return countPrimes(PRIME_LIMIT + (seed & 7)) + collatzSteps(COLLATZ_LIMIT + (seed & 7));
+    }
+
+    private static int countPrimes(int limit) {
+        int count = 0;
+        for (int n = 2; n < limit; n++) {
+            boolean prime = true;
+            for (int d = 2; d * d <= n; d++) {
+                if (n % d == 0) {
+                    prime = false;
+                    break;
+                }
+            }
+            if (prime)
+                count++;
+        }
+        return count;
+    }
+
+    private static int collatzSteps(int limit) {
+        int steps = 0;
+        for (int start = 1; start < limit; start++) {
+            long n = start;
+            while (n != 1) {
+                if ((n & 1) == 0)
+                    n >>= 1;
+                else
+                    n = 3 * n + 1;
+                steps++;
+            }
+        }
+        return steps;
+    }
+}
@@ -0,0 +1,36 @@
+package workload;
+
+/**
+ * Part of {@link MultiThreaded}: counts the numbers in a range whose digit sum is even.
+ */
+public class Worker implements Runnable {
+    private final int from;
+    private final int to;
+    private int count;
+
+    public Worker(int from, int to) {
+        this.from = from;
+        this.to = to;
+    }
+
+    @Override
+    public void run() {
+        for (int n = from; n < to; n++) {
+            if (digitSum(n) % 2 == 0)
+                count++;
+        }
+    }
+
+    private static int digitSum(int n) {
+        int sum = 0;
+        while (n > 0) {
+            sum += n % 10;
+            n /= 10;
+        }
+        return sum;
+    }
+
+    public int getCount() {
+        return count;
+    }
+}
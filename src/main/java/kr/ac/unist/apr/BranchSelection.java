@@ -0,0 +1,331 @@
+package kr.ac.unist.apr;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Branches to instrument, selected by branch IDs and by class and method patterns.
+ * <p>
+ * Branch IDs are kept in a bit set, so checking an ID or a range of IDs does not depend on the number of
+ * selected IDs. IDs are given as single IDs and ranges separated by comma(,), e.g. <code>3,10-20</code>,
+ * and <code>@file</code> reads more IDs from a file, separated by comma or white spaces.
+ * Lines of the file starting with # are ignored.
+ * <p>
+ * Class patterns are matched with class names, e.g. <code>com.example.Foo</code>. <code>*</code> matches
+ * any characters in a package, and <code>**</code> matches any characters including packages.
+ * A pattern of a class also matches its inner classes.
+ * Method patterns are matched with the method name, or with the name and descriptor if the pattern has
+ * a descriptor, e.g. <code>get*</code> or <code>foo(I)V</code>. <code>*</code> matches any characters.
+ * A class or method is selected if any include pattern matches it, or there is no include pattern,
+ * and no exclude pattern matches it.
+ * <p>
+ * Selecting branches does not change branch IDs. Every class of the original program still reserves
+ * IDs for all of its jumps.
+ * </p>
+ */
+public class BranchSelection {
+    // Null for every branch ID
+    private BitSet ids = null;
+    private final List<String> includedClasses = new ArrayList<>();
+    private final List<String> excludedClasses = new ArrayList<>();
+    private final List<String> includedMethods = new ArrayList<>();
+    private final List<String> excludedMethods = new ArrayList<>();
+    private final List<Pattern> includedClassPatterns = new ArrayList<>();
+    private final List<Pattern> excludedClassPatterns = new ArrayList<>();
+    private final List<Pattern> includedMethodPatterns = new ArrayList<>();
+    private final List<Pattern> excludedMethodPatterns = new ArrayList<>();
+
+    /**
+     * Create a selection of every branch.
+     */
+    public BranchSelection() {
+    }
+
+    /**
+     * @param branchIds branch IDs to instrument, empty for all branches
+     * @return selection of the branch IDs
+     */
+    public static BranchSelection ofIds(Collection<Integer> branchIds) {
+        BranchSelection selection = new BranchSelection();
+        for (int branchId : branchIds)
+            selection.addId(branchId);
+        return selection;
+    }
+
+    /**
+     * Select a branch ID.
+     *
+     * @param branchId branch ID
+     * @return this
+     */
+    public BranchSelection addId(int branchId) {
+        return addRange(branchId, branchId);
+    }
+
+    /**
+     * Select branch IDs from <code>first</code> to <code>last</code>, inclusive.
+     *
+     * @param first first branch ID
+     * @param last  last branch ID
+     * @return this
+     * @throws IllegalArgumentException if the range is negative or empty
+     */
+    public BranchSelection addRange(int first, int last) {
+        if (first < 0 || last < first || last == Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Invalid branch ID range: " + first + "-" + last);
+        if (ids == null)
+            ids = new BitSet();
+        ids.set(first, last + 1);
+        return this;
+    }
+
+    /**
+     * Select branch IDs given as single IDs, ranges and files of IDs, separated by comma(,).
+     *
+     * @param spec branch IDs, e.g. <code>3,10-20,@ids.txt</code>
+     * @return this
+     * @throws IOException              if a file of IDs cannot be read
+     * @throws IllegalArgumentException if an ID or a range is invalid
+     */
+    public BranchSelection addIds(String spec) throws IOException {
+        for (String token : spec.split(",")) {
+            token = token.trim();
+            if (token.isEmpty())
+                continue;
+            if (token.startsWith("@"))
+                addIdFile(new File(token.substring(1)));
+            else
+                addIdToken(token);
+        }
+        return this;
+    }
+
+    private void addIdFile(File file) throws IOException {
+        // A file without IDs selects no branch
+        if (ids == null)
+            ids = new BitSet();
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (line.startsWith("#"))
+                continue;
+            for (String token : line.split("[\\s,]+")) {
+                if (!token.isEmpty())
+                    addIdToken(token);
+            }
+        }
+    }
+
+    private void addIdToken(String token) {
+        int separator = token.indexOf('-', 1);
+        try {
+            if (separator < 0)
+                addId(Integer.parseInt(token));
+            else
+                addRange(Integer.parseInt(token.substring(0, separator).trim()),
+                        Integer.parseInt(token.substring(separator + 1).trim()));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid branch ID: " + token, e);
+        }
+    }
+
+    /**
+     * Select only the classes matching the pattern, and the other include patterns.
+     *
+     * @param pattern class pattern, e.g. <code>com.example.**</code>
+     * @return this
+     */
+    public BranchSelection includeClass(String pattern) {
+        includedClasses.add(pattern);
+        includedClassPatterns.add(compileClassPattern(pattern));
+        return this;
+    }
+
+    /**
+     * Do not select the classes matching the pattern.
+     *
+     * @param pattern class pattern, e.g. <code>com.example.*Test</code>
+     * @return this
+     */
+    public BranchSelection excludeClass(String pattern) {
+        excludedClasses.add(pattern);
+        excludedClassPatterns.add(compileClassPattern(pattern));
+        return this;
+    }
+
+    /**
+     * Select only the methods matching the pattern, and the other include patterns.
+     *
+     * @param pattern method pattern, e.g. <code>compute*</code>
+     * @return this
+     */
+    public BranchSelection includeMethod(String pattern) {
+        includedMethods.add(pattern);
+        includedMethodPatterns.add(compileMethodPattern(pattern));
+        return this;
+    }
+
+    /**
+     * Do not select the methods matching the pattern.
+     *
+     * @param pattern method pattern, e.g. <code>toString()Ljava/lang/String;</code>
+     * @return this
+     */
+    public BranchSelection excludeMethod(String pattern) {
+        excludedMethods.add(pattern);
+        excludedMethodPatterns.add(compileMethodPattern(pattern));
+        return this;
+    }
+
+    /**
+     * @return true if every branch is selected
+     */
+    public boolean isAll() {
+        return ids == null && includedClasses.isEmpty() && excludedClasses.isEmpty() && includedMethods.isEmpty()
+                && excludedMethods.isEmpty();
+    }
+
+    /**
+     * @return true if branch IDs are selected, false if every ID is selected
+     */
+    public boolean hasIds() {
+        return ids != null;
+    }
+
+    /**
+     * @param branchId branch ID
+     * @return true if the ID is selected
+     */
+    public boolean isIdSelected(int branchId) {
+        return ids == null || ids.get(branchId);
+    }
+
+    /**
+     * @param first first branch ID
+     * @param end   branch ID after the last one
+     * @return true if any ID in the range is selected, or every ID is selected
+     */
+    public boolean hasSelectedId(int first, int end) {
+        if (ids == null)
+            return true;
+        if (first >= end)
+            return false;
+        int next = ids.nextSetBit(first);
+        return next >= 0 && next < end;
+    }
+
+    /**
+     * @param className relative path of the class file, e.g. pkg/Foo.class
+     * @return true if the class is selected by the class patterns
+     */
+    public boolean isClassSelected(String className) {
+        if (includedClassPatterns.isEmpty() && excludedClassPatterns.isEmpty())
+            return true;
+        String name = className.replace(File.separatorChar, '.');
+        if (name.endsWith(".class"))
+            name = name.substring(0, name.length() - ".class".length());
+        int inner = name.indexOf('$');
+        String outerName = inner < 0 ? null : name.substring(0, inner);
+        return isSelected(name, outerName, includedClassPatterns, excludedClassPatterns);
+    }
+
+    /**
+     * @param nameAndDescriptor name and descriptor of the method, e.g. foo(I)V
+     * @return true if the method is selected by the method patterns
+     */
+    public boolean isMethodSelected(String nameAndDescriptor) {
+        if (includedMethodPatterns.isEmpty() && excludedMethodPatterns.isEmpty())
+            return true;
+        int descriptor = nameAndDescriptor.indexOf('(');
+        String name = descriptor < 0 ? nameAndDescriptor : nameAndDescriptor.substring(0, descriptor);
+        return isSelected(nameAndDescriptor, name, includedMethodPatterns, excludedMethodPatterns);
+    }
+
+    // Selected if the name or the alternative name matches any include pattern, and none matches an exclude pattern
+    private static boolean isSelected(String name, String alternative, List<Pattern> includes,
+            List<Pattern> excludes) {
+        boolean included = includes.isEmpty();
+        for (Pattern pattern : includes) {
+            if (matches(pattern, name, alternative)) {
+                included = true;
+                break;
+            }
+        }
+        if (!included)
+            return false;
+        for (Pattern pattern : excludes) {
+            if (matches(pattern, name, alternative))
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean matches(Pattern pattern, String name, String alternative) {
+        return pattern.matcher(name).matches() || (alternative != null && pattern.matcher(alternative).matches());
+    }
+
+    private static Pattern compileClassPattern(String pattern) {
+        String glob = pattern.trim().replace('/', '.');
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*' && i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                regex.append(".*");
+                i++;
+            } else if (c == '*') {
+                regex.append("[^.]*");
+            } else if (c == '?') {
+                regex.append("[^.]");
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    private static Pattern compileMethodPattern(String pattern) {
+        String glob = pattern.trim();
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*')
+                regex.append(".*");
+            else if (c == '?')
+                regex.append('.');
+            else
+                regex.append(Pattern.quote(String.valueOf(c)));
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    /**
+     * @return selected branch IDs as ranges, e.g. <code>3,10-20</code>, or <code>all</code>
+     */
+    public String getIdString() {
+        if (ids == null)
+            return "all";
+        StringBuilder builder = new StringBuilder();
+        for (int first = ids.nextSetBit(0); first >= 0; first = ids.nextSetBit(first)) {
+            int end = ids.nextClearBit(first);
+            if (builder.length() > 0)
+                builder.append(',');
+            builder.append(first);
+            if (end - 1 > first)
+                builder.append('-').append(end - 1);
+            first = end;
+        }
+        return builder.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "ids=" + getIdString() + ";classes=+" + includedClasses + "-" + excludedClasses + ";methods=+"
+                + includedMethods + "-" + excludedMethods;
+    }
+}
@@ -1,8 +1,21 @@
 package kr.ac.unist.apr;
 
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.lang.Character;
 import java.lang.Boolean;
 
@@ -15,6 +28,8 @@ import java.lang.Boolean;
  * copy this file to source directory of the target project.
  * <p>
  * This class counts the executed number of each branch and saves to file.
+ * One counter is allocated for each branch ID, as many as recorded in the manifest class
+ * generated by the instrumenter. Set GREYBOX_BRANCH_COUNT to override it.
  * <p>
  * To use this class, you have to set the following environment variables:
  * <ul>
@@ -28,8 +43,41 @@ import java.lang.Boolean;
  * First column is the branch ID and second column is the number of execution of
  * each branch.
  * <p>
+ * If GREYBOX_RESULT_FORMAT is binary, the result file is written in the binary format instead:
+ * <ul>
+ * <li>header: magic "GBXC", format version, number of branch IDs and number of entries, each as 4-byte big-endian int</li>
+ * <li>entries of the executed branches in ascending order of ID: the difference from the previous ID
+ * (the first ID + 1 for the first entry) and the number of execution, each as unsigned LEB128 varint</li>
+ * </ul>
+ * Use kr.ac.unist.apr.result.CoverageResult to read both formats.
+ * <p>
+ * Classes instrumented in hit probe mode only set a flag of each executed branch, and their branches are
+ * saved with the number of execution 1.
+ * <p>
+ * Classes instrumented in edge probe mode count edges between consecutive branches instead, as AFL does.
+ * Each probe increases a bucket of a fixed 64K byte map, indexed by the location of the branch XOR
+ * the location of the previous branch shifted right by one, so A to B and B to A are different edges.
+ * If any edge is hit, the result has the hit map instead of branch counters: the text format starts with a
+ * <code># edges 65536</code> line followed by <code>index:hits</code> lines, and the binary format has the
+ * magic "GBXE" with the map size as the number of branch IDs. Buckets count up to 255 and then wrap to 1.
+ * The previous location is shared by every thread.
+ * <p>
  * This class use Shutdown Hook to save the result, to reduce the overhead.
  * It the program is terminated by external signal, the result may not be saved.
+ * <p>
+ * Values of primitive fields are logged on each method exit, to GREYBOX_FIELD_RESULT.
+ * Set GREYBOX_FIELD_MODE to choose how the values are kept:
+ * <ul>
+ * <li>all (default): every logged value in order. Values are kept in a fixed size buffer
+ * (GREYBOX_FIELD_BUFFER entries) and spilled to a memory-mapped file when it is full.
+ * The file is GREYBOX_FIELD_SPILL, or a temporary file, and removed at shutdown.</li>
+ * <li>last: last value of each field.</li>
+ * <li>distinct: distinct values of each field, up to GREYBOX_FIELD_DISTINCT_LIMIT values per field.</li>
+ * <li>changes: number of times each field has a different value from its previous log.</li>
+ * </ul>
+ * <p>
+ * GREYBOX_BRANCH is also read once when this class is loaded, and the class initializes itself
+ * if it is 1. So probes that do not check the variable (e.g. bootstrap mode) still save the result.
  * </p>
  *
  * @author Youngjae Kim
@@ -61,28 +109,132 @@ public class GlobalStates {
      * Name of variable of map
      */
     public static final String STATE_BRANCH_COUNT = "branchCount";
+    /**
+     * Name of the flags of executed branches
+     */
+    public static final String STATE_BRANCH_HITS = "branchHits";
 
     /**
      * Name of environment variable to record covered branch or not
      */
     public static final String STATE_ENV_RECORD = "GREYBOX_BRANCH";
 
+    /**
+     * True if GREYBOX_BRANCH is 1. Resolved once when this class is loaded.
+     */
+    public static final boolean ENABLED = "1".equals(System.getenv(STATE_ENV_RECORD));
+    /**
+     * Name of variable of {@link #ENABLED}
+     */
+    public static final String STATE_ENABLED = "ENABLED";
+
     /**
      * Name of method that logs field changes
      */
     public static final String STATE_FIELD_LOG_METHOD_NAME = "logFieldChanges";
+    /**
+     * Name of method that logs the value of a field, called by the generated snapshot methods
+     */
+    public static final String STATE_FIELD_VALUE_METHOD_NAME = "logField";
+    /**
+     * Name of method that assigns IDs to the fields of a class, called by the generated snapshot methods
+     */
+    public static final String STATE_FIELD_REGISTER_METHOD_NAME = "registerFields";
+
+    /**
+     * Name of environment variable to choose how field values are kept: all, last, distinct or changes
+     */
+    public static final String STATE_ENV_FIELD_MODE = "GREYBOX_FIELD_MODE";
+    /**
+     * Name of environment variable of the number of field values kept in memory before spilled, in all mode
+     */
+    public static final String STATE_ENV_FIELD_BUFFER = "GREYBOX_FIELD_BUFFER";
+    /**
+     * Name of environment variable of the file to spill field values, in all mode
+     */
+    public static final String STATE_ENV_FIELD_SPILL = "GREYBOX_FIELD_SPILL";
+    /**
+     * Name of environment variable of the maximum number of distinct values kept for each field, in distinct mode
+     */
+    public static final String STATE_ENV_FIELD_DISTINCT_LIMIT = "GREYBOX_FIELD_DISTINCT_LIMIT";
 
     /**
-     * The executed branch ID in previous. Used for calculate current ID.
+     * Name of method that counts a branch in the counters of the current thread
+     */
+    public static final String STATE_COUNT_METHOD_NAME = "countBranch";
+
+    /**
+     * Full name of the manifest class generated by the instrumenter
+     */
+    public static final String STATE_MANIFEST_CLASS_NAME = "kr.ac.unist.apr.GreyboxManifest";
+    /**
+     * Name of the constant in the manifest class that holds the number of branch IDs
+     */
+    public static final String STATE_MANIFEST_BRANCH_COUNT = "BRANCH_COUNT";
+    /**
+     * Name of environment variable to override the number of branch IDs
+     */
+    public static final String STATE_ENV_BRANCH_COUNT = "GREYBOX_BRANCH_COUNT";
+    /**
+     * Name of system property of the number of branch IDs, set by the instrumentation agent
+     */
+    public static final String STATE_PROPERTY_BRANCH_COUNT = "greybox.branchCount";
+    /**
+     * Name of environment variable of the result format: text (default) or binary
+     */
+    public static final String STATE_ENV_RESULT_FORMAT = "GREYBOX_RESULT_FORMAT";
+    /**
+     * Magic number of the binary result, "GBXC"
+     */
+    public static final int RESULT_MAGIC = 0x47425843;
+    /**
+     * Version of the binary result format
+     */
+    public static final int RESULT_VERSION = 1;
+    /**
+     * Number of branch IDs if the manifest class is not found
+     */
+    public static final int DEFAULT_BRANCH_COUNT = 200000;
+    /**
+     * Number of bits of an edge location
+     */
+    public static final int EDGE_MAP_BITS = 16;
+    /**
+     * Number of buckets of the edge hit map
+     */
+    public static final int EDGE_MAP_SIZE = 1 << EDGE_MAP_BITS;
+    /**
+     * Name of the edge hit map
+     */
+    public static final String STATE_EDGE_HITS = "edgeHits";
+    /**
+     * Magic number of the binary edge result, "GBXE"
+     */
+    public static final int EDGE_RESULT_MAGIC = 0x47425845;
+    /**
+     * Suffix of the edge result file, appended to GREYBOX_RESULT if both branches and edges are counted
+     */
+    public static final String EDGE_RESULT_SUFFIX = ".edges";
+
+    /**
+     * Location of the previous branch shifted right by one, in edge probe mode.
      */
     public static int previousId = 0;
+    /**
+     * Hits of each edge in edge probe mode. Small enough to stay in the cache.
+     */
+    public static byte[] edgeHits = new byte[EDGE_MAP_SIZE];
     /**
      * The number of execution of each branch.
      * <p>
-     * Maximum number of branch is 200000.
+     * Size of this array is the number of branch IDs, from {@link #getBranchCountSize()}.
      * </p>
      */
-    public static int[] branchCount = new int[200000]; // Make enough size of array to reduce the overhead.
+    public static int[] branchCount = new int[getBranchCountSize()];
+    /**
+     * Whether each branch is executed, in hit probe mode. Same size with {@link #branchCount}.
+     */
+    public static boolean[] branchHits = new boolean[branchCount.length];
 
     /**
      * Flag to check this class is initialized or not.
@@ -101,10 +253,185 @@ public class GlobalStates {
 
     public static int curId = 0;
 
-    private static String[] fieldNames = new String[200000];
-    private static Object[] fieldValues = new Object[200000];
-    private static int fieldIndex = 0;
+    /**
+     * Counters of the current thread, used by {@link #countBranch(int)}.
+     */
+    private static final ThreadLocal threadCounts = new ThreadLocal();
+    /**
+     * Counters of every thread, merged to branchCount at shutdown.
+     */
+    private static final List allThreadCounts = new ArrayList();
+
+    private static final int FIELD_MODE_ALL = 0;
+    private static final int FIELD_MODE_LAST = 1;
+    private static final int FIELD_MODE_DISTINCT = 2;
+    private static final int FIELD_MODE_CHANGES = 3;
+    private static final int FIELD_RECORD_BYTES = 12; // int ID + long value
+    private static final long FIELD_SPILL_READ_BYTES = FIELD_RECORD_BYTES * (1L << 20);
+
+    private static final int fieldMode = getFieldMode();
+    private static final int fieldDistinctLimit = getEnvInt(STATE_ENV_FIELD_DISTINCT_LIMIT, 64);
+
+    /**
+     * Key (owner#field) and type descriptor of each field, indexed by field ID. IDs start from 1.
+     */
+    private static String[] fieldKeys = new String[1024];
+    private static char[] fieldTypes = new char[1024];
+    private static int nextFieldId = 1;
+    /**
+     * First field ID of each class registered by {@link #registerFields(String, String, String)}.
+     */
+    private static final Map fieldBases = new HashMap();
+    /**
+     * Field ID of each key.
+     */
+    private static final Map fieldIds = new HashMap();
+
+    // Per field state of last, distinct and changes mode. Values are raw bits of the primitive value.
+    private static long[] lastValues = new long[1024];
+    private static boolean[] fieldLogged = new boolean[1024];
+    private static int[] changeCounts = new int[1024];
+    private static long[][] distinctValues = new long[1024][];
+    private static int[] distinctCounts = new int[1024];
+
+    // Field log of all mode. Spilled to the file when full.
+    private static final int[] logIds = new int[fieldMode == FIELD_MODE_ALL
+            ? getEnvInt(STATE_ENV_FIELD_BUFFER, 1 << 16) : 0];
+    private static final long[] logValues = new long[logIds.length];
+    private static int logSize = 0;
+    private static File spillFile = null;
+    private static FileChannel spillChannel = null;
+    private static long spillBytes = 0;
+
+    static {
+        // Should be after other static fields, not to be overwritten by their initializers.
+        if (ENABLED)
+            initialize();
+    }
+
+    /**
+     * Get the number of branch IDs of the instrumented program.
+     * <p>
+     * Resolved in the following order:
+     * <ol>
+     * <li>environment variable GREYBOX_BRANCH_COUNT</li>
+     * <li>system property greybox.branchCount</li>
+     * <li>BRANCH_COUNT of the manifest class kr.ac.unist.apr.GreyboxManifest, generated by the instrumenter</li>
+     * <li>200000</li>
+     * </ol>
+     * </p>
+     *
+     * @return number of counters to allocate
+     */
+    private static int getBranchCountSize() {
+        String size = System.getenv(STATE_ENV_BRANCH_COUNT);
+        if (size == null)
+            size = System.getProperty(STATE_PROPERTY_BRANCH_COUNT);
+        if (size != null) {
+            try {
+                return Integer.parseInt(size.trim());
+            } catch (NumberFormatException e) {
+                System.err.println("Invalid number of branch IDs: " + size);
+            }
+        }
+        try {
+            Class manifest = Class.forName(STATE_MANIFEST_CLASS_NAME);
+            return manifest.getField(STATE_MANIFEST_BRANCH_COUNT).getInt(null);
+        } catch (Exception e) {
+            // Not instrumented by this version, or GlobalStates is used alone
+            return DEFAULT_BRANCH_COUNT;
+        }
+    }
+
+    private static int getFieldMode() {
+        String mode = System.getenv(STATE_ENV_FIELD_MODE);
+        if (mode == null || mode.equals("all"))
+            return FIELD_MODE_ALL;
+        if (mode.equals("last"))
+            return FIELD_MODE_LAST;
+        if (mode.equals("distinct"))
+            return FIELD_MODE_DISTINCT;
+        if (mode.equals("changes"))
+            return FIELD_MODE_CHANGES;
+        System.err.println("Invalid " + STATE_ENV_FIELD_MODE + ": " + mode + ", use all");
+        return FIELD_MODE_ALL;
+    }
+
+    private static int getEnvInt(String name, int defaultValue) {
+        String value = System.getenv(name);
+        if (value == null)
+            return defaultValue;
+        try {
+            int result = Integer.parseInt(value.trim());
+            if (result > 0)
+                return result;
+        } catch (NumberFormatException e) {
+            // Fall through
+        }
+        System.err.println("Invalid " + name + ": " + value);
+        return defaultValue;
+    }
+
+    /**
+     * Count the execution of a branch without races between threads.
+     * <p>
+     * Each thread increases its own counters, so no lock is taken after the first call of the thread.
+     * The counters are added to branchCount when the result is saved.
+     * </p>
+     *
+     * @param branchId branch ID
+     */
+    public static void countBranch(int branchId) {
+        int[] counts = (int[]) threadCounts.get();
+        if (counts == null)
+            counts = registerThreadCounts();
+        counts[branchId]++;
+    }
+
+    private static int[] registerThreadCounts() {
+        int[] counts = new int[branchCount.length];
+        synchronized (allThreadCounts) {
+            allThreadCounts.add(counts);
+        }
+        threadCounts.set(counts);
+        return counts;
+    }
+
+    /**
+     * Add the counters of every thread to branchCount.
+     */
+    private static void mergeThreadCounts() {
+        synchronized (allThreadCounts) {
+            for (int i = 0; i < allThreadCounts.size(); i++) {
+                int[] counts = (int[]) allThreadCounts.get(i);
+                for (int j = 0; j < counts.length; j++) {
+                    branchCount[j] += counts[j];
+                    counts[j] = 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Count the branches executed in hit probe mode once, if they are not counted by other probes.
+     */
+    private static void mergeBranchHits() {
+        for (int i = 0; i < branchHits.length; i++) {
+            if (branchHits[i] && branchCount[i] == 0)
+                branchCount[i] = 1;
+        }
+    }
 
+    /**
+     * Log the primitive fields of the class with reflection.
+     * <p>
+     * Used by classes instrumented by old versions. New classes call their generated snapshot method,
+     * which calls {@link #logField(int, long)} for each field.
+     * </p>
+     *
+     * @param instance instance of the class, or null to log only static fields
+     * @param owner    class file name, e.g. pkg.Foo.class
+     */
     public static void logFieldChanges(Object instance, String owner) {
         try {
             // Generic type not supported under 1.5
@@ -122,15 +449,365 @@ public class GlobalStates {
                 final String fieldName = owner + "#" + field.getName();
                 final Object value = field.get(instance);
 
-                fieldNames[fieldIndex] = fieldName;
-                fieldValues[fieldIndex] = value;
-                fieldIndex++;
+                logFieldValue(fieldName, value);
             }
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Assign IDs to the fields of a class.
+     * <p>
+     * Fields get consecutive IDs in the given order. The IDs are assigned once for each class,
+     * and following calls return the same first ID.
+     * </p>
+     *
+     * @param owner class file name, e.g. pkg.Foo.class
+     * @param names field names separated by ';', which cannot be a part of a field name
+     * @param types type descriptor of each field, e.g. "IZ"
+     * @return ID of the first field, always larger than 0
+     */
+    public static synchronized int registerFields(String owner, String names, String types) {
+        Integer base = (Integer) fieldBases.get(owner);
+        if (base != null)
+            return base.intValue();
+
+        int first = nextFieldId;
+        int start = 0;
+        for (int i = 0; i < types.length(); i++) {
+            int end = names.indexOf(';', start);
+            if (end < 0)
+                end = names.length();
+            addField(owner + "#" + names.substring(start, end), types.charAt(i));
+            start = end + 1;
+        }
+        fieldBases.put(owner, Integer.valueOf(first));
+        return first;
+    }
+
+    private static int addField(String key, char type) {
+        int id = nextFieldId++;
+        if (id == fieldKeys.length) {
+            int size = fieldKeys.length * 2;
+            String[] newKeys = new String[size];
+            char[] newTypes = new char[size];
+            long[] newLastValues = new long[size];
+            boolean[] newLogged = new boolean[size];
+            int[] newChangeCounts = new int[size];
+            long[][] newDistinctValues = new long[size][];
+            int[] newDistinctCounts = new int[size];
+            System.arraycopy(fieldKeys, 0, newKeys, 0, id);
+            System.arraycopy(fieldTypes, 0, newTypes, 0, id);
+            System.arraycopy(lastValues, 0, newLastValues, 0, id);
+            System.arraycopy(fieldLogged, 0, newLogged, 0, id);
+            System.arraycopy(changeCounts, 0, newChangeCounts, 0, id);
+            System.arraycopy(distinctValues, 0, newDistinctValues, 0, id);
+            System.arraycopy(distinctCounts, 0, newDistinctCounts, 0, id);
+            fieldKeys = newKeys;
+            fieldTypes = newTypes;
+            lastValues = newLastValues;
+            fieldLogged = newLogged;
+            changeCounts = newChangeCounts;
+            distinctValues = newDistinctValues;
+            distinctCounts = newDistinctCounts;
+        }
+        fieldKeys[id] = key;
+        fieldTypes[id] = type;
+        fieldIds.put(key, Integer.valueOf(id));
+        return id;
+    }
+
+    /**
+     * Log the value of a field.
+     *
+     * @param fieldId ID from {@link #registerFields(String, String, String)}
+     * @param value   raw bits of the value: floatToRawIntBits for float, doubleToRawLongBits for double,
+     *                and the value itself for the other types
+     */
+    public static void logField(int fieldId, long value) {
+        if (!ENABLED)
+            return; // Never saved, checked before taking the lock
+        logFieldLocked(fieldId, value);
+    }
+
+    private static synchronized void logFieldLocked(int fieldId, long value) {
+        switch (fieldMode) {
+        case FIELD_MODE_LAST:
+            lastValues[fieldId] = value;
+            fieldLogged[fieldId] = true;
+            break;
+        case FIELD_MODE_CHANGES:
+            if (fieldLogged[fieldId] && lastValues[fieldId] != value)
+                changeCounts[fieldId]++;
+            lastValues[fieldId] = value;
+            fieldLogged[fieldId] = true;
+            break;
+        case FIELD_MODE_DISTINCT:
+            addDistinctValue(fieldId, value);
+            break;
+        default:
+            if (logSize == logIds.length)
+                spillFieldLog();
+            logIds[logSize] = fieldId;
+            logValues[logSize] = value;
+            logSize++;
+        }
+    }
+
+    private static void addDistinctValue(int fieldId, long value) {
+        long[] values = distinctValues[fieldId];
+        int count = distinctCounts[fieldId];
+        for (int i = 0; i < count; i++) {
+            if (values[i] == value)
+                return;
+        }
+        if (count == fieldDistinctLimit)
+            return;
+        if (values == null || count == values.length) {
+            long[] newValues = new long[Math.min(Math.max(4, count * 2), fieldDistinctLimit)];
+            if (values != null)
+                System.arraycopy(values, 0, newValues, 0, count);
+            values = newValues;
+            distinctValues[fieldId] = values;
+        }
+        values[count] = value;
+        distinctCounts[fieldId] = count + 1;
+    }
+
+    /**
+     * Append the field log in memory to the spill file, and clear it.
+     * The log is dropped if the file cannot be written.
+     */
+    private static void spillFieldLog() {
+        try {
+            if (spillChannel == null) {
+                String path = System.getenv(STATE_ENV_FIELD_SPILL);
+                spillFile = path != null ? new File(path) : File.createTempFile("greybox-field", ".spill");
+                spillChannel = new RandomAccessFile(spillFile, "rw").getChannel();
+                spillChannel.truncate(0);
+            }
+            long size = (long) logSize * FIELD_RECORD_BYTES;
+            MappedByteBuffer buffer = spillChannel.map(FileChannel.MapMode.READ_WRITE, spillBytes, size);
+            for (int i = 0; i < logSize; i++) {
+                buffer.putInt(logIds[i]);
+                buffer.putLong(logValues[i]);
+            }
+            spillBytes += size;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        logSize = 0;
+    }
+
+    private static synchronized void logFieldValue(String name, Object value) {
+        long bits;
+        char type;
+        if (value instanceof Boolean) {
+            bits = (Boolean) value ? 1 : 0;
+            type = 'Z';
+        } else if (value instanceof Character) {
+            bits = (Character) value;
+            type = 'C';
+        } else if (value instanceof Float) {
+            bits = Float.floatToRawIntBits((Float) value);
+            type = 'F';
+        } else if (value instanceof Double) {
+            bits = Double.doubleToRawLongBits((Double) value);
+            type = 'D';
+        } else {
+            bits = ((Number) value).longValue();
+            type = 'J';
+        }
+        Integer id = (Integer) fieldIds.get(name);
+        logField(id != null ? id.intValue() : addField(name, type), bits);
+    }
+
+    /**
+     * Write the field log to the file, in the format of the field mode.
+     * Each line is owner#field:value, or owner#field:count in changes mode.
+     */
+    private static synchronized void writeFieldLog(Writer writer) throws IOException {
+        switch (fieldMode) {
+        case FIELD_MODE_LAST:
+            for (int id = 1; id < nextFieldId; id++) {
+                if (fieldLogged[id])
+                    writeFieldValue(writer, id, lastValues[id]);
+            }
+            break;
+        case FIELD_MODE_CHANGES:
+            for (int id = 1; id < nextFieldId; id++) {
+                if (fieldLogged[id])
+                    writer.write(fieldKeys[id] + ':' + changeCounts[id] + '\n');
+            }
+            break;
+        case FIELD_MODE_DISTINCT:
+            for (int id = 1; id < nextFieldId; id++) {
+                for (int i = 0; i < distinctCounts[id]; i++)
+                    writeFieldValue(writer, id, distinctValues[id][i]);
+            }
+            break;
+        default:
+            if (spillChannel != null) {
+                for (long position = 0; position < spillBytes; position += FIELD_SPILL_READ_BYTES) {
+                    MappedByteBuffer buffer = spillChannel.map(FileChannel.MapMode.READ_ONLY, position,
+                            Math.min(FIELD_SPILL_READ_BYTES, spillBytes - position));
+                    while (buffer.hasRemaining()) {
+                        int id = buffer.getInt();
+                        writeFieldValue(writer, id, buffer.getLong());
+                    }
+                }
+            }
+            for (int i = 0; i < logSize; i++)
+                writeFieldValue(writer, logIds[i], logValues[i]);
+        }
+    }
+
+    /**
+     * Close and delete the spill file of all mode, if created.
+     */
+    private static synchronized void deleteSpillFile() {
+        if (spillChannel == null)
+            return;
+        try {
+            spillChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        spillFile.delete();
+        spillChannel = null;
+    }
+
+    private static void writeFieldValue(Writer writer, int fieldId, long value) throws IOException {
+        writer.write(fieldKeys[fieldId] + ':' + fieldValueToString(value, fieldTypes[fieldId]) + '\n');
+    }
+
+    /**
+     * Convert a logged value to the string saved in the result.
+     * Boolean is saved as 1 or 0, and char is saved as its numeric value.
+     */
+    private static String fieldValueToString(long value, char type) {
+        switch (type) {
+        case 'Z':
+            return value != 0 ? "1" : "0";
+        case 'C':
+            return Integer.toString(Character.getNumericValue((char) value));
+        case 'F':
+            return Float.toString(Float.intBitsToFloat((int) value));
+        case 'D':
+            return Double.toString(Double.longBitsToDouble(value));
+        default:
+            return Long.toString(value);
+        }
+    }
+
+    /**
+     * Get the location of a branch in the edge hit map.
+     * <p>
+     * Branch IDs are scattered over the map by Fibonacci hashing, so the edges of nearby branches do not collide.
+     * </p>
+     *
+     * @param branchId branch ID
+     * @return location, from 0 to EDGE_MAP_SIZE - 1
+     */
+    public static int getEdgeLocation(int branchId) {
+        return (branchId * 0x9E3779B1) >>> (32 - EDGE_MAP_BITS);
+    }
+
+    /**
+     * @return hits of each edge as unsigned values, or null if no edge is hit
+     */
+    private static int[] getEdgeCounts() {
+        int[] counts = null;
+        for (int i = 0; i < edgeHits.length; i++) {
+            if (edgeHits[i] != 0) {
+                if (counts == null)
+                    counts = new int[edgeHits.length];
+                counts[i] = edgeHits[i] & 0xFF;
+            }
+        }
+        return counts;
+    }
+
+    private static boolean hasCount(int[] counts) {
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Write the executed branches or edges, in the format of GREYBOX_RESULT_FORMAT.
+     *
+     * @param path   result file
+     * @param isEdge true for the hit map of edges, false for branch counts
+     * @param counts number of execution of each branch or edge
+     */
+    private static void writeResult(String path, boolean isEdge, int[] counts) throws IOException {
+        if ("binary".equals(System.getenv(STATE_ENV_RESULT_FORMAT))) {
+            writeBinaryResult(path, isEdge ? EDGE_RESULT_MAGIC : RESULT_MAGIC, counts);
+            return;
+        }
+        resultFile = new FileWriter(path);
+        Writer writer = new BufferedWriter(resultFile);
+        if (isEdge)
+            writer.write("# edges " + EDGE_MAP_SIZE + "\n");
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0) {
+                writer.write(i + ":" + counts[i] + "\n");
+            }
+        }
+        writer.close();
+    }
+
+    /**
+     * Write the executed branches or edges in the binary format.
+     *
+     * @param path   result file
+     * @param magic  magic number of branches or edges
+     * @param counts number of execution of each branch or edge
+     */
+    static void writeBinaryResult(String path, int magic, int[] counts) throws IOException {
+        int entries = 0;
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0)
+                entries++;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(16 + entries * 10); // 5 bytes for each varint at most
+        buffer.putInt(magic);
+        buffer.putInt(RESULT_VERSION);
+        buffer.putInt(counts.length);
+        buffer.putInt(entries);
+        int previous = -1;
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0) {
+                putVarint(buffer, i - previous);
+                putVarint(buffer, counts[i]);
+                previous = i;
+            }
+        }
+        buffer.flip();
+
+        FileOutputStream out = new FileOutputStream(path);
+        try {
+            FileChannel channel = out.getChannel();
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void putVarint(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
     /**
      * Initialize this class.
      * <p>
@@ -154,30 +831,26 @@ public class GlobalStates {
             Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
                 public void run() {
                     try {
-                        resultFile = new FileWriter(System.getenv("GREYBOX_RESULT"));
-                        for (int i = 0; i < branchCount.length; i++) {
-                            if (branchCount[i] > 0) {
-                                resultFile.write(i + ":" + branchCount[i] + "\n");
-                            }
+                        mergeThreadCounts();
+                        mergeBranchHits();
+                        int[] edgeCounts = getEdgeCounts();
+                        String resultPath = System.getenv("GREYBOX_RESULT");
+                        if (edgeCounts == null) {
+                            writeResult(resultPath, false, branchCount);
+                        } else if (!hasCount(branchCount)) {
+                            writeResult(resultPath, true, edgeCounts);
+                        } else {
+                            // Classes of the edge mode ran with classes of another mode, e.g. loaded by the agent
+                            System.err.println("Both branches and edges are counted. Edges are saved to "
+                                    + resultPath + EDGE_RESULT_SUFFIX);
+                            writeResult(resultPath, false, branchCount);
+                            writeResult(resultPath + EDGE_RESULT_SUFFIX, true, edgeCounts);
                         }
-                        resultFile.close();
 
                         fieldResultFile = new FileWriter(System.getenv("GREYBOX_FIELD_RESULT"));
-                        for (int i=0;i<fieldIndex;i++) {
-                            final String fieldKey = fieldNames[i];
-                            Object value = fieldValues[i];
-                            
-                            String result;
-                            if (value instanceof Boolean) {
-                                result = ((Boolean)value ? "1" : "0");
-                            } else if (value instanceof Character) {
-                                result = Integer.toString(Character.getNumericValue((Character)value));
-                            } else {
-                                result = value.toString();
-                            }
-                            fieldResultFile.write(fieldKey + ':' + result + '\n');
-                        }
-                        fieldResultFile.close();
+                        Writer fieldWriter = new BufferedWriter(fieldResultFile);
+                        writeFieldLog(fieldWriter);
+                        fieldWriter.close();
                     } catch (Exception e) {
                         FileWriter fw;
                         try {
@@ -188,6 +861,9 @@ public class GlobalStates {
                             System.err.println("Cannot open error file: /tmp/greybox.err");
                             e1.printStackTrace();
                         }
+                    } finally {
+                        // Even if the field log is not written, e.g. GREYBOX_FIELD_RESULT is not set
+                        deleteSpillFile();
                     }
                 }
             }));
@@ -1,41 +1,61 @@
 package kr.ac.unist.apr;
 
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.util.ArrayDeque;
-import java.util.Deque;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.HashMap;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.ArrayList;
-import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 import java.util.logging.Level;
 
-import kr.ac.unist.apr.asm.Instruction;
+import kr.ac.unist.apr.cache.InstrumentationCache;
+import kr.ac.unist.apr.metrics.ClassMetrics;
+import kr.ac.unist.apr.metrics.MetricsReport;
+import kr.ac.unist.apr.result.ProbeEquations;
 import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
-import org.objectweb.asm.tree.AbstractInsnNode;
 import org.objectweb.asm.tree.ClassNode;
-import org.objectweb.asm.tree.FieldNode;
-import org.objectweb.asm.tree.InsnList;
-import org.objectweb.asm.tree.InsnNode;
-import org.objectweb.asm.tree.JumpInsnNode;
-import org.objectweb.asm.tree.LabelNode;
-import org.objectweb.asm.tree.LdcInsnNode;
-import org.objectweb.asm.tree.MethodInsnNode;
 import org.objectweb.asm.tree.MethodNode;
-import org.objectweb.asm.tree.VarInsnNode;
 
+import kr.ac.unist.apr.utils.ArchiveWriter;
+import kr.ac.unist.apr.utils.ClassArchive;
+import kr.ac.unist.apr.utils.ClassScanner;
 import kr.ac.unist.apr.utils.InsnNodeUtils;
 import kr.ac.unist.apr.utils.Path;
+import kr.ac.unist.apr.asm.BranchFingerprint;
+import kr.ac.unist.apr.asm.BranchIdAnalyzer;
+import kr.ac.unist.apr.asm.ClassInstrumenter;
+import kr.ac.unist.apr.asm.CallGraph;
 import kr.ac.unist.apr.asm.InstrumentClassWriter;
-import kr.ac.unist.apr.asm.MethodInstrumenter;
+import kr.ac.unist.apr.asm.ManifestGenerator;
+import kr.ac.unist.apr.asm.ProbeMode;
+import kr.ac.unist.apr.asm.TypeHierarchy;
 
 /**
  * Main class of instrumentation.
@@ -45,6 +65,10 @@ import kr.ac.unist.apr.asm.MethodInstrumenter;
  * It is guaranteed that the branch IDs are always same.
  * <p>
  * This instrumenter ignores patched bytecodes.
+ * <p>
+ * The target program is a class path directory, a class file, or a jar or zip file.
+ * Instrumented classes of an archive are kept until every class is instrumented, then the archive is written
+ * again with them, copying the other entries as they are.
  * </p>
  *
  * @author Youngjae Kim
@@ -52,23 +76,47 @@ import kr.ac.unist.apr.asm.MethodInstrumenter;
 public class Instrumenter {
     private String targetPath;
 
-    private Map<String, ClassReader> targetNodes = new HashMap<>();
-    private Map<String, ClassReader> originalNodes = new HashMap<>();
-    public static Map<Integer, String> hashStrings = new HashMap<>();
+    private Map<String, String> targetFiles = new HashMap<>();
+    private final OriginalProgram original;
+    // Target classes read by the worker threads, kept if not streaming
+    private Map<String, byte[]> targetNodes = new ConcurrentHashMap<>();
+    // Target archive, or null if the target is a directory or a class file
+    private ClassArchive targetArchive = null;
+    // Instrumented classes and the manifest of the target archive, keyed by entry names
+    private final Map<String, ArchiveWriter.CompressedEntry> archiveEntries = new ConcurrentHashMap<>();
+    private boolean streaming;
+    private InstrumentationCache cache = null;
+    private TypeHierarchy typeHierarchy = null;
+    private String reportFile = null;
+    private long scanNanos = 0;
+    // Index of each class loader for load-time instrumentation
+    private final Map<ClassLoader, TypeHierarchy> loaderHierarchies = new ConcurrentHashMap<>();
 
-    public static final int MAX_PREV_INSNS = 10;
-    private static int prevId = 0;
-    private List<Integer> branchIds;
+    /**
+     * Hash source strings of the branch IDs.
+     * <p>
+     * Filled only if {@link #setRetainHashStrings(boolean)} is enabled.
+     * </p>
+     */
+    public static Map<Long, String> hashStrings = new ConcurrentHashMap<>();
+    private boolean retainHashStrings = false;
+    private Writer hashStringWriter = null;
 
-    private InsnList getFieldChangeInstructions(String className, boolean isStatic) {
-        InsnList instructions = new InsnList();
-        instructions.add(isStatic ? new InsnNode(Opcodes.ACONST_NULL) : new VarInsnNode(Opcodes.ALOAD, 0));
-        instructions.add(new LdcInsnNode(className.replace(File.separatorChar, '.')));
-        instructions.add(new MethodInsnNode(Opcodes.INVOKESTATIC, GlobalStates.STATE_CLASS_NAME.replace('.', '/'),
-                GlobalStates.STATE_FIELD_LOG_METHOD_NAME, "(Ljava/lang/Object;Ljava/lang/String;)V", false));
+    /**
+     * Version of the instrumentation result. Change this if the instrumented bytecode changes,
+     * to invalidate {@link InstrumentationCache} entries.
+     */
+    public static final String TOOL_VERSION = "7";
 
-        return instructions;
-    }
+    public static final int MAX_PREV_INSNS = 10;
+    private int prevId = 0;
+    private BranchSelection selection;
+    private int threads = 1;
+    private int changedMethodDistance = -1;
+    private ProbeMode probeMode = ProbeMode.LEGACY;
+    private boolean legacyFingerprint = false;
+    private String probeEquationFile = null;
+    private final ProbeEquations probeEquations = new ProbeEquations();
 
     /**
      * Default constructor.
@@ -78,40 +126,251 @@ public class Instrumenter {
      *
      * @param targetSourcePath   class path of target program
      * @param originalSourcePath class path of original source
+     * @param branchIds          branch IDs to instrument, empty for all branches
+     * @param streaming          if true, class files are dropped after each class is instrumented,
+     *                           instead of keeping every class in memory
      * @throws IOException if file not found or I/O errors
      */
     public Instrumenter(String targetSourcePath,
-            String originalSourcePath, List<Integer> branchIds) throws IOException {
-        this.targetPath = targetSourcePath;
-        this.branchIds = branchIds;
-
-        // generate ClassReader for original source
-        Main.LOGGER.log(Level.INFO, "Parse Instructions for original source...");
-        List<String> allOriginalSources = Path.getAllSources(new File(originalSourcePath));
-        for (String source : allOriginalSources) {
-            if (source.contains("kr/ac/unist/apr"))
-                continue;
+            String originalSourcePath, List<Integer> branchIds, boolean streaming) throws IOException {
+        this(targetSourcePath, new OriginalProgram(originalSourcePath, streaming, false), branchIds, streaming);
+    }
 
-            ClassReader reader = new ClassReader(new FileInputStream(source));
-            originalNodes.put(Path.removeSrcPath(source, originalSourcePath), reader);
-        }
+    /**
+     * Constructor with the original program shared by other instrumenters.
+     *
+     * @param targetSourcePath class path of target program, or its jar or zip file
+     * @param original         original program
+     * @param branchIds        branch IDs to instrument, empty for all branches
+     * @param streaming        if true, target class files are read again when each class is instrumented
+     * @throws IOException if file not found or I/O errors
+     */
+    public Instrumenter(String targetSourcePath,
+            OriginalProgram original, List<Integer> branchIds, boolean streaming) throws IOException {
+        this.targetPath = targetSourcePath;
+        this.original = original;
+        this.selection = BranchSelection.ofIds(branchIds);
+        this.streaming = streaming;
+        this.typeHierarchy = new TypeHierarchy(targetSourcePath);
 
+        long start = System.nanoTime();
         Main.LOGGER.log(Level.INFO, "Parse Instructions for target source...");
         // generate ClassWriter for patched source
-        List<String> allSources = Path.getAllSources(new File(targetSourcePath));
-        for (String source : allSources) {
-            if (source.contains("kr/ac/unist/apr"))
-                continue;
-
-            ClassReader reader = new ClassReader(new FileInputStream(source));
-            targetNodes.put(Path.removeSrcPath(source, targetSourcePath), reader);
+        if (Path.isArchive(new File(targetSourcePath))) {
+            targetArchive = new ClassArchive(new File(targetSourcePath));
+            for (String className : targetArchive.getClassNames())
+                targetFiles.put(className, className);
+        } else {
+            // Class files are read by the worker threads of the first phase that needs them
+            targetFiles.putAll(ClassScanner.scan(new File(targetSourcePath)));
         }
+        scanNanos = System.nanoTime() - start;
+    }
+
+    public Instrumenter(String targetSourcePath,
+            String originalSourcePath, List<Integer> branchIds) throws IOException {
+        this(targetSourcePath, originalSourcePath, branchIds, false);
     }
 
     public Instrumenter(String targetSourcePath, String originalSourcePath) throws IOException {
         this(targetSourcePath, originalSourcePath, new ArrayList<>());
     }
 
+    /**
+     * Constructor without target path, for load-time instrumentation with {@link #instrumentLoadedClass}.
+     * <p>
+     * Call {@link #prepare()} before instrumenting classes.
+     * </p>
+     *
+     * @param original  original program
+     * @param branchIds branch IDs to instrument, empty for all branches
+     */
+    public Instrumenter(OriginalProgram original, List<Integer> branchIds) {
+        this.original = original;
+        this.selection = BranchSelection.ofIds(branchIds);
+    }
+
+    /**
+     * Compute the first branch ID of each original class, if not computed yet.
+     *
+     * @throws IOException if a class file cannot be read
+     */
+    public void prepare() throws IOException {
+        computeBaseIds();
+        prevId = original.getBranchCount();
+    }
+
+    /**
+     * Analyze every class of a resident original program ahead of instrumenting its patches.
+     * <p>
+     * Every branch ID is kept, so following instrumentations with any selection reuse the analysis.
+     * </p>
+     *
+     * @param original resident original program
+     * @param threads  number of worker threads
+     * @throws IOException if a class file cannot be read
+     */
+    public static void prepare(OriginalProgram original, int threads) throws IOException {
+        Instrumenter instrumenter = new Instrumenter(original, new ArrayList<>());
+        instrumenter.setThreads(threads);
+        int[] baseIds = instrumenter.computeBaseIds();
+        List<String> classNames = original.getClassNames();
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int i = 0; i < classNames.size(); i++) {
+            final String className = classNames.get(i);
+            final int baseId = baseIds[i];
+            tasks.add(() -> {
+                instrumenter.analyzeOriginalClass(className, original.getBytes(className), baseId);
+                return null;
+            });
+        }
+        instrumenter.runTasks(tasks);
+    }
+
+    /**
+     * Keep hash source strings of every branch in {@link #hashStrings}.
+     * <p>
+     * Disabled in default, because the strings are kept until the end of the process.
+     * </p>
+     *
+     * @param retainHashStrings true to fill {@link #hashStrings}
+     */
+    public void setRetainHashStrings(boolean retainHashStrings) {
+        this.retainHashStrings = retainHashStrings;
+    }
+
+    /**
+     * Write hash source strings of every branch to the given file while instrumenting.
+     * <p>
+     * Each line has the hash and its source string, seperated by comma(,).
+     * The file is closed at the end of {@link #instrument(String)}.
+     * </p>
+     *
+     * @param hashStringFile output file path
+     * @throws IOException if the file cannot be opened
+     */
+    public void setHashStringFile(String hashStringFile) throws IOException {
+        this.hashStringWriter = new BufferedWriter(new FileWriter(hashStringFile));
+    }
+
+    /**
+     * Save the metrics of {@link #instrument(String)} to the given file as JSON.
+     *
+     * @param reportFile output file path, or null to disable the report
+     * @see MetricsReport
+     */
+    public void setReportFile(String reportFile) {
+        this.reportFile = reportFile;
+    }
+
+    /**
+     * Reuse instrumented classes from the given cache and store newly instrumented classes to it.
+     *
+     * @param cache cache to use, or null to disable caching
+     */
+    public void setCache(InstrumentationCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Select the branches to instrument, instead of the branch IDs given to the constructor.
+     * <p>
+     * Classes and methods without any selected branch are not rewritten, and a class outside of the selected
+     * ID range is skipped before it is parsed. If only class and method patterns are given, every method
+     * they select is instrumented, as without a selection.
+     * Branch IDs are same with instrumenting every branch.
+     * </p>
+     *
+     * @param selection branches to instrument
+     */
+    public void setSelection(BranchSelection selection) {
+        this.selection = selection;
+    }
+
+    /**
+     * Instrument only the methods changed by the patch and their neighbours in the call graph.
+     * <p>
+     * A method is changed if its instructions or try-catch blocks differ from the original method,
+     * ignoring line numbers. Classes without any selected method are not rewritten.
+     * Branch IDs are same with instrumenting every method.
+     * </p>
+     *
+     * @param distance maximum number of calls from a changed method, 0 for changed methods only,
+     *                 or negative to instrument every method (default)
+     */
+    public void setChangedMethodDistance(int distance) {
+        this.changedMethodDistance = distance;
+    }
+
+    /**
+     * Set the kind of probes inserted at branches and method entries.
+     *
+     * @param probeMode probe mode, {@link ProbeMode#LEGACY} in default
+     */
+    public void setProbeMode(ProbeMode probeMode) {
+        this.probeMode = probeMode;
+    }
+
+    /**
+     * Find branches with the fingerprint of the previous versions, for comparing with their results.
+     * <p>
+     * The legacy fingerprint is the 32-bit string hash of every instruction before the branch,
+     * except the first {@link #MAX_PREV_INSNS} instructions of the method.
+     * It takes quadratic time for large methods, and any change before a branch changes its fingerprint.
+     * Branch IDs are same with the default fingerprint, but the branches found in the patched program may differ.
+     * </p>
+     *
+     * @param legacyFingerprint true to use the legacy fingerprint
+     * @see BranchFingerprint
+     */
+    public void setLegacyFingerprint(boolean legacyFingerprint) {
+        this.legacyFingerprint = legacyFingerprint;
+    }
+
+    /**
+     * Place probes only on the edges of each method's control-flow graph needed to derive every branch count,
+     * and save the equations to derive them.
+     * <p>
+     * Counters of the branch IDs count the edges instead of the branches, so a result of the instrumented program
+     * is converted with the equations, by {@link ProbeEquations}. Methods that do not get fewer probes keep a probe
+     * at every branch, and their IDs do not have equations. Only for counting probe modes, i.e. legacy, bootstrap and
+     * concurrent. Branch IDs are same with placing probes at every branch.
+     * Classes instrumented by {@link #instrumentLoadedClass} always have a probe at every branch.
+     * </p>
+     *
+     * @param probeEquationFile output file of the equations, or null to place probes at every branch (default)
+     * @see kr.ac.unist.apr.asm.ProbePlanner
+     */
+    public void setProbeEquationFile(String probeEquationFile) {
+        this.probeEquationFile = probeEquationFile;
+    }
+
+    private boolean isOptimizedProbes() {
+        return probeEquationFile != null && probeMode.isCounting();
+    }
+
+    /**
+     * @return number of branch IDs of the program, valid after {@link #instrument(String)}
+     */
+    public int getBranchCount() {
+        return prevId;
+    }
+
+    /**
+     * Set the number of worker threads used by {@link #instrument(String)}.
+     * <p>
+     * 1 (default) instruments every class in the calling thread.
+     * Branch IDs do not depend on this value.
+     * </p>
+     *
+     * @param threads number of worker threads, at least 1
+     */
+    public void setThreads(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("Number of threads should be positive: " + threads);
+        this.threads = threads;
+    }
+
     /**
      * Instrument target program with handling patch.
      * <p>
@@ -120,199 +379,665 @@ public class Instrumenter {
      * Backup the original target sources before using this method.
      * <p>
      * This method guarantees that the branch IDs are always same.
+     * Classes are ordered by their relative path and each class reserves one ID per jump
+     * instruction of the original class, so the first ID of every class is known before
+     * any class is instrumented. This makes the IDs independent of the number of threads.
      * </p>
      *
      * @throws FileNotFoundException
      */
     public void instrument(String timeFileOutput) throws IOException {
+        MetricsReport report = new MetricsReport(TOOL_VERSION, probeMode.name(), threads);
+        if (probeEquationFile != null && !probeMode.isCounting())
+            Main.LOGGER.warning("Probe mode " + probeMode
+                    + " does not count branches. Probes are placed at every branch.");
+        report.addPhase("scan", scanNanos);
+        long start = System.nanoTime();
+
         // Visit original source visitor and get IDs
+        final List<String> classNames = original.getClassNames();
+        final int[] baseIds = computeBaseIds();
+        prevId = original.getBranchCount();
+        long phaseStart = System.nanoTime();
+        report.addPhase("branchIds", phaseStart - start);
+
+        final Map<String, Set<String>> selectedMethods = changedMethodDistance < 0 ? null
+                : computeChangedMethods(classNames);
+        if (selectedMethods != null) {
+            report.addPhase("changedMethods", System.nanoTime() - phaseStart);
+            phaseStart = System.nanoTime();
+        }
+        buildTypeHierarchy();
+        report.addPhase("typeHierarchy", System.nanoTime() - phaseStart);
+
         Main.LOGGER.log(Level.INFO, "Instrument class file...");
-        Map<String, Double> timeMap = new HashMap<>();
-        for (Map.Entry<String, ClassReader> originalCtxt : originalNodes.entrySet()) {
-            // Target class file
-            ClassReader targetReader = targetNodes.get(originalCtxt.getKey());
-            ClassNode node = new ClassNode();
-            if (targetReader == null) {
-                // Target class file not exist if patch removes whole 'public class'
-                Main.LOGGER.info("Class file " + originalCtxt.getKey() + " not found in target. Skip it.");
+        phaseStart = System.nanoTime();
+        List<Callable<ClassMetrics>> instrumentTasks = new ArrayList<>();
+        for (int i = 0; i < classNames.size(); i++) {
+            final String className = classNames.get(i);
+            final int baseId = baseIds[i];
+            final int endId = i + 1 < baseIds.length ? baseIds[i + 1] : prevId;
+            final Set<String> methods = selectedMethods == null ? null
+                    : selectedMethods.getOrDefault(className, Collections.emptySet());
+            instrumentTasks.add(() -> instrumentClass(className, baseId, endId, methods));
+        }
+        List<ClassMetrics> results;
+        try {
+            results = runTasks(instrumentTasks);
+        } finally {
+            if (hashStringWriter != null) {
+                hashStringWriter.close();
+                hashStringWriter = null;
+            }
+        }
+        report.addPhase("instrument", System.nanoTime() - phaseStart);
+
+        Map<String, Double> timeMap = new LinkedHashMap<>();
+        for (ClassMetrics result : results) {
+            if (result.status.equals(ClassMetrics.STATUS_SKIPPED))
                 continue;
+            double time = result.totalNanos / 1000000000.0; // Seconds
+            if (timeMap.containsKey(result.sourceFile)) {
+                timeMap.put(result.sourceFile, timeMap.get(result.sourceFile) + time);
+            } else {
+                timeMap.put(result.sourceFile, time);
             }
-            targetReader.accept(node, 0);
-
-            // Skip if already instrumented
-            boolean skip = false;
-            for (FieldNode field : node.fields) {
-                if (field.name.equals("greyboxInstrumented")) {
-                    Main.LOGGER.log(Level.FINE, "Skip instrumenting " + originalCtxt.getKey());
-                    skip = true;
-                    break;
+        }
+        Main.LOGGER.log(Level.INFO, "Total instrumented: " + totalInstrumented);
+        Main.LOGGER.log(Level.INFO, "Final prev id: " + prevId);
+        phaseStart = System.nanoTime();
+        writeManifest();
+        if (isOptimizedProbes()) {
+            probeEquations.write(Paths.get(probeEquationFile));
+            Main.LOGGER.log(Level.INFO, "Probe equations: " + probeEquations.size());
+        }
+        report.addPhase("manifest", System.nanoTime() - phaseStart);
+        if (targetArchive != null) {
+            phaseStart = System.nanoTime();
+            writeArchive();
+            report.addPhase("archive", System.nanoTime() - phaseStart);
+        }
+        if (cache != null)
+            Main.LOGGER.log(Level.INFO, "Cache " + cache.getStatistics());
+
+        if (reportFile != null) {
+            report.setClasses(results, prevId, scanNanos + System.nanoTime() - start);
+            report.write(new File(reportFile));
+        }
+
+        if (!timeFileOutput.equals("")) {
+            try (FileWriter writer = new FileWriter(timeFileOutput)) {
+                for (Map.Entry<String, Double> entry : timeMap.entrySet()) {
+                    writer.write(entry.getKey() + "," + entry.getValue() + "\n");
                 }
             }
-            if (skip)
-                continue;
+        }
+    }
 
-            long start = Calendar.getInstance().getTimeInMillis();
-            // Source class file
-            ClassNode classNode = new ClassNode();
-            originalCtxt.getValue().accept(classNode, 0);
+    /**
+     * Compute the first branch ID of each original class, if not computed yet.
+     *
+     * @return first branch ID of each class in {@link OriginalProgram#getClassNames()}
+     * @throws IOException if a class file cannot be read
+     */
+    private int[] computeBaseIds() throws IOException {
+        int[] baseIds = original.getBaseIds();
+        if (baseIds != null)
+            return baseIds;
 
-            Map<MethodNode, Map<Integer, Integer>> methodIds = new HashMap<>();
-            for (MethodNode methodInfo : classNode.methods) {
-                methodIds.put(methodInfo,
-                        computeBranchIds(methodInfo.instructions, originalCtxt.getKey(), methodInfo.name,
-                                methodInfo.desc));
-            }
+        Main.LOGGER.log(Level.INFO, "Compute first branch ID of each class...");
+        List<Callable<Integer>> countTasks = new ArrayList<>();
+        for (final String className : original.getClassNames()) {
+            countTasks.add(() -> countBranches(new ClassReader(getOriginalBytes(className))));
+        }
+        original.setBranchCounts(runTasks(countTasks));
+        return original.getBaseIds();
+    }
 
-            // Instrument every methods
-            for (MethodNode methodInfo : node.methods) {
-                // Instrument every labels
-                MethodNode sourceMethod = InsnNodeUtils.findSameMethod(methodInfo, methodIds.keySet());
-                if (sourceMethod != null) {
-                    MethodInstrumenter instrumenter = new MethodInstrumenter(Opcodes.ASM9, originalCtxt.getKey(),
-                            methodInfo.access,
-                            methodInfo.name, methodInfo.desc, methodInfo.signature,
-                            methodInfo.exceptions.toArray(new String[0]),
-                            methodIds.get(sourceMethod));
-                    methodInfo.accept(instrumenter);
-
-                    Map<LabelNode, InsnList> newInsns = instrumenter.getNewInsns();
-                    for (Map.Entry<LabelNode, InsnList> entry : newInsns.entrySet()) {
-                        int index = methodInfo.instructions.indexOf(entry.getKey());
-                        if (index + 1 < methodInfo.instructions.size()) // Check label is method end
-                            methodInfo.instructions.insert(methodInfo.instructions.get(index + 1), entry.getValue());
-                    }
+    /**
+     * Add every target class to the type hierarchy, before any class is overwritten.
+     *
+     * @throws IOException if a class file cannot be read
+     */
+    private void buildTypeHierarchy() throws IOException {
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (final String className : targetFiles.keySet()) {
+            tasks.add(() -> {
+                typeHierarchy.add(getTargetBytes(className));
+                return null;
+            });
+        }
+        runTasks(tasks);
+    }
 
-                    // skip logging field change if the class is an interface or the method is an
-                    // abstract method
-                    if ((node.access & Opcodes.ACC_INTERFACE) == 0 && (methodInfo.access & Opcodes.ACC_ABSTRACT) == 0) {
-                        // add initialize instructions on method enter
-                        methodInfo.instructions.insert(Instruction.getInitInstructions());
-
-                        // Log field changes on method return/throw
-                        if (!methodInfo.name.equals("<init>")) {
-                            ListIterator<AbstractInsnNode> iterator = methodInfo.instructions.iterator();
-                            while (iterator.hasNext()) {
-                                AbstractInsnNode insn = iterator.next();
-                                int opcode = insn.getOpcode();
-                                if ((opcode >= Opcodes.IRETURN && opcode <= Opcodes.RETURN)
-                                        || opcode == Opcodes.ATHROW) {
-                                    InsnList instructions = getFieldChangeInstructions(originalCtxt.getKey(),
-                                            (methodInfo.access & Opcodes.ACC_STATIC) != 0);
-
-                                    methodInfo.instructions.insertBefore(insn, instructions);
-                                    totalInstrumented++;
-                                }
-                            }
-                        }
-
-                        // log field changes on method exit
-                        if (!methodInfo.name.equals("<init>")) {
-                            InsnList instructions = getFieldChangeInstructions(originalCtxt.getKey(),
-                                    (methodInfo.access & Opcodes.ACC_STATIC) != 0);
-
-                            methodInfo.instructions.add(instructions);
-                            totalInstrumented++;
-                        }
-                    }
+    /**
+     * Read an original class and compute branch IDs of its methods.
+     * <p>
+     * The result is reused if the original program is resident, unless hash source strings are recorded.
+     * Reused results have every branch ID, so that one analysis of each class serves every selection.
+     * Use {@link #selectIds(OriginalProgram.AnalyzedClass)} to keep only the selected IDs.
+     * </p>
+     *
+     * @param className     relative path of the class file
+     * @param originalBytes original class file
+     * @param baseId        first branch ID of the class
+     * @return branch IDs of each method
+     */
+    private OriginalProgram.AnalyzedClass analyzeOriginalClass(String className, byte[] originalBytes, int baseId) {
+        String key = className + ";legacyFingerprint=" + legacyFingerprint;
+        boolean reuse = original.isResident() && !isRecordingHashStrings();
+        if (reuse) {
+            OriginalProgram.AnalyzedClass analyzed = original.getAnalyzedClass(key);
+            if (analyzed != null)
+                return analyzed;
+        }
+        final BranchSelection idSelection = reuse ? new BranchSelection() : selection;
 
-                    methodInfo.check(Opcodes.ASM9);
-                }
+        // Every method of the class reserves IDs in order, so each method starts after the jumps of previous ones
+        final Map<String, BranchIdAnalyzer> analyzers = new LinkedHashMap<>();
+        final String[] sourceFile = new String[1];
+        final BiConsumer<Long, String> hashStringRecorder = getHashStringRecorder();
+        new ClassReader(originalBytes).accept(new ClassVisitor(Opcodes.ASM9) {
+            private int nextId = baseId;
+            private BranchIdAnalyzer last = null;
+
+            @Override
+            public void visitSource(String source, String debug) {
+                sourceFile[0] = source;
             }
 
-            // Create class writer for original to get the size
-            ClassWriter writer2 = new InstrumentClassWriter(targetPath,
-                    ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES);
-            classNode.accept(writer2);
-
-            // Save instrumented file
-            // Add dummy field to check instrumented
-            node.fields.add(new FieldNode(Opcodes.ACC_PUBLIC + Opcodes.ACC_FINAL + Opcodes.ACC_STATIC,
-                    "greyboxInstrumented", "I", null, Integer.valueOf(0)));
-            node.check(Opcodes.ASM9);
-            ClassWriter writer = new InstrumentClassWriter(targetPath,
-                    ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES);
-            node.accept(writer);
-
-            Main.LOGGER.info("Instrumenting " + originalCtxt.getKey() + " - Orig: " + writer2.toByteArray().length
-                    + ", Patched: " + writer.toByteArray().length);
-            byte[] newClass = writer.toByteArray();
-            if (targetPath.endsWith(".class")) {
-                FileOutputStream fos = new FileOutputStream(targetPath);
-                fos.write(newClass);
-                fos.close();
-            } else {
-                FileOutputStream fos = new FileOutputStream(targetPath + "/" + originalCtxt.getKey());
-                fos.write(newClass);
-                fos.close();
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String descriptor, String signature,
+                    String[] exceptions) {
+                if (last != null)
+                    nextId += last.getJumpCount();
+                last = new BranchIdAnalyzer(Opcodes.ASM9, className, name, descriptor, nextId, idSelection,
+                        legacyFingerprint, hashStringRecorder);
+                analyzers.put(name + descriptor, last);
+                return last;
             }
+        }, 0);
 
-            double totalTime = (Calendar.getInstance().getTimeInMillis() - start) / 1000.0; // Seconds
-            if (timeMap.containsKey(classNode.sourceFile)) {
-                timeMap.put(classNode.sourceFile, timeMap.get(classNode.sourceFile) + totalTime);
-            } else {
-                timeMap.put(classNode.sourceFile, totalTime);
+        Map<String, Map<Long, Integer>> methodIds = new HashMap<>();
+        for (Map.Entry<String, BranchIdAnalyzer> entry : analyzers.entrySet()) {
+            methodIds.put(entry.getKey(), entry.getValue().getIds());
+        }
+
+        OriginalProgram.AnalyzedClass analyzed = new OriginalProgram.AnalyzedClass(sourceFile[0], methodIds);
+        if (reuse)
+            original.putAnalyzedClass(key, analyzed);
+        return analyzed;
+    }
+
+    /**
+     * Keep only the selected branch IDs of an analyzed class.
+     *
+     * @param analyzed branch IDs of the original class
+     * @return analyzed class with the selected IDs, the same one if every ID is selected
+     */
+    private OriginalProgram.AnalyzedClass selectIds(OriginalProgram.AnalyzedClass analyzed) {
+        if (!selection.hasIds())
+            return analyzed;
+        Map<String, Map<Long, Integer>> methodIds = new HashMap<>();
+        for (Map.Entry<String, Map<Long, Integer>> method : analyzed.methodIds.entrySet()) {
+            Map<Long, Integer> ids = new HashMap<>();
+            for (Map.Entry<Long, Integer> id : method.getValue().entrySet()) {
+                if (selection.isIdSelected(id.getValue()))
+                    ids.put(id.getKey(), id.getValue());
             }
+            methodIds.put(method.getKey(), ids);
         }
-        Main.LOGGER.log(Level.INFO, "Total instrumented: " + totalInstrumented);
-        Main.LOGGER.log(Level.INFO, "Final prev id: " + prevId);
+        return new OriginalProgram.AnalyzedClass(analyzed.sourceFile, methodIds);
+    }
 
-        if (!timeFileOutput.equals("")) {
-            FileWriter writer = new FileWriter(timeFileOutput);
-            for (Map.Entry<String, Double> entry : timeMap.entrySet()) {
-                writer.write(entry.getKey() + "," + entry.getValue() + "\n");
+    /**
+     * Find the changed methods and their neighbours in the call graph.
+     *
+     * @param classNames relative paths of the original classes
+     * @return names and descriptors of the selected methods for each class
+     * @throws IOException if a class file cannot be read
+     */
+    private Map<String, Set<String>> computeChangedMethods(List<String> classNames) throws IOException {
+        Main.LOGGER.log(Level.INFO, "Find changed methods...");
+        final CallGraph callGraph = new CallGraph();
+        List<Callable<Set<String>>> diffTasks = new ArrayList<>();
+        for (final String className : classNames) {
+            diffTasks.add(() -> {
+                byte[] targetBytes = getTargetBytes(className);
+                if (targetBytes == null)
+                    return Collections.emptySet();
+                ClassNode target = new ClassNode();
+                new ClassReader(targetBytes).accept(target, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+                ClassNode original = new ClassNode();
+                new ClassReader(getOriginalBytes(className)).accept(original,
+                        ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+                callGraph.addClass(target);
+
+                Set<String> changed = new HashSet<>();
+                for (MethodNode method : target.methods) {
+                    MethodNode sourceMethod = InsnNodeUtils.findSameMethod(method, original.methods);
+                    if (sourceMethod == null || !InsnNodeUtils.isSameCode(sourceMethod, method))
+                        changed.add(CallGraph.getMethodKey(target.name, method.name, method.desc));
+                }
+                return changed;
+            });
+        }
+        Set<String> changedMethods = new HashSet<>();
+        for (Set<String> changed : runTasks(diffTasks)) {
+            changedMethods.addAll(changed);
+        }
+        Set<String> selected = callGraph.getNeighbours(changedMethods, changedMethodDistance);
+        Main.LOGGER.log(Level.INFO, "Changed methods: " + changedMethods.size() + ", selected methods: "
+                + selected.size());
+
+        // Method keys start with the internal name, which is the class path without the extension
+        Map<String, Set<String>> result = new HashMap<>();
+        for (String methodKey : selected) {
+            int nameIndex = methodKey.indexOf('.');
+            String className = methodKey.substring(0, nameIndex).replace('/', File.separatorChar) + ".class";
+            result.computeIfAbsent(className, k -> new HashSet<>())
+                    .add(methodKey.substring(nameIndex + 1));
+        }
+        return result;
+    }
+
+    /**
+     * Instrument a single class and overwrite it in the target path.
+     *
+     * @param className relative path of the class file
+     * @param baseId    first branch ID of the class
+     * @param endId     first branch ID of the next class
+     * @param methods   name and descriptor of methods to instrument, or null to instrument every method
+     * @return time and result of the class
+     * @throws IOException if the instrumented class cannot be written
+     */
+    private ClassMetrics instrumentClass(String className, int baseId, int endId, Set<String> methods)
+            throws IOException {
+        ClassMetrics metrics = new ClassMetrics(className);
+        long start = System.nanoTime();
+        if (methods != null && methods.isEmpty()) {
+            Main.LOGGER.log(Level.FINE, "Skip unchanged class " + className);
+            return finish(metrics.skip(ClassMetrics.REASON_UNCHANGED), start);
+        }
+        if (!selection.isClassSelected(className) || !selection.hasSelectedId(baseId, endId)) {
+            Main.LOGGER.log(Level.FINE, "Skip unselected class " + className);
+            return finish(metrics.skip(ClassMetrics.REASON_NOT_SELECTED), start);
+        }
+
+        // Target class file
+        byte[] targetBytes = getTargetBytes(className);
+        if (targetBytes == null) {
+            // Target class file not exist if patch removes whole 'public class'
+            Main.LOGGER.info("Class file " + className + " not found in target. Skip it.");
+            return finish(metrics.skip(ClassMetrics.REASON_NOT_IN_TARGET), start);
+        }
+        byte[] originalBytes = getOriginalBytes(className);
+        metrics.sizeBefore = targetBytes.length;
+
+        String cacheKey = null;
+        if (cache != null) {
+            cacheKey = InstrumentationCache.computeKey(TOOL_VERSION, getCacheConfig(baseId, methods), originalBytes,
+                    targetBytes);
+            // Cached classes are not analyzed, so their hash source strings would be missing
+            InstrumentationCache.Entry entry = isRecordingHashStrings() ? null : cache.get(cacheKey);
+            if (entry != null) {
+                Main.LOGGER.info("Instrumenting " + className + " - Cached: " + entry.classBytes.length);
+                long writeStart = System.nanoTime();
+                metrics.readNanos = writeStart - start;
+                writeClass(className, entry.classBytes);
+                metrics.writeNanos = System.nanoTime() - writeStart;
+                metrics.status = ClassMetrics.STATUS_CACHED;
+                metrics.sourceFile = entry.sourceFile;
+                if (entry.probeEquations != null)
+                    probeEquations.putAll(entry.probeEquations);
+                metrics.sizeAfter = entry.classBytes.length;
+                return finish(metrics, start);
             }
-            writer.close();
         }
+
+        // Source class file
+        long idStart = System.nanoTime();
+        metrics.readNanos = idStart - start;
+        OriginalProgram.AnalyzedClass analyzed = selectIds(analyzeOriginalClass(className, originalBytes, baseId));
+        metrics.idNanos = System.nanoTime() - idStart;
+        metrics.sourceFile = analyzed.sourceFile;
+        methods = selectMethods(analyzed, methods);
+        if (methods != null && methods.isEmpty()) {
+            Main.LOGGER.log(Level.FINE, "Skip class without selected methods " + className);
+            return finish(metrics.skip(ClassMetrics.REASON_NOT_SELECTED), start);
+        }
+        Map<Integer, int[]> equations = isOptimizedProbes() ? new TreeMap<>() : null;
+        byte[] newClass = instrumentBytes(className, targetBytes, analyzed, originalBytes.length, methods,
+                null, equations, metrics);
+        if (newClass == null)
+            return finish(metrics.skip(ClassMetrics.REASON_ALREADY_INSTRUMENTED), start);
+        long writeStart = System.nanoTime();
+        writeClass(className, newClass);
+        if (equations != null)
+            probeEquations.putAll(equations);
+
+        if (cache != null)
+            cache.put(cacheKey, new InstrumentationCache.Entry(newClass, analyzed.sourceFile, analyzed.methodIds,
+                    equations));
+        metrics.writeNanos = System.nanoTime() - writeStart;
+        metrics.sizeAfter = newClass.length;
+        return finish(metrics, start);
     }
 
-    public static int totalInstrumented = 0;
+    /**
+     * Find the methods of a class with any selected branch.
+     * <p>
+     * If branch IDs are selected, methods without any of them are not instrumented,
+     * so they are copied as is without field logs and method entry checks.
+     * </p>
+     *
+     * @param analyzed branch IDs of the original class, only the selected ones
+     * @param methods  name and descriptor of methods to instrument, or null for every method
+     * @return name and descriptor of the selected methods, or null to instrument every method
+     */
+    private Set<String> selectMethods(OriginalProgram.AnalyzedClass analyzed, Set<String> methods) {
+        if (selection.isAll())
+            return methods;
+        Set<String> selected = new HashSet<>();
+        for (Map.Entry<String, Map<Long, Integer>> entry : analyzed.methodIds.entrySet()) {
+            String method = entry.getKey();
+            if ((methods == null || methods.contains(method)) && selection.isMethodSelected(method)
+                    && (!selection.hasIds() || !entry.getValue().isEmpty()))
+                selected.add(method);
+        }
+        return selected;
+    }
+
+    private static ClassMetrics finish(ClassMetrics metrics, long start) {
+        metrics.totalNanos = System.nanoTime() - start;
+        return metrics;
+    }
 
     /**
-     * Compute branch IDs.
+     * Instrument a class loaded by the JVM, for load-time instrumentation.
+     * <p>
+     * Every method with the same code in the original class is instrumented,
+     * with the same branch IDs as {@link #instrument(String)}.
+     * </p>
      *
-     * @param instructions instructions of method
-     * @param className    class name
-     * @param methodName   method name
-     * @param methodDesc   method descriptor
+     * @param className   relative path of the class file, e.g. pkg/Foo.class
+     * @param targetBytes class file to instrument
+     * @param loader      class loader of the class, used to compute stack map frames
+     * @return instrumented class file, or null if the class is not in the original program, not selected
+     *         or already instrumented
+     * @throws IOException if the original class cannot be read
      */
-    public Map<Integer, Integer> computeBranchIds(InsnList instructions, String className, String methodName,
-            String methodDesc) {
-        Map<Integer, Integer> ids = new HashMap<>();
+    public byte[] instrumentLoadedClass(String className, byte[] targetBytes, ClassLoader loader)
+            throws IOException {
+        int baseId = original.getBaseId(className);
+        if (baseId < 0 || !selection.isClassSelected(className))
+            return null;
+        byte[] originalBytes = original.getBytes(className);
+        OriginalProgram.AnalyzedClass analyzed = selectIds(analyzeOriginalClass(className, originalBytes, baseId));
+        Set<String> methods = selectMethods(analyzed, null);
+        if (methods != null && methods.isEmpty())
+            return null;
+        return instrumentBytes(className, targetBytes, analyzed, originalBytes.length, methods, loader, null,
+                new ClassMetrics(className));
+    }
 
-        for (int i = 0; i < instructions.size(); i++) {
-            AbstractInsnNode insn = instructions.get(i);
+    /**
+     * Insert probes and field logs to a class.
+     * <p>
+     * The class is instrumented in a single pass from the reader to the writer, without building its tree.
+     * </p>
+     *
+     * @param className    relative path of the class file
+     * @param targetBytes  class file to instrument
+     * @param analyzed     branch IDs of the original class
+     * @param originalSize size of the original class file, for logging
+     * @param methods      name and descriptor of methods to instrument, or null to instrument every method
+     * @param loader       class loader to resolve super classes, or null to use the target path
+     * @param equations    map filled with the probe equations of the class to place optimized probes,
+     *                     or null to place probes at every branch
+     * @param metrics      metrics of the class, filled with the time of reading, probes and frames
+     * @return instrumented class file, or null if the class is already instrumented
+     * @see ClassInstrumenter
+     */
+    private byte[] instrumentBytes(String className, byte[] targetBytes, OriginalProgram.AnalyzedClass analyzed,
+            int originalSize, Set<String> methods, ClassLoader loader, Map<Integer, int[]> equations,
+            ClassMetrics metrics) {
+        long start = System.nanoTime();
+        ClassReader reader = new ClassReader(targetBytes);
+        // Writer sharing the constant pool of the reader. Methods without inserted instructions are
+        // copied as is with their frames.
+        ClassWriter writer = createClassWriter(reader, loader);
+        long probeStart = System.nanoTime();
+        metrics.readNanos += probeStart - start;
 
-            // Compute branch ID
-            if (insn.getType() == AbstractInsnNode.JUMP_INSN) {
-                if (branchIds.size() == 0 || branchIds.contains(prevId)) {
-                    JumpInsnNode jumpInsn = (JumpInsnNode) insn;
-                    LabelNode curLabel = jumpInsn.label;
-                    int labelIndex = instructions.indexOf(curLabel);
+        ClassInstrumenter instrumenter = new ClassInstrumenter(Opcodes.ASM9, writer, className, analyzed.methodIds,
+                methods, probeMode, legacyFingerprint);
+        instrumenter.setOptimizedProbes(equations != null);
+        reader.accept(instrumenter, 0);
+        if (instrumenter.isAlreadyInstrumented()) {
+            Main.LOGGER.log(Level.FINE, "Skip instrumenting " + className);
+            return null;
+        }
+        metrics.probes += instrumenter.getProbeCount();
+        metrics.fieldLogs += instrumenter.getFieldLogCount();
+        if (equations != null)
+            equations.putAll(instrumenter.getProbeEquations());
+        long frameStart = System.nanoTime();
+        metrics.probeNanos = frameStart - probeStart;
 
-                    Deque<AbstractInsnNode> prevInsns = new ArrayDeque<>();
-                    for (int j = labelIndex - 1; j >= 0 && j >= Instrumenter.MAX_PREV_INSNS; j--) {
-                        prevInsns.add(instructions.get(j));
-                    }
+        byte[] newClass = writer.toByteArray();
+        metrics.frameNanos = System.nanoTime() - frameStart;
 
-                    String hashSource = className + "::" + methodName + "::" + methodDesc + "::";
-                    for (AbstractInsnNode prevInsn : prevInsns) {
-                        String nodeString = InsnNodeUtils.convertNodeToString(prevInsn);
-                        if (nodeString.length() > 0)
-                            hashSource += nodeString + ";";
-                    }
-                    int hashed = hashSource.hashCode();
-                    hashStrings.put(hashed, hashSource);
-
-                    if (ids.containsKey(hashed))
-                        Main.LOGGER.finer("Duplicated ID: " + hashed);
-                    ids.put(hashed, prevId++);
-                } else {
-                    prevId++;
+        Main.LOGGER.info("Instrumenting " + className + " - Orig: " + originalSize + ", Patched: " + newClass.length);
+        return newClass;
+    }
+
+    private ClassWriter createClassWriter(ClassReader reader, ClassLoader loader) {
+        TypeHierarchy hierarchy = typeHierarchy;
+        if (loader != null)
+            hierarchy = loaderHierarchies.computeIfAbsent(loader, TypeHierarchy::forClassLoader);
+        else if (hierarchy == null)
+            hierarchy = TypeHierarchy.getSystem();
+        return new InstrumentClassWriter(reader, hierarchy, ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES);
+    }
+
+    /**
+     * Overwrite the class file in the target path, or keep it to write the target archive.
+     *
+     * @param className relative path of the class file
+     * @param newClass  instrumented class file
+     * @throws IOException if the class cannot be written
+     */
+    private void writeClass(String className, byte[] newClass) throws IOException {
+        if (targetArchive != null) {
+            // Compressed by the thread of the class
+            archiveEntries.put(ClassArchive.toEntryName(className), ArchiveWriter.compress(newClass));
+        } else if (targetPath.endsWith(".class")) {
+            Files.write(Paths.get(targetPath), newClass);
+        } else {
+            Files.write(Paths.get(targetPath, className), newClass);
+        }
+    }
+
+    /**
+     * Write the manifest class with the number of branch IDs to the target path,
+     * so GlobalStates allocates one counter per branch.
+     *
+     * @throws IOException if the manifest cannot be written
+     * @see ManifestGenerator
+     */
+    private void writeManifest() throws IOException {
+        if (targetArchive != null) {
+            archiveEntries.put(ManifestGenerator.MANIFEST_FILE,
+                    ArchiveWriter.compress(ManifestGenerator.generate(prevId)));
+            return;
+        }
+        if (targetPath.endsWith(".class")) {
+            Main.LOGGER.warning("Target is a single class file. Manifest is not written; set "
+                    + GlobalStates.STATE_ENV_BRANCH_COUNT + "=" + prevId + " to run it.");
+            return;
+        }
+        File manifestFile = new File(targetPath, ManifestGenerator.MANIFEST_FILE);
+        Files.createDirectories(manifestFile.getParentFile().toPath());
+        Files.write(manifestFile.toPath(), ManifestGenerator.generate(prevId));
+    }
+
+    /**
+     * Replace the target archive with the instrumented classes and the manifest.
+     * <p>
+     * The new archive is written next to the target, then moved over it.
+     * </p>
+     *
+     * @throws IOException if the archive cannot be written
+     * @see ArchiveWriter
+     */
+    private void writeArchive() throws IOException {
+        targetArchive.close();
+        File archive = targetArchive.getFile().getAbsoluteFile();
+        File newArchive = File.createTempFile(archive.getName(), ".tmp", archive.getParentFile());
+        try {
+            ArchiveWriter.rewrite(archive, archiveEntries, newArchive);
+            Files.move(newArchive.toPath(), archive.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(newArchive.toPath());
+        }
+        archiveEntries.clear();
+    }
+
+    /**
+     * Configuration that affects the instrumented class, used as a part of cache key.
+     *
+     * @param baseId  first branch ID of the class
+     * @param methods methods to instrument, or null for every method
+     * @return configuration string
+     */
+    private String getCacheConfig(int baseId, Set<String> methods) {
+        return "baseId=" + baseId + ";selection=" + selection + ";probe=" + probeMode
+                + ";legacyFingerprint=" + legacyFingerprint + ";optimizedProbes=" + isOptimizedProbes()
+                + ";methods=" + (methods == null ? "all" : new TreeSet<>(methods));
+    }
+
+    /**
+     * Get the original class file.
+     *
+     * @param className relative path of the class file
+     * @return bytes of the original class
+     * @throws IOException if the class file cannot be read
+     */
+    private byte[] getOriginalBytes(String className) throws IOException {
+        return original.getBytes(className);
+    }
+
+    /**
+     * Get the target class file.
+     *
+     * @param className relative path of the class file
+     * @return bytes of the target class, or null if the class does not exist in target
+     * @throws IOException if the class file cannot be read
+     */
+    private byte[] getTargetBytes(String className) throws IOException {
+        byte[] bytes = targetNodes.get(className);
+        if (bytes != null)
+            return bytes;
+        String source = targetFiles.get(className);
+        if (source == null)
+            return null;
+
+        bytes = targetArchive != null ? targetArchive.read(className) : Files.readAllBytes(Paths.get(source));
+        if (!streaming)
+            targetNodes.put(className, bytes);
+        return bytes;
+    }
+
+    /**
+     * Run tasks with the configured number of threads.
+     *
+     * @param tasks tasks to run
+     * @return results of tasks, in the same order with tasks
+     * @throws IOException if any task throws IOException
+     */
+    private <T> List<T> runTasks(List<Callable<T>> tasks) throws IOException {
+        List<T> results = new ArrayList<>(tasks.size());
+        if (threads == 1) {
+            for (Callable<T> task : tasks) {
+                try {
+                    results.add(task.call());
+                } catch (IOException | RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new IOException(e);
                 }
             }
+            return results;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (Future<T> future : executor.invokeAll(tasks)) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Instrumentation interrupted", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IOException(cause);
+        } finally {
+            executor.shutdownNow();
         }
+        return results;
+    }
+
+    /**
+     * Count the number of branch IDs that the given original class reserves.
+     *
+     * @param reader reader of the original class
+     * @return number of jump instructions in every method of the class
+     */
+    private static int countBranches(ClassReader reader) {
+        final int[] count = new int[1];
+        reader.accept(new ClassVisitor(Opcodes.ASM9) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String descriptor, String signature,
+                    String[] exceptions) {
+                return new MethodVisitor(Opcodes.ASM9) {
+                    @Override
+                    public void visitJumpInsn(int opcode, Label label) {
+                        count[0]++;
+                    }
+                };
+            }
+        }, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        return count[0];
+    }
 
-        return ids;
+    public static final AtomicInteger totalInstrumented = new AtomicInteger();
+
+    private boolean isRecordingHashStrings() {
+        return retainHashStrings || hashStringWriter != null;
+    }
+
+    // Receives hash source strings of branches, null if they are not recorded
+    private BiConsumer<Long, String> getHashStringRecorder() {
+        return isRecordingHashStrings() ? this::recordHashString : null;
+    }
+
+    private void recordHashString(long hashed, String hashSource) {
+        if (retainHashStrings)
+            hashStrings.put(hashed, hashSource);
+        if (hashStringWriter != null) {
+            synchronized (hashStringWriter) {
+                try {
+                    hashStringWriter.write(hashed + "," + hashSource + "\n");
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
     }
 
 }
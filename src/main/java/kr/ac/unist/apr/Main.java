@@ -1,9 +1,16 @@
 package kr.ac.unist.apr;
 
+import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -11,17 +18,38 @@ import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
+import kr.ac.unist.apr.asm.ProbeMode;
+import kr.ac.unist.apr.cache.InstrumentationCache;
+import kr.ac.unist.apr.server.InstrumentationServer;
+
 public class Main {
     public static final Logger LOGGER=Logger.getGlobal();
     public static void main(String[] args) {
         if (args.length<2) {
             System.out.println("Usage: java -jar JPatchInst.jar <original_source_path> <target_source_path>");
+            System.out.println("       java -jar JPatchInst.jar -S <original_source_path>");
             System.exit(1);
         }
 
         Options options=new Options();
-        options.addOption("i", "branch-id", true, "Branch ID to instrument. Seperated in comma(,). Default is all.");
+        options.addOption("i", "branch-id", true, "Branch ID to instrument. IDs and ranges (e.g. 10-20) seperated in comma(,), or @file with IDs. Default is all.");
+        options.addOption("I", "include-class", true, "Instrument only the classes matching the patterns (e.g. com.example.**). Seperated in comma(,).");
+        options.addOption("X", "exclude-class", true, "Do not instrument the classes matching the patterns. Seperated in comma(,).");
+        options.addOption("M", "include-method", true, "Instrument only the methods matching the patterns (e.g. get* or foo(I)V). Seperated in comma(,).");
+        options.addOption("E", "exclude-method", true, "Do not instrument the methods matching the patterns. Seperated in comma(,).");
         options.addOption("t", "time-output-file", true, "Output file path for each time to instrument file");
+        options.addOption("r", "report", true, "Output file path for the metrics of each phase and class, in JSON");
+        options.addOption("j", "threads", true, "Number of threads to instrument classes. Default is 1.");
+        options.addOption("s", "streaming", false, "Read each class file when it is instrumented, instead of loading all classes first.");
+        options.addOption("H", "hash-string-file", true, "Output file path for hash source strings of each branch");
+        options.addOption("m", "changed-only", false, "Instrument only the methods changed by the patch.");
+        options.addOption("d", "call-distance", true, "With -m, also instrument methods within this number of calls from changed methods. Default is 0.");
+        options.addOption("p", "probe", true, "Probe mode: legacy, bootstrap, concurrent, edge or hit. Default is legacy.");
+        options.addOption("O", "optimize-probes", true, "Place probes only on the edges of each method's control-flow graph needed to derive every branch count, and save the equations to this file. Convert results with kr.ac.unist.apr.result.ProbeEquations. For legacy, bootstrap and concurrent probes.");
+        options.addOption("L", "legacy-fingerprint", false, "Find branches with the fingerprint of the previous versions.");
+        options.addOption("c", "cache-dir", true, "Directory to cache instrumented classes. Default is no cache.");
+        options.addOption("C", "cache-size", true, "Maximum size of the cache in MB. Default is 1024.");
+        options.addOption("S", "server", false, "Run as a daemon. Read jobs from stdin and write results to stdout, as JSON lines. Give only the original source path.");
 
         CommandLineParser parser=new DefaultParser();
         CommandLine cmd=null;
@@ -31,30 +59,86 @@ public class Main {
             e.printStackTrace();
         }
         String branchIds=cmd.getOptionValue("i", "");
-        ArrayList<Integer> branchIdList=new ArrayList<>();
-        if (!branchIds.equals("")){
-            String[] parsedBranchIds=branchIds.split(",");
-            for (String branchId : parsedBranchIds) {
-                if (branchId.equals("")) {
-                    continue;
-                }
-                branchIdList.add(Integer.parseInt(branchId));
-            }
-        }
+        List<String> includeClasses=getValues(cmd, "I");
+        List<String> excludeClasses=getValues(cmd, "X");
+        List<String> includeMethods=getValues(cmd, "M");
+        List<String> excludeMethods=getValues(cmd, "E");
 
         String timeOutputFile=cmd.getOptionValue("t", "");
+        String reportFile=cmd.getOptionValue("r");
+        int threads=Integer.parseInt(cmd.getOptionValue("j", "1"));
+        boolean streaming=cmd.hasOption("s");
+        String hashStringFile=cmd.getOptionValue("H", "");
+        int changedMethodDistance=cmd.hasOption("m") ? Integer.parseInt(cmd.getOptionValue("d", "0")) : -1;
+        if (cmd.hasOption("d") && !cmd.hasOption("m"))
+            LOGGER.warning("-d/--call-distance is only used with -m/--changed-only. Every method is instrumented.");
+        ProbeMode probeMode=ProbeMode.fromName(cmd.getOptionValue("p", "legacy"));
+        boolean legacyFingerprint=cmd.hasOption("L");
+        String probeEquationFile=cmd.getOptionValue("O");
+        String cacheDir=cmd.getOptionValue("c", "");
+        long cacheSize=Long.parseLong(cmd.getOptionValue("C", "1024"))*1024*1024;
 
         String[] parsedArgs=cmd.getArgs();
 
         // Convert Windows path separators (\\) to single backslash
         String originalSourcePath=parsedArgs[0].replace("\\\\", "\\");
+        if (cmd.hasOption("S")) {
+            InstrumentationServer.Job defaults=new InstrumentationServer.Job();
+            defaults.branches=branchIds;
+            defaults.includeClasses=includeClasses;
+            defaults.excludeClasses=excludeClasses;
+            defaults.includeMethods=includeMethods;
+            defaults.excludeMethods=excludeMethods;
+            defaults.timeOutput=timeOutputFile;
+            defaults.report=reportFile;
+            defaults.threads=threads;
+            defaults.streaming=streaming;
+            defaults.hashStringFile=hashStringFile;
+            defaults.changedOnly=changedMethodDistance>=0;
+            defaults.distance=Math.max(changedMethodDistance,0);
+            defaults.probe=probeMode.name();
+            defaults.legacyFingerprint=legacyFingerprint;
+            defaults.probeEquations=probeEquationFile;
+            LOGGER.log(Level.INFO, "Original Source Path: "+originalSourcePath);
+            try {
+                InstrumentationCache cache=cacheDir.equals("") ? null : new InstrumentationCache(new File(cacheDir),cacheSize);
+                InstrumentationServer server=new InstrumentationServer(new OriginalProgram(originalSourcePath,streaming,true),defaults,cache);
+                Writer out=new OutputStreamWriter(System.out,StandardCharsets.UTF_8);
+                server.serve(new BufferedReader(new InputStreamReader(System.in,StandardCharsets.UTF_8)),out);
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+            return;
+        }
         String targetSourcePath=parsedArgs[1].replace("\\\\", "\\");
         LOGGER.log(Level.INFO, "Original Source Path: "+originalSourcePath);
         LOGGER.log(Level.INFO, "Target Source Path: "+targetSourcePath);
 
         try {
             LOGGER.log(Level.INFO, "Start instrumenting...");
-            Instrumenter instrumenter=new Instrumenter(targetSourcePath,originalSourcePath,branchIdList);
+            BranchSelection selection=new BranchSelection().addIds(branchIds);
+            for (String pattern : includeClasses)
+                selection.includeClass(pattern);
+            for (String pattern : excludeClasses)
+                selection.excludeClass(pattern);
+            for (String pattern : includeMethods)
+                selection.includeMethod(pattern);
+            for (String pattern : excludeMethods)
+                selection.excludeMethod(pattern);
+
+            Instrumenter instrumenter=new Instrumenter(targetSourcePath,originalSourcePath,new ArrayList<>(),streaming);
+            instrumenter.setSelection(selection);
+            instrumenter.setThreads(threads);
+            instrumenter.setChangedMethodDistance(changedMethodDistance);
+            instrumenter.setProbeMode(probeMode);
+            instrumenter.setLegacyFingerprint(legacyFingerprint);
+            instrumenter.setProbeEquationFile(probeEquationFile);
+            instrumenter.setReportFile(reportFile);
+            if (!hashStringFile.equals(""))
+                instrumenter.setHashStringFile(hashStringFile);
+            if (!cacheDir.equals(""))
+                instrumenter.setCache(new InstrumentationCache(new File(cacheDir),cacheSize));
             instrumenter.instrument(timeOutputFile);
             LOGGER.log(Level.INFO, "Instrumenting finished.");
         } catch (IOException e) {
@@ -62,4 +146,19 @@ public class Main {
             System.exit(1);
         }
     }
+
+    // Values of an option given more than once, each seperated in comma(,)
+    private static List<String> getValues(CommandLine cmd, String option) {
+        List<String> values=new ArrayList<>();
+        String[] optionValues=cmd.getOptionValues(option);
+        if (optionValues==null)
+            return values;
+        for (String optionValue : optionValues) {
+            for (String value : optionValue.split(",")) {
+                if (!value.trim().equals(""))
+                    values.add(value.trim());
+            }
+        }
+        return values;
+    }
 }
@@ -0,0 +1,282 @@
+package kr.ac.unist.apr;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+
+import kr.ac.unist.apr.utils.ClassArchive;
+import kr.ac.unist.apr.utils.ClassScanner;
+import kr.ac.unist.apr.utils.Path;
+
+/**
+ * Class files of the original program.
+ * <p>
+ * Branch IDs depend only on the original program, so the first branch ID of each class is computed once.
+ * If the program is resident, branch IDs of the methods of each class are also kept,
+ * and reused by every {@link Instrumenter} created with this program.
+ * This is for instrumenting many patches of the same program in a single process.
+ * <p>
+ * The program is a class path directory, a class file, or a jar or zip file. Entries of an archive are read
+ * without extracting it, and kept open while the program is used if it is streaming.
+ * Class files of a directory are read when they are first used, by the worker threads of the instrumenter,
+ * and kept in memory if the program is not streaming.
+ * </p>
+ */
+public class OriginalProgram {
+    private final String path;
+    private final boolean streaming;
+    private final boolean resident;
+
+    private final SortedMap<String, String> files = new TreeMap<>();
+    private final Map<String, byte[]> classBytes = new ConcurrentHashMap<>();
+    // Archive of the program if streaming, null otherwise
+    private ClassArchive archive = null;
+    private final List<String> classNames;
+    private final Map<String, Integer> classIndices = new HashMap<>();
+
+    private int[] baseIds = null;
+    private int branchCount = 0;
+
+    private final Map<String, AnalyzedClass> analyzedClasses = new ConcurrentHashMap<>();
+
+    /**
+     * Branch IDs of the methods of an original class.
+     */
+    public static class AnalyzedClass {
+        final String sourceFile;
+        /** Branch ID of each fingerprint, keyed by the name and descriptor of methods */
+        final Map<String, Map<Long, Integer>> methodIds;
+
+        AnalyzedClass(String sourceFile, Map<String, Map<Long, Integer>> methodIds) {
+            this.sourceFile = sourceFile;
+            this.methodIds = methodIds;
+        }
+    }
+
+    /**
+     * Find the class files of the original program.
+     *
+     * @param originalSourcePath class path of original source, or its jar or zip file
+     * @param streaming          if true, class files are read when they are used, instead of kept in memory
+     * @param resident           if true, keep branch IDs of each class for following instrumentations
+     * @throws IOException if a class file cannot be read
+     */
+    public OriginalProgram(String originalSourcePath, boolean streaming, boolean resident) throws IOException {
+        this.path = originalSourcePath;
+        this.streaming = streaming;
+        this.resident = resident;
+
+        Main.LOGGER.log(Level.INFO, "Parse Instructions for original source...");
+        if (Path.isArchive(new File(originalSourcePath))) {
+            ClassArchive classArchive = new ClassArchive(new File(originalSourcePath));
+            for (String className : classArchive.getClassNames()) {
+                files.put(className, className);
+                if (!streaming)
+                    classBytes.put(className, classArchive.read(className));
+            }
+            if (streaming)
+                archive = classArchive;
+            else
+                classArchive.close();
+        } else {
+            readDirectory(originalSourcePath);
+        }
+        classNames = Collections.unmodifiableList(new ArrayList<>(files.keySet()));
+        for (int i = 0; i < classNames.size(); i++)
+            classIndices.put(classNames.get(i), i);
+    }
+
+    private void readDirectory(String originalSourcePath) throws IOException {
+        // A sorted map is copied in linear time
+        files.putAll(ClassScanner.scan(new File(originalSourcePath)));
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public boolean isResident() {
+        return resident;
+    }
+
+    /**
+     * @return relative paths of the class files, in the order of branch IDs
+     */
+    public List<String> getClassNames() {
+        return classNames;
+    }
+
+    /**
+     * Get the class file.
+     *
+     * @param className relative path of the class file
+     * @return class file
+     * @throws IOException if the class file cannot be read
+     */
+    public byte[] getBytes(String className) throws IOException {
+        byte[] bytes = classBytes.get(className);
+        if (bytes != null)
+            return bytes;
+        if (archive != null)
+            return archive.read(className);
+        String file = files.get(className);
+        if (file == null)
+            return null;
+
+        bytes = Files.readAllBytes(Paths.get(file));
+        if (!streaming)
+            classBytes.put(className, bytes);
+        return bytes;
+    }
+
+    /**
+     * @return first branch ID of each class in {@link #getClassNames()}, or null if not computed
+     */
+    public synchronized int[] getBaseIds() {
+        return baseIds;
+    }
+
+    /**
+     * Get the first branch ID of a class.
+     *
+     * @param className relative path of the class file
+     * @return first branch ID, or -1 if the class is not in the program or IDs are not computed
+     */
+    public synchronized int getBaseId(String className) {
+        Integer index = classIndices.get(className);
+        return index == null || baseIds == null ? -1 : baseIds[index];
+    }
+
+    /**
+     * @return number of branch IDs of the program, valid after {@link #setBranchCounts(List)}
+     */
+    public synchronized int getBranchCount() {
+        return branchCount;
+    }
+
+    /**
+     * Compute the first branch ID of each class.
+     *
+     * @param branchCounts number of branch IDs of each class in {@link #getClassNames()}
+     */
+    public synchronized void setBranchCounts(List<Integer> branchCounts) {
+        int[] ids = new int[branchCounts.size()];
+        int nextId = 0;
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = nextId;
+            nextId += branchCounts.get(i);
+        }
+        baseIds = ids;
+        branchCount = nextId;
+    }
+
+    /**
+     * Save the number of branch IDs of each class, to skip counting them next time.
+     * <p>
+     * Each line has the relative path of a class file, its number of branch IDs, the size of the class file
+     * and its CRC-32 checksum in hexadecimal, separated by tabs.
+     * </p>
+     *
+     * @param file ID table file
+     * @throws IOException if the file or a class file cannot be read or written
+     */
+    public synchronized void saveIdTable(File file) throws IOException {
+        if (baseIds == null)
+            throw new IllegalStateException("Branch IDs are not computed");
+        try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            for (int i = 0; i < classNames.size(); i++) {
+                int end = i + 1 < baseIds.length ? baseIds[i + 1] : branchCount;
+                writer.write(classNames.get(i) + "\t" + (end - baseIds[i]) + "\t" + getFileSize(i) + "\t"
+                        + Long.toHexString(getChecksum(i)) + "\n");
+            }
+        }
+    }
+
+    /**
+     * Load the number of branch IDs of each class, saved by {@link #saveIdTable(File)}.
+     * <p>
+     * The table is ignored if its classes, their sizes or their checksums are different from this program,
+     * e.g. a class is rebuilt with a different number of branches but the same size.
+     * </p>
+     *
+     * @param file ID table file
+     * @return true if loaded, false if the table does not match this program
+     * @throws IOException if the file or a class file cannot be read
+     */
+    public boolean loadIdTable(File file) throws IOException {
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        if (lines.size() != classNames.size())
+            return false;
+        List<Integer> branchCounts = new ArrayList<>();
+        for (int i = 0; i < lines.size(); i++) {
+            String[] columns = lines.get(i).split("\t");
+            if (columns.length != 4 || !columns[0].equals(classNames.get(i)))
+                return false;
+            try {
+                if (Long.parseLong(columns[2]) != getFileSize(i) || Long.parseLong(columns[3], 16) != getChecksum(i))
+                    return false;
+                branchCounts.add(Integer.parseInt(columns[1]));
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+        setBranchCounts(branchCounts);
+        return true;
+    }
+
+    private long getFileSize(int index) {
+        String className = classNames.get(index);
+        byte[] bytes = classBytes.get(className);
+        if (bytes != null)
+            return bytes.length;
+        return archive != null ? archive.getSize(className) : new File(files.get(className)).length();
+    }
+
+    private long getChecksum(int index) throws IOException {
+        String className = classNames.get(index);
+        if (archive != null && !classBytes.containsKey(className)) {
+            // Stored in the central directory of the archive
+            long crc = archive.getCrc(className);
+            if (crc != -1)
+                return crc;
+        }
+        byte[] bytes = getBytes(className);
+        if (bytes == null)
+            throw new IOException("Class file not found: " + className);
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return crc.getValue();
+    }
+
+    /**
+     * @param key class name and the configuration of branch IDs
+     * @return analyzed class kept by {@link #putAnalyzedClass(String, AnalyzedClass)}, or null
+     */
+    AnalyzedClass getAnalyzedClass(String key) {
+        return analyzedClasses.get(key);
+    }
+
+    /**
+     * Keep an analyzed class if the program is resident.
+     *
+     * @param key   class name and the configuration of branch IDs
+     * @param value analyzed class, which should not be modified after
+     */
+    void putAnalyzedClass(String key, AnalyzedClass value) {
+        if (resident)
+            analyzedClasses.put(key, value);
+    }
+}
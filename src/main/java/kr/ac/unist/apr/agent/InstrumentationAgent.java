@@ -0,0 +1,116 @@
+package kr.ac.unist.apr.agent;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+
+import kr.ac.unist.apr.GlobalStates;
+import kr.ac.unist.apr.Instrumenter;
+import kr.ac.unist.apr.Main;
+import kr.ac.unist.apr.OriginalProgram;
+import kr.ac.unist.apr.asm.ProbeMode;
+
+/**
+ * Java agent that instruments classes when they are loaded, instead of rewriting class files.
+ * <p>
+ * Only classes of the original program that the JVM loads are instrumented, with the same branch IDs
+ * and probes as the command line mode. Class files on disk are not modified.
+ * <p>
+ * Usage:
+ * <pre>
+ * java -javaagent:JPatchInst.jar=original=&lt;original_class_path&gt;[,probe=&lt;mode&gt;][,id-table=&lt;file&gt;][,legacy-fingerprint=true] ...
+ * </pre>
+ * <ul>
+ * <li>original: class path of the original program. Required.</li>
+ * <li>probe: probe mode, same with <code>-p</code>. Default is bootstrap.</li>
+ * <li>id-table: file to keep the number of branch IDs of each original class. Loaded if it matches
+ * the original program, otherwise computed and saved, so following runs skip reading every original class.</li>
+ * <li>legacy-fingerprint: same with <code>-L</code> if true. Default is false.</li>
+ * </ul>
+ * Instrumenting only the changed methods is not supported, since it needs every patched class.
+ * </p>
+ */
+public class InstrumentationAgent {
+    /**
+     * Entry point of <code>-javaagent</code>.
+     *
+     * @param agentArgs       options, key=value separated by comma(,)
+     * @param instrumentation instrumentation of the JVM
+     */
+    public static void premain(String agentArgs, Instrumentation instrumentation) {
+        Map<String, String> options = parseOptions(agentArgs);
+        String originalPath = options.get("original");
+        if (originalPath == null)
+            throw new IllegalArgumentException("JPatchInst agent: original=<original_class_path> is required");
+
+        try {
+            OriginalProgram original = new OriginalProgram(originalPath, true, false);
+            String idTable = options.get("id-table");
+            boolean loaded = idTable != null && new File(idTable).isFile() && original.loadIdTable(new File(idTable));
+
+            Instrumenter instrumenter = new Instrumenter(original, new ArrayList<>());
+            instrumenter.setProbeMode(ProbeMode.fromName(options.getOrDefault("probe", "bootstrap")));
+            instrumenter.setLegacyFingerprint(Boolean.parseBoolean(options.get("legacy-fingerprint")));
+            instrumenter.setThreads(Runtime.getRuntime().availableProcessors());
+            // Only counts the branches of each class. Methods are analyzed when their class is loaded.
+            instrumenter.prepare();
+            if (!loaded && idTable != null)
+                original.saveIdTable(new File(idTable));
+            // GlobalStates is not loaded yet, so it allocates exactly this number of counters
+            System.setProperty(GlobalStates.STATE_PROPERTY_BRANCH_COUNT, Integer.toString(original.getBranchCount()));
+
+            instrumentation.addTransformer(new Transformer(instrumenter));
+            Main.LOGGER.log(Level.INFO, "JPatchInst agent: " + original.getClassNames().size() + " classes, "
+                    + original.getBranchCount() + " branch IDs");
+        } catch (IOException e) {
+            throw new IllegalStateException("JPatchInst agent: cannot read original program " + originalPath, e);
+        }
+    }
+
+    private static Map<String, String> parseOptions(String agentArgs) {
+        Map<String, String> options = new HashMap<>();
+        if (agentArgs == null)
+            return options;
+        for (String option : agentArgs.split(",")) {
+            int separator = option.indexOf('=');
+            if (separator < 0)
+                throw new IllegalArgumentException("JPatchInst agent: option should be key=value: " + option);
+            options.put(option.substring(0, separator).trim(), option.substring(separator + 1).trim());
+        }
+        return options;
+    }
+
+    /**
+     * Instruments each loaded class of the original program.
+     */
+    private static class Transformer implements ClassFileTransformer {
+        private final Instrumenter instrumenter;
+
+        private Transformer(Instrumenter instrumenter) {
+            this.instrumenter = instrumenter;
+        }
+
+        @Override
+        public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+                ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+            // Skip classes of this tool and GlobalStates, which the probes use
+            if (className == null || className.startsWith("kr/ac/unist/apr/"))
+                return null;
+
+            String classFile = className.replace('/', File.separatorChar) + ".class";
+            try {
+                return instrumenter.instrumentLoadedClass(classFile, classfileBuffer, loader);
+            } catch (IOException | RuntimeException e) {
+                // Exceptions thrown by transformers are ignored by the JVM, so log them here.
+                Main.LOGGER.log(Level.SEVERE, "JPatchInst agent: cannot instrument " + className, e);
+                return null;
+            }
+        }
+    }
+}
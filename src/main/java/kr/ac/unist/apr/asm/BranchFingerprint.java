@@ -0,0 +1,167 @@
+package kr.ac.unist.apr.asm;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.objectweb.asm.tree.AbstractInsnNode;
+
+import kr.ac.unist.apr.Instrumenter;
+import kr.ac.unist.apr.utils.InsnNodeUtils;
+
+/**
+ * 64-bit fingerprint of labels in a method, to find the same branch in the original and patched method.
+ * <p>
+ * The fingerprint of a label is a rolling hash of the last {@link Instrumenter#MAX_PREV_INSNS} instructions
+ * before the label, excluding labels, line numbers and frames. Each instruction is hashed from the same
+ * fields as {@link InsnNodeUtils#convertNodeToString(AbstractInsnNode)}, without building strings.
+ * <p>
+ * Labels with the same window, e.g. repeated code in a method, are distinguished by the number of
+ * previous labels with the same window. So the fingerprints of different labels in a method differ
+ * unless the 64-bit hash collides.
+ * <p>
+ * Add every instruction of the method in order with {@link #add}, as {@link InstructionVisitor} reports them,
+ * and call {@link #visitLabel()} at every label.
+ * </p>
+ */
+public class BranchFingerprint {
+    private static final int WINDOW = Instrumenter.MAX_PREV_INSNS;
+    private static final long FNV_OFFSET = 0xCBF29CE484222325L;
+    private static final long FNV_PRIME = 0x100000001B3L;
+    private static final long BASE = 0x9E3779B97F4A7C15L;
+    private static final long BASE_POWER;
+
+    static {
+        long power = 1;
+        for (int i = 0; i < WINDOW; i++)
+            power *= BASE;
+        BASE_POWER = power;
+    }
+
+    private final String methodKey;
+    private final long seed;
+    private final long[] hashes = new long[WINDOW];
+    // Instructions in the window as strings, null if sources are not recorded
+    private final String[] sources;
+    private int next = 0;
+    private int size = 0;
+    private long windowHash = 0;
+    private final Map<Long, Integer> occurrences = new HashMap<>();
+    private int lastOccurrence = 0;
+
+    /**
+     * @param className  class name
+     * @param methodName method name
+     * @param methodDesc method descriptor
+     * @param recordSources true to keep the instructions for {@link #getSource()}
+     */
+    public BranchFingerprint(String className, String methodName, String methodDesc, boolean recordSources) {
+        this.methodKey = className + "::" + methodName + "::" + methodDesc + "::";
+        this.seed = hashString(FNV_OFFSET, methodKey);
+        this.sources = recordSources ? new String[WINDOW] : null;
+    }
+
+    public BranchFingerprint(String className, String methodName, String methodDesc) {
+        this(className, methodName, methodDesc, false);
+    }
+
+    /**
+     * Add the next node of the method. Labels, line numbers and frames are ignored.
+     * Operands are same with {@link InstructionVisitor#visitNode}.
+     *
+     * @param type     type of the node
+     * @param opcode   opcode, -1 for labels, line numbers and frames
+     * @param owner    owner of the field or method
+     * @param name     name of the field, method or invokedynamic
+     * @param desc     descriptor or type
+     * @param operand1 first int operand
+     * @param operand2 second int operand
+     */
+    public void add(int type, int opcode, String owner, String name, String desc, int operand1, int operand2) {
+        if (opcode < 0)
+            return;
+
+        long hash = hashInstruction(type, opcode, owner, name, desc, operand1, operand2);
+        long removed = size == WINDOW ? hashes[next] : 0;
+        windowHash = windowHash * BASE + hash - removed * BASE_POWER;
+        hashes[next] = hash;
+        if (sources != null)
+            sources[next] = InsnNodeUtils.convertToString(type, opcode, owner, name, desc, operand1, operand2);
+        next = (next + 1) % WINDOW;
+        if (size < WINDOW)
+            size++;
+    }
+
+    /**
+     * Compute the fingerprint of a label at the current position.
+     * Should be called once for every label of the method, in order.
+     *
+     * @return fingerprint of the label
+     */
+    public long visitLabel() {
+        long windowFingerprint = mix(seed ^ windowHash ^ size);
+        Integer occurrence = occurrences.get(windowFingerprint);
+        lastOccurrence = occurrence == null ? 0 : occurrence;
+        occurrences.put(windowFingerprint, lastOccurrence + 1);
+        return mix(windowFingerprint + lastOccurrence * BASE);
+    }
+
+    /**
+     * Readable source of the last fingerprint, for debugging.
+     * Should be called right after {@link #visitLabel()}, and only if sources are recorded.
+     *
+     * @return method, instructions in the window from the closest one, and the occurrence
+     */
+    public String getSource() {
+        StringBuilder source = new StringBuilder(methodKey);
+        for (int i = 1; i <= size; i++) {
+            source.append(sources[(next - i + WINDOW) % WINDOW]).append(';');
+        }
+        return source.append('#').append(lastOccurrence).toString();
+    }
+
+    private static long hashInstruction(int type, int opcode, String owner, String name, String desc,
+            int operand1, int operand2) {
+        long hash = FNV_OFFSET;
+        hash = hashInt(hash, type);
+        hash = hashInt(hash, opcode);
+        if (owner != null)
+            hash = hashString(hash, owner);
+        if (name != null)
+            hash = hashString(hash, name);
+        if (desc != null)
+            hash = hashString(hash, desc);
+        switch (type) {
+            case AbstractInsnNode.IINC_INSN:
+            case AbstractInsnNode.INT_INSN:
+            case AbstractInsnNode.MULTIANEWARRAY_INSN:
+                hash = hashInt(hash, operand1);
+                break;
+            case AbstractInsnNode.TABLESWITCH_INSN:
+                hash = hashInt(hashInt(hash, operand1), operand2);
+                break;
+            default:
+                // No int operand in the fingerprint, e.g. jumps, loads and LDC
+                break;
+        }
+        return mix(hash);
+    }
+
+    // FNV-1a over the characters
+    private static long hashString(long hash, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+        }
+        return (hash ^ value.length()) * FNV_PRIME;
+    }
+
+    private static long hashInt(long hash, int value) {
+        return (hash ^ value) * FNV_PRIME;
+    }
+
+    // Finalizer of SplitMix64
+    private static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+        value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+        return value ^ (value >>> 31);
+    }
+}
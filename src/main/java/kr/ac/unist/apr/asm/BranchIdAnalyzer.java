@@ -0,0 +1,191 @@
+package kr.ac.unist.apr.asm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+
+import kr.ac.unist.apr.BranchSelection;
+import kr.ac.unist.apr.Instrumenter;
+import kr.ac.unist.apr.Main;
+import kr.ac.unist.apr.utils.InsnNodeUtils;
+
+/**
+ * Method visitor that computes the branch IDs of an original method, while the method is read.
+ * <p>
+ * Each jump reserves an ID in order, and its target label is keyed by the fingerprint of the label.
+ * Jumps to the same label share the fingerprint, and the last ID is used.
+ * If the fingerprints of different labels collide, branches at those labels are not instrumented.
+ * Targets of forward jumps are resolved at {@link #visitEnd()}, so the IDs are valid after it.
+ * </p>
+ *
+ * @see BranchFingerprint
+ * @see MethodInstrumenter
+ */
+public class BranchIdAnalyzer extends InstructionVisitor {
+    private final String className;
+    private final String methodName;
+    private final String methodDesc;
+    private final int firstId;
+    private final BranchSelection selection;
+    private final BiConsumer<Long, String> hashStrings;
+
+    // Null if the legacy fingerprint is used
+    private final BranchFingerprint fingerprint;
+    private final Map<Label, Long> labelFingerprints = new HashMap<>();
+    private final Map<Label, String> labelSources = new HashMap<>();
+    private final Map<Long, Label> fingerprintLabels = new HashMap<>();
+    private final Set<Long> collisions = new HashSet<>();
+
+    // Every node as string and the index of each label, for the legacy fingerprint
+    private final List<String> nodes;
+    private final Map<Label, Integer> labelIndices;
+
+    private final List<Label> jumpLabels = new ArrayList<>();
+    private Map<Long, Integer> ids = null;
+
+    /**
+     * @param api               ASM API version
+     * @param className         class name
+     * @param methodName        method name
+     * @param methodDesc        method descriptor
+     * @param firstId           branch ID of the first jump instruction in the method
+     * @param selection         branches to instrument, only its branch IDs are used
+     * @param legacyFingerprint true to use the legacy fingerprint
+     * @param hashStrings       receives the fingerprint and the hash source string of each branch, or null
+     */
+    public BranchIdAnalyzer(int api, String className, String methodName, String methodDesc, int firstId,
+            BranchSelection selection, boolean legacyFingerprint, BiConsumer<Long, String> hashStrings) {
+        this(api, className, methodName, methodDesc, firstId, selection, legacyFingerprint ? null
+                : new BranchFingerprint(className, methodName, methodDesc, hashStrings != null), hashStrings);
+    }
+
+    // Computes the fingerprints with the given object, or the legacy fingerprint if it is null
+    BranchIdAnalyzer(int api, String className, String methodName, String methodDesc, int firstId,
+            BranchSelection selection, BranchFingerprint fingerprint, BiConsumer<Long, String> hashStrings) {
+        super(api, (MethodVisitor) null);
+        this.className = className;
+        this.methodName = methodName;
+        this.methodDesc = methodDesc;
+        this.firstId = firstId;
+        this.selection = selection;
+        this.hashStrings = hashStrings;
+        this.fingerprint = fingerprint;
+        if (fingerprint == null) {
+            this.nodes = new ArrayList<>();
+            this.labelIndices = new HashMap<>();
+        } else {
+            this.nodes = null;
+            this.labelIndices = null;
+        }
+    }
+
+    @Override
+    protected void visitNode(int type, int opcode, String owner, String name, String desc, int operand1,
+            int operand2) {
+        if (fingerprint != null)
+            fingerprint.add(type, opcode, owner, name, desc, operand1, operand2);
+        else
+            nodes.add(InsnNodeUtils.convertToString(type, opcode, owner, name, desc, operand1, operand2));
+    }
+
+    @Override
+    public void visitLabel(Label label) {
+        super.visitLabel(label);
+        if (fingerprint == null) {
+            labelIndices.put(label, nodes.size() - 1);
+            return;
+        }
+
+        // Fingerprint of every label, since probes are inserted at every label with a known fingerprint
+        long hashed = fingerprint.visitLabel();
+        labelFingerprints.put(label, hashed);
+        if (hashStrings != null)
+            labelSources.put(label, fingerprint.getSource());
+        if (fingerprintLabels.putIfAbsent(hashed, label) != null)
+            collisions.add(hashed);
+    }
+
+    @Override
+    public void visitJumpInsn(int opcode, Label label) {
+        super.visitJumpInsn(opcode, label);
+        jumpLabels.add(label);
+    }
+
+    @Override
+    public void visitEnd() {
+        super.visitEnd();
+        ids = fingerprint != null ? computeIds() : computeLegacyIds();
+    }
+
+    private Map<Long, Integer> computeIds() {
+        if (!collisions.isEmpty())
+            Main.LOGGER.warning("Fingerprint collision in " + className + "::" + methodName + methodDesc + ", "
+                    + collisions.size() + " fingerprints are not instrumented");
+
+        Map<Long, Integer> ids = new HashMap<>();
+        int nextId = firstId;
+        for (Label label : jumpLabels) {
+            int branchId = nextId++;
+            if (!selection.isIdSelected(branchId))
+                continue;
+
+            long hashed = labelFingerprints.get(label);
+            if (collisions.contains(hashed))
+                continue;
+            if (hashStrings != null)
+                hashStrings.accept(hashed, labelSources.get(label));
+            ids.put(hashed, branchId);
+        }
+        return ids;
+    }
+
+    // Hash of every node before the target label, except the first MAX_PREV_INSNS nodes of the method
+    private Map<Long, Integer> computeLegacyIds() {
+        Map<Long, Integer> ids = new HashMap<>();
+        int nextId = firstId;
+        for (Label label : jumpLabels) {
+            int branchId = nextId++;
+            if (!selection.isIdSelected(branchId))
+                continue;
+
+            StringBuilder hashSource = new StringBuilder();
+            hashSource.append(className).append("::").append(methodName).append("::").append(methodDesc)
+                    .append("::");
+            for (int j = labelIndices.get(label) - 1; j >= 0 && j >= Instrumenter.MAX_PREV_INSNS; j--) {
+                String nodeString = nodes.get(j);
+                if (nodeString.length() > 0)
+                    hashSource.append(nodeString).append(';');
+            }
+            String source = hashSource.toString();
+            long hashed = source.hashCode();
+            if (hashStrings != null)
+                hashStrings.accept(hashed, source);
+
+            if (ids.containsKey(hashed))
+                Main.LOGGER.finer("Duplicated ID: " + hashed);
+            ids.put(hashed, branchId);
+        }
+        return ids;
+    }
+
+    /**
+     * @return number of jump instructions, i.e. branch IDs reserved by the method
+     */
+    public int getJumpCount() {
+        return jumpLabels.size();
+    }
+
+    /**
+     * @return branch ID of each fingerprint, or null before {@link #visitEnd()}
+     */
+    public Map<Long, Integer> getIds() {
+        return ids;
+    }
+}
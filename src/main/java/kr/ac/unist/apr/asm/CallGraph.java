@@ -0,0 +1,159 @@
+package kr.ac.unist.apr.asm;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+
+/**
+ * Call graph of the classes in the target program.
+ * <p>
+ * Methods are identified by <code>internalClassName.methodName(descriptor)</code>.
+ * Call sites are resolved with class hierarchy analysis: a call is linked to the nearest
+ * declaration in the super types of the owner, and to every override in the sub types of the owner.
+ * Calls to classes outside of the program are ignored.
+ * </p>
+ */
+public class CallGraph {
+    private final Map<String, Set<String>> declaredMethods = new HashMap<>();
+    private final Map<String, List<String>> superTypes = new HashMap<>();
+    private final Map<String, List<String>> subTypes = new HashMap<>();
+    private final Map<String, List<String>> callSites = new HashMap<>();
+
+    /**
+     * Get the key of a method.
+     *
+     * @param owner internal name of the class
+     * @param name  method name
+     * @param desc  method descriptor
+     * @return key of the method
+     */
+    public static String getMethodKey(String owner, String name, String desc) {
+        return owner + "." + name + desc;
+    }
+
+    /**
+     * Add methods and call sites of a class.
+     *
+     * @param node class to add
+     */
+    public synchronized void addClass(ClassNode node) {
+        Set<String> methods = new HashSet<>();
+        declaredMethods.put(node.name, methods);
+
+        List<String> supers = new ArrayList<>();
+        if (node.superName != null)
+            supers.add(node.superName);
+        supers.addAll(node.interfaces);
+        superTypes.put(node.name, supers);
+        for (String superType : supers) {
+            subTypes.computeIfAbsent(superType, k -> new ArrayList<>()).add(node.name);
+        }
+
+        for (MethodNode method : node.methods) {
+            methods.add(method.name + method.desc);
+            List<String> calls = new ArrayList<>();
+            for (AbstractInsnNode insn : method.instructions) {
+                if (insn.getType() == AbstractInsnNode.METHOD_INSN) {
+                    MethodInsnNode call = (MethodInsnNode) insn;
+                    calls.add(getMethodKey(call.owner, call.name, call.desc));
+                }
+            }
+            callSites.put(getMethodKey(node.name, method.name, method.desc), calls);
+        }
+    }
+
+    /**
+     * Get the methods within the given distance from the seed methods.
+     * <p>
+     * Both callers and callees are neighbours.
+     * </p>
+     *
+     * @param seeds    keys of the seed methods
+     * @param distance maximum number of calls from the seeds, 0 to return only the seeds
+     * @return keys of the seeds and their neighbours
+     */
+    public synchronized Set<String> getNeighbours(Set<String> seeds, int distance) {
+        Set<String> visited = new HashSet<>(seeds);
+        if (distance <= 0)
+            return visited;
+
+        Map<String, Set<String>> edges = new HashMap<>();
+        for (Map.Entry<String, List<String>> entry : callSites.entrySet()) {
+            String caller = entry.getKey();
+            for (String callSite : entry.getValue()) {
+                for (String callee : resolve(callSite)) {
+                    edges.computeIfAbsent(caller, k -> new HashSet<>()).add(callee);
+                    edges.computeIfAbsent(callee, k -> new HashSet<>()).add(caller);
+                }
+            }
+        }
+
+        Deque<String> current = new ArrayDeque<>(seeds);
+        for (int depth = 0; depth < distance && !current.isEmpty(); depth++) {
+            Deque<String> next = new ArrayDeque<>();
+            for (String method : current) {
+                for (String neighbour : edges.getOrDefault(method, Collections.emptySet())) {
+                    if (visited.add(neighbour))
+                        next.add(neighbour);
+                }
+            }
+            current = next;
+        }
+        return visited;
+    }
+
+    /**
+     * Resolve a call site to the methods in the program that may be invoked.
+     *
+     * @param callSite key of the called method
+     * @return keys of the invoked methods
+     */
+    private Set<String> resolve(String callSite) {
+        int nameIndex = callSite.indexOf('.');
+        String owner = callSite.substring(0, nameIndex);
+        String method = callSite.substring(nameIndex + 1);
+        Set<String> targets = new HashSet<>();
+
+        // Nearest declaration in the owner or its super types
+        Deque<String> queue = new ArrayDeque<>();
+        Set<String> visited = new HashSet<>();
+        queue.add(owner);
+        while (!queue.isEmpty()) {
+            String type = queue.poll();
+            if (!visited.add(type))
+                continue;
+            Set<String> methods = declaredMethods.get(type);
+            if (methods != null && methods.contains(method)) {
+                targets.add(type + "." + method);
+                break;
+            }
+            queue.addAll(superTypes.getOrDefault(type, Collections.emptyList()));
+        }
+
+        // Overrides in sub types
+        queue.clear();
+        queue.addAll(subTypes.getOrDefault(owner, Collections.emptyList()));
+        visited.clear();
+        while (!queue.isEmpty()) {
+            String type = queue.poll();
+            if (!visited.add(type))
+                continue;
+            Set<String> methods = declaredMethods.get(type);
+            if (methods != null && methods.contains(method))
+                targets.add(type + "." + method);
+            queue.addAll(subTypes.getOrDefault(type, Collections.emptyList()));
+        }
+        return targets;
+    }
+}
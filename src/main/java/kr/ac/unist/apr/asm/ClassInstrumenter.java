@@ -0,0 +1,184 @@
+package kr.ac.unist.apr.asm;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.FieldNode;
+import org.objectweb.asm.tree.MethodNode;
+
+/**
+ * Class visitor that instruments a class in a single pass from a ClassReader to a ClassWriter.
+ * <p>
+ * Methods with the same name and descriptor in the original class are instrumented by {@link MethodInstrumenter}.
+ * Other methods, and methods without any instruction to insert, are passed to the writer as is,
+ * so a writer sharing the constant pool of the reader copies them from the class file with their frames.
+ * The field snapshot method and the <code>greyboxInstrumented</code> field are added at the end of the class.
+ * </p>
+ * <p>
+ * With {@link #setOptimizedProbes(boolean)}, methods with branches are kept as trees until their ends,
+ * to place their probes on the control-flow graph.
+ * </p>
+ * <p>
+ * If the class already has the <code>greyboxInstrumented</code> field, nothing is inserted and
+ * {@link #isAlreadyInstrumented()} is true after the class is visited.
+ * </p>
+ */
+public class ClassInstrumenter extends ClassVisitor {
+    private final String className;
+    private final Map<String, Map<Long, Integer>> methodIds;
+    private final Set<String> methods;
+    private final ProbeMode probeMode;
+    private final boolean legacyFingerprint;
+    private boolean optimizedProbes = false;
+
+    private String internalName;
+    private int access;
+    private final List<FieldNode> fields = new ArrayList<>();
+    private boolean alreadyInstrumented = false;
+    // Created at the first method, after every field is visited
+    private FieldSnapshotGenerator snapshot = null;
+    private final List<MethodInstrumenter> instrumenters = new ArrayList<>();
+
+    /**
+     * @param api               ASM API version
+     * @param classVisitor      visitor to pass the instrumented class, usually a ClassWriter
+     * @param className         relative path of the class file, e.g. pkg/Foo.class
+     * @param methodIds         branch IDs of each method of the original class, keyed by name and descriptor
+     * @param methods           name and descriptor of methods to instrument, or null to instrument every method
+     * @param probeMode         kind of inserted probes
+     * @param legacyFingerprint true if the branch IDs are computed with the legacy fingerprint
+     */
+    public ClassInstrumenter(int api, ClassVisitor classVisitor, String className,
+            Map<String, Map<Long, Integer>> methodIds, Set<String> methods, ProbeMode probeMode,
+            boolean legacyFingerprint) {
+        super(api, classVisitor);
+        this.className = className;
+        this.methodIds = methodIds;
+        this.methods = methods;
+        this.probeMode = probeMode;
+        this.legacyFingerprint = legacyFingerprint;
+    }
+
+    /**
+     * Place probes on the control-flow graph of each method, instead of every branch.
+     *
+     * @param optimizedProbes true to place probes with {@link ProbePlanner}, for counting probe modes
+     * @see MethodInstrumenter#setOptimizedPlacement(MethodNode, int[])
+     */
+    public void setOptimizedProbes(boolean optimizedProbes) {
+        this.optimizedProbes = optimizedProbes;
+    }
+
+    @Override
+    public void visit(int version, int access, String name, String signature, String superName,
+            String[] interfaces) {
+        this.internalName = name;
+        this.access = access;
+        super.visit(version, access, name, signature, superName, interfaces);
+    }
+
+    @Override
+    public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object value) {
+        if (name.equals("greyboxInstrumented"))
+            alreadyInstrumented = true;
+        fields.add(new FieldNode(access, name, descriptor, signature, value));
+        return super.visitField(access, name, descriptor, signature, value);
+    }
+
+    @Override
+    public MethodVisitor visitMethod(int access, String name, String descriptor, String signature,
+            String[] exceptions) {
+        MethodVisitor mv = super.visitMethod(access, name, descriptor, signature, exceptions);
+        Map<Long, Integer> ids = methodIds.get(name + descriptor);
+        if (alreadyInstrumented || ids == null || (methods != null && !methods.contains(name + descriptor)))
+            return mv;
+        if (snapshot == null)
+            snapshot = new FieldSnapshotGenerator(internalName, this.access, fields,
+                    className.replace(File.separatorChar, '.'));
+
+        // skip logging field change if the class is an interface or the method is an abstract method
+        boolean hasCode = (this.access & Opcodes.ACC_INTERFACE) == 0 && (access & Opcodes.ACC_ABSTRACT) == 0;
+        boolean insertInit = hasCode && probeMode.needsInit();
+        boolean logFields = hasCode && !name.equals("<init>") && !snapshot.isEmpty();
+        if (ids.isEmpty() && !insertInit && !logFields)
+            return mv;
+
+        MethodInstrumenter instrumenter = new MethodInstrumenter(api, mv, className, name, descriptor, ids,
+                probeMode, legacyFingerprint);
+        instrumenter.setInsertInit(insertInit);
+        if (optimizedProbes && hasCode && !ids.isEmpty()) {
+            int[] counterIds = new TreeSet<>(ids.values()).stream().mapToInt(Integer::intValue).toArray();
+            instrumenter.setOptimizedPlacement(new MethodNode(api, access, name, descriptor, signature, exceptions),
+                    counterIds);
+        }
+        if (logFields)
+            instrumenter.setFieldSnapshot(snapshot, (access & Opcodes.ACC_STATIC) != 0);
+        instrumenters.add(instrumenter);
+        return instrumenter;
+    }
+
+    @Override
+    public void visitEnd() {
+        if (!alreadyInstrumented) {
+            boolean snapshotCalled = getFieldLogCount() > 0;
+            if (snapshotCalled)
+                snapshot.generateField(cv);
+
+            // Add dummy field to check instrumented
+            FieldVisitor fv = super.visitField(Opcodes.ACC_PUBLIC + Opcodes.ACC_FINAL + Opcodes.ACC_STATIC,
+                    "greyboxInstrumented", "I", null, Integer.valueOf(0));
+            if (fv != null)
+                fv.visitEnd();
+
+            if (snapshotCalled)
+                snapshot.generateMethod(cv);
+        }
+        super.visitEnd();
+    }
+
+    /**
+     * @return true if the class has been instrumented before
+     */
+    public boolean isAlreadyInstrumented() {
+        return alreadyInstrumented;
+    }
+
+    /**
+     * @return number of inserted branch probes
+     */
+    public int getProbeCount() {
+        int count = 0;
+        for (MethodInstrumenter instrumenter : instrumenters)
+            count += instrumenter.getProbeCount();
+        return count;
+    }
+
+    /**
+     * @return count of each branch ID of the optimized methods, as pairs of a counter ID and its coefficient
+     */
+    public Map<Integer, int[]> getProbeEquations() {
+        Map<Integer, int[]> equations = new TreeMap<>();
+        for (MethodInstrumenter instrumenter : instrumenters)
+            equations.putAll(instrumenter.getProbeEquations());
+        return equations;
+    }
+
+    /**
+     * @return number of inserted field log calls
+     */
+    public int getFieldLogCount() {
+        int count = 0;
+        for (MethodInstrumenter instrumenter : instrumenters)
+            count += instrumenter.getFieldLogCount();
+        return count;
+    }
+}
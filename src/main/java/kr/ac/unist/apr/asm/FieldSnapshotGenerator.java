@@ -0,0 +1,214 @@
+package kr.ac.unist.apr.asm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.FieldNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+import kr.ac.unist.apr.GlobalStates;
+
+/**
+ * Generates the field snapshot method of a class.
+ * <p>
+ * The snapshot method reads each primitive field declared in the class with GETSTATIC/GETFIELD
+ * and passes its value to GlobalStates.logField(int, long), without reflection or boxing.
+ * Values are passed as raw bits in a long.
+ * Instance fields are skipped if the instance is null, i.e. called from a static method.
+ * The method returns at once if GlobalStates.ENABLED is false, so no field is read when nothing is recorded.
+ * </p>
+ * <p>
+ * Fields are identified by integer IDs. On its first call, the snapshot method registers the names and types
+ * of the fields to GlobalStates, and keeps the first ID in a synthetic static field of the class.
+ * </p>
+ * <p>
+ * The result is same with the reflective GlobalStates.logFieldChanges(Object, String).
+ * </p>
+ */
+public class FieldSnapshotGenerator {
+    /**
+     * Name of the generated snapshot method
+     */
+    public static final String SNAPSHOT_METHOD_NAME = "greybox$snapshot";
+    /**
+     * Name of the generated field that keeps the first field ID of the class, 0 if not registered
+     */
+    public static final String FIELD_BASE_NAME = "greybox$fieldBase";
+
+    private final String className;
+    private final int classAccess;
+    private final String ownerName;
+    private final List<FieldNode> fields = new ArrayList<>();
+
+    /**
+     * @param className   internal name of the class to snapshot
+     * @param classAccess access flags of the class
+     * @param fields      fields declared in the class, in the order of declaration
+     * @param ownerName   name of the class in the field log, e.g. pkg.Foo.class
+     */
+    public FieldSnapshotGenerator(String className, int classAccess, List<FieldNode> fields, String ownerName) {
+        this.className = className;
+        this.classAccess = classAccess;
+        this.ownerName = ownerName;
+        for (FieldNode field : fields) {
+            if (field.name.equals("greyboxInstrumented"))
+                continue;
+            int sort = Type.getType(field.desc).getSort();
+            if (sort != Type.OBJECT && sort != Type.ARRAY)
+                this.fields.add(field);
+        }
+    }
+
+    /**
+     * @return true if the class has no primitive field, so nothing is logged
+     */
+    public boolean isEmpty() {
+        return fields.isEmpty();
+    }
+
+    /**
+     * Instructions that call the snapshot method.
+     *
+     * @param isStatic true if called from a static method
+     * @return instructions to insert before return and throw
+     */
+    public InsnList getCallInstructions(boolean isStatic) {
+        InsnList instructions = new InsnList();
+        instructions.add(isStatic ? new InsnNode(Opcodes.ACONST_NULL) : new VarInsnNode(Opcodes.ALOAD, 0));
+        instructions.add(new MethodInsnNode(Opcodes.INVOKESTATIC, className, SNAPSHOT_METHOD_NAME, getDescriptor(),
+                (classAccess & Opcodes.ACC_INTERFACE) != 0));
+        return instructions;
+    }
+
+    /**
+     * Add the field of the first field ID to the class.
+     * <p>
+     * Both the field and the snapshot method are private static synthetic,
+     * so they do not change the default serialVersionUID.
+     * </p>
+     *
+     * @param cv visitor of the class, before its end is visited
+     * @see #generateMethod(ClassVisitor)
+     */
+    public void generateField(ClassVisitor cv) {
+        new FieldNode(Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC,
+                FIELD_BASE_NAME, "I", null, null).accept(cv);
+    }
+
+    /**
+     * Add the snapshot method to the class. Fields are logged in the order of declaration.
+     *
+     * @param cv visitor of the class, before its end is visited
+     * @see #generateField(ClassVisitor)
+     */
+    public void generateMethod(ClassVisitor cv) {
+        String globalStates = GlobalStates.STATE_CLASS_NAME.replace('.', '/');
+        MethodNode method = new MethodNode(Opcodes.ASM9,
+                Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC, SNAPSHOT_METHOD_NAME,
+                getDescriptor(), null, null);
+        InsnList instructions = method.instructions;
+
+        // if (!GlobalStates.ENABLED)
+        //   return;
+        LabelNode enabled = new LabelNode(new Label());
+        instructions.add(new FieldInsnNode(Opcodes.GETSTATIC, globalStates, GlobalStates.STATE_ENABLED, "Z"));
+        instructions.add(new JumpInsnNode(Opcodes.IFNE, enabled));
+        instructions.add(new InsnNode(Opcodes.RETURN));
+        instructions.add(enabled);
+
+        // int base = greybox$fieldBase;
+        // if (base == 0)
+        //   greybox$fieldBase = base = GlobalStates.registerFields(owner, names, types);
+        StringBuilder names = new StringBuilder();
+        StringBuilder types = new StringBuilder();
+        for (FieldNode field : fields) {
+            if (names.length() > 0)
+                names.append(';');
+            names.append(field.name);
+            types.append(field.desc.charAt(0));
+        }
+        LabelNode registered = new LabelNode(new Label());
+        instructions.add(new FieldInsnNode(Opcodes.GETSTATIC, className, FIELD_BASE_NAME, "I"));
+        instructions.add(new VarInsnNode(Opcodes.ISTORE, 1));
+        instructions.add(new VarInsnNode(Opcodes.ILOAD, 1));
+        instructions.add(new JumpInsnNode(Opcodes.IFNE, registered));
+        instructions.add(new LdcInsnNode(ownerName));
+        instructions.add(new LdcInsnNode(names.toString()));
+        instructions.add(new LdcInsnNode(types.toString()));
+        instructions.add(new MethodInsnNode(Opcodes.INVOKESTATIC, globalStates,
+                GlobalStates.STATE_FIELD_REGISTER_METHOD_NAME,
+                "(Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;)I", false));
+        instructions.add(new InsnNode(Opcodes.DUP));
+        instructions.add(new FieldInsnNode(Opcodes.PUTSTATIC, className, FIELD_BASE_NAME, "I"));
+        instructions.add(new VarInsnNode(Opcodes.ISTORE, 1));
+        instructions.add(registered);
+
+        for (int i = 0; i < fields.size(); i++) {
+            FieldNode field = fields.get(i);
+            boolean isStatic = (field.access & Opcodes.ACC_STATIC) != 0;
+            LabelNode next = new LabelNode(new Label());
+            if (!isStatic) {
+                // if (instance != null)
+                instructions.add(new VarInsnNode(Opcodes.ALOAD, 0));
+                instructions.add(new JumpInsnNode(Opcodes.IFNULL, next));
+            }
+
+            // GlobalStates.logField(base + i, value);
+            instructions.add(new VarInsnNode(Opcodes.ILOAD, 1));
+            if (i > 0) {
+                instructions.add(Instruction.pushInt(i));
+                instructions.add(new InsnNode(Opcodes.IADD));
+            }
+            if (isStatic) {
+                instructions.add(new FieldInsnNode(Opcodes.GETSTATIC, className, field.name, field.desc));
+            } else {
+                instructions.add(new VarInsnNode(Opcodes.ALOAD, 0));
+                instructions.add(new FieldInsnNode(Opcodes.GETFIELD, className, field.name, field.desc));
+            }
+            addToLongBits(instructions, field.desc);
+            instructions.add(new MethodInsnNode(Opcodes.INVOKESTATIC, globalStates,
+                    GlobalStates.STATE_FIELD_VALUE_METHOD_NAME, "(IJ)V", false));
+
+            if (!isStatic)
+                instructions.add(next);
+        }
+        instructions.add(new InsnNode(Opcodes.RETURN));
+        method.accept(cv);
+    }
+
+    private String getDescriptor() {
+        return "(L" + className + ";)V";
+    }
+
+    // Convert the primitive value on the stack to long without losing bits.
+    private static void addToLongBits(InsnList instructions, String desc) {
+        switch (desc.charAt(0)) {
+        case 'J':
+            break;
+        case 'F':
+            instructions.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "java/lang/Float", "floatToRawIntBits",
+                    "(F)I", false));
+            instructions.add(new InsnNode(Opcodes.I2L));
+            break;
+        case 'D':
+            instructions.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "java/lang/Double", "doubleToRawLongBits",
+                    "(D)J", false));
+            break;
+        default: // Z, B, C, S, I
+            instructions.add(new InsnNode(Opcodes.I2L));
+            break;
+        }
+    }
+}
@@ -2,6 +2,7 @@ package kr.ac.unist.apr.asm;
 
 import org.objectweb.asm.Label;
 import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
 import org.objectweb.asm.tree.FieldInsnNode;
 import org.objectweb.asm.tree.InsnList;
 import org.objectweb.asm.tree.InsnNode;
@@ -14,8 +15,28 @@ import org.objectweb.asm.tree.MethodInsnNode;
 import kr.ac.unist.apr.GlobalStates;
 
 public class Instruction {
+    /**
+     * Number of bits of an edge location, same as {@link GlobalStates#EDGE_MAP_BITS}
+     */
+    public static final int EDGE_MAP_BITS = 16;
+    /**
+     * Number of buckets of the edge hit map, same as {@link GlobalStates#EDGE_MAP_SIZE}
+     */
+    public static final int EDGE_MAP_SIZE = 1 << EDGE_MAP_BITS;
+
     public static InsnList getInitInstructions() {
+        return getInitInstructions(ProbeMode.LEGACY);
+    }
+
+    /**
+     * Instructions inserted at the entry of each instrumented method.
+     * @param mode probe mode
+     * @return instructions to initialize GlobalStates, empty if the mode does not need it
+     */
+    public static InsnList getInitInstructions(ProbeMode mode) {
         InsnList initInstructions=new InsnList();
+        if (!mode.needsInit())
+            return initInstructions; // GlobalStates initializes itself when it is loaded
 
         // if (System.getenv("GREYBOX_BRANCH").equals("1"))
         initInstructions.add(new LdcInsnNode(GlobalStates.STATE_ENV_RECORD));
@@ -50,14 +71,29 @@ public class Instruction {
         return initInstructions;
     }
     public static InsnList insertNewInstructions(int branchId) {
+        return insertNewInstructions(branchId,ProbeMode.LEGACY);
+    }
+
+    /**
+     * Instructions inserted at each branch.
+     * @param branchId branch ID
+     * @param mode probe mode
+     * @return instructions to count the execution of the branch
+     */
+    public static InsnList insertNewInstructions(int branchId,ProbeMode mode) {
+        if (mode==ProbeMode.BOOTSTRAP)
+            return getCounterInstructions(branchId);
+        if (mode==ProbeMode.CONCURRENT)
+            return getConcurrentCounterInstructions(branchId);
+        if (mode==ProbeMode.EDGE)
+            return getEdgeInstructions(branchId);
+        if (mode==ProbeMode.HIT)
+            return getHitInstructions(branchId);
+
         InsnList newInstructions=getInitInstructions();
 
-        // GlobalStates.curId = GlobalStates.previousId ^ branchId;
-        // newInstructions.add(new FrameNode(Opcodes.F_APPEND, 1, new Object[] {Opcodes.INTEGER}, 0, null));
-        // newInstructions.add(new FieldInsnNode(Opcodes.GETSTATIC, GlobalStates.STATE_CLASS_NAME.replace('.', '/'),
-        //     GlobalStates.STATE_PREV_ID, "I"));
-        newInstructions.add(new IntInsnNode(Opcodes.SIPUSH,branchId));
-        // newInstructions.add(new InsnNode(Opcodes.IXOR));
+        // GlobalStates.curId = branchId;
+        newInstructions.add(pushInt(branchId));
         newInstructions.add(new FieldInsnNode(Opcodes.PUTSTATIC, GlobalStates.STATE_CLASS_NAME.replace('.', '/'), "curId", "I"));
 
         // GlobalStates.branchCount[GlobalStates.curId]++;
@@ -69,12 +105,92 @@ public class Instruction {
         newInstructions.add(new InsnNode(Opcodes.IADD));
         newInstructions.add(new InsnNode(Opcodes.IASTORE));
 
-        // GlobalStates.previousId = GlobalStates.curId >> 1;
-        newInstructions.add(new FieldInsnNode(Opcodes.GETSTATIC, GlobalStates.STATE_CLASS_NAME.replace('.', '/'), "curId", "I"));
+        return newInstructions;
+    }
+
+    /**
+     * Get the location of a branch in the edge hit map, same as {@link GlobalStates#getEdgeLocation(int)}.
+     * <p>
+     * The instrumenter and result readers use this copy, because calling GlobalStates initializes it
+     * and may register its shutdown hook.
+     * </p>
+     * @param branchId branch ID
+     * @return location, from 0 to EDGE_MAP_SIZE - 1
+     */
+    public static int getEdgeLocation(int branchId) {
+        return (branchId*0x9E3779B1)>>>(32-EDGE_MAP_BITS);
+    }
+
+    /**
+     * Instruction to push an int constant.
+     * <p>
+     * SIPUSH only holds 16-bit values, so larger values are loaded from the constant pool.
+     * </p>
+     * @param value value to push
+     * @return SIPUSH if the value fits in a short, LDC otherwise
+     */
+    public static AbstractInsnNode pushInt(int value) {
+        if (value>=Short.MIN_VALUE && value<=Short.MAX_VALUE)
+            return new IntInsnNode(Opcodes.SIPUSH,value);
+        return new LdcInsnNode(value);
+    }
+
+    // GlobalStates.branchCount[branchId]++;
+    private static InsnList getCounterInstructions(int branchId) {
+        InsnList newInstructions=new InsnList();
+        newInstructions.add(new FieldInsnNode(Opcodes.GETSTATIC, GlobalStates.STATE_CLASS_NAME.replace('.', '/'), GlobalStates.STATE_BRANCH_COUNT, "[I"));
+        newInstructions.add(pushInt(branchId));
+        newInstructions.add(new InsnNode(Opcodes.DUP2));
+        newInstructions.add(new InsnNode(Opcodes.IALOAD));
+        newInstructions.add(new InsnNode(Opcodes.ICONST_1));
+        newInstructions.add(new InsnNode(Opcodes.IADD));
+        newInstructions.add(new InsnNode(Opcodes.IASTORE));
+        return newInstructions;
+    }
+
+    // GlobalStates.branchHits[branchId] = true;
+    private static InsnList getHitInstructions(int branchId) {
+        InsnList newInstructions=new InsnList();
+        newInstructions.add(new FieldInsnNode(Opcodes.GETSTATIC, GlobalStates.STATE_CLASS_NAME.replace('.', '/'), GlobalStates.STATE_BRANCH_HITS, "[Z"));
+        newInstructions.add(pushInt(branchId));
+        newInstructions.add(new InsnNode(Opcodes.ICONST_1));
+        newInstructions.add(new InsnNode(Opcodes.BASTORE));
+        return newInstructions;
+    }
+
+    // location = getEdgeLocation(branchId);
+    // int v = (GlobalStates.edgeHits[GlobalStates.previousId ^ location] & 0xFF) + 1;
+    // GlobalStates.edgeHits[GlobalStates.previousId ^ location] = (byte) (v + (v >> 8)); // 255 wraps to 1, not 0
+    // GlobalStates.previousId = location >> 1;
+    private static InsnList getEdgeInstructions(int branchId) {
+        int location=getEdgeLocation(branchId);
+        InsnList newInstructions=new InsnList();
+        newInstructions.add(new FieldInsnNode(Opcodes.GETSTATIC, GlobalStates.STATE_CLASS_NAME.replace('.', '/'), GlobalStates.STATE_EDGE_HITS, "[B"));
+        newInstructions.add(new FieldInsnNode(Opcodes.GETSTATIC, GlobalStates.STATE_CLASS_NAME.replace('.', '/'), GlobalStates.STATE_PREV_ID, "I"));
+        newInstructions.add(pushInt(location));
+        newInstructions.add(new InsnNode(Opcodes.IXOR));
+        newInstructions.add(new InsnNode(Opcodes.DUP2));
+        newInstructions.add(new InsnNode(Opcodes.BALOAD));
+        newInstructions.add(pushInt(0xFF));
+        newInstructions.add(new InsnNode(Opcodes.IAND));
         newInstructions.add(new InsnNode(Opcodes.ICONST_1));
+        newInstructions.add(new InsnNode(Opcodes.IADD));
+        newInstructions.add(new InsnNode(Opcodes.DUP));
+        newInstructions.add(new IntInsnNode(Opcodes.BIPUSH, 8));
         newInstructions.add(new InsnNode(Opcodes.ISHR));
+        newInstructions.add(new InsnNode(Opcodes.IADD));
+        newInstructions.add(new InsnNode(Opcodes.BASTORE));
+        newInstructions.add(pushInt(location>>1));
         newInstructions.add(new FieldInsnNode(Opcodes.PUTSTATIC, GlobalStates.STATE_CLASS_NAME.replace('.', '/'), GlobalStates.STATE_PREV_ID, "I"));
+        return newInstructions;
+    }
 
+    // GlobalStates.countBranch(branchId);
+    private static InsnList getConcurrentCounterInstructions(int branchId) {
+        InsnList newInstructions=new InsnList();
+        newInstructions.add(pushInt(branchId));
+        newInstructions.add(new MethodInsnNode(Opcodes.INVOKESTATIC, GlobalStates.STATE_CLASS_NAME.replace('.', '/'),
+                GlobalStates.STATE_COUNT_METHOD_NAME, "(I)V", false));
         return newInstructions;
     }
 }
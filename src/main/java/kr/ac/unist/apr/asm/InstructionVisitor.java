@@ -0,0 +1,173 @@
+package kr.ac.unist.apr.asm;
+
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+
+/**
+ * Method visitor that sees the code of a method as the node list of {@link MethodNode}, without building it.
+ * <p>
+ * Every event that adds a node to {@link MethodNode#instructions}, i.e. instructions, labels, line numbers and
+ * frames, is reported to {@link #visitNode} before it is passed to the next visitor, and to {@link #visitNodeEnd}
+ * after. So the position of a node is the number of {@link #visitNode} calls before it, same with its index in
+ * the node list of the method read with the same flags.
+ * <p>
+ * Operands of each type of node:
+ * <ul>
+ * <li>field and method instructions: owner, name and desc</li>
+ * <li>invokedynamic: name and desc</li>
+ * <li>type instructions: desc is the type</li>
+ * <li>multianewarray: desc, and operand1 is the dimensions</li>
+ * <li>int and var instructions: operand1 is the operand or the variable</li>
+ * <li>iinc: operand1 is the increment, and operand2 is the variable</li>
+ * <li>tableswitch: operand1 and operand2 are the min and max keys</li>
+ * <li>frames and line numbers: operand1 is the frame type or the line</li>
+ * </ul>
+ * Other operands are null or 0.
+ * </p>
+ */
+public abstract class InstructionVisitor extends MethodVisitor {
+    protected InstructionVisitor(int api, MethodVisitor methodVisitor) {
+        super(api, methodVisitor);
+    }
+
+    /**
+     * Called before a node is passed to the next visitor.
+     *
+     * @param type     type of the node, e.g. {@link AbstractInsnNode#FIELD_INSN}
+     * @param opcode   opcode, -1 for labels, line numbers and frames
+     * @param owner    owner of the field or method
+     * @param name     name of the field, method or invokedynamic
+     * @param desc     descriptor or type
+     * @param operand1 first int operand
+     * @param operand2 second int operand
+     */
+    protected abstract void visitNode(int type, int opcode, String owner, String name, String desc, int operand1,
+            int operand2);
+
+    /**
+     * Called after a node is passed to the next visitor.
+     *
+     * @param type   type of the node
+     * @param opcode opcode, -1 for labels, line numbers and frames
+     */
+    protected void visitNodeEnd(int type, int opcode) {
+    }
+
+    @Override
+    public void visitFrame(int type, int numLocal, Object[] local, int numStack, Object[] stack) {
+        visitNode(AbstractInsnNode.FRAME, -1, null, null, null, type, 0);
+        super.visitFrame(type, numLocal, local, numStack, stack);
+        visitNodeEnd(AbstractInsnNode.FRAME, -1);
+    }
+
+    @Override
+    public void visitInsn(int opcode) {
+        visitNode(AbstractInsnNode.INSN, opcode, null, null, null, 0, 0);
+        super.visitInsn(opcode);
+        visitNodeEnd(AbstractInsnNode.INSN, opcode);
+    }
+
+    @Override
+    public void visitIntInsn(int opcode, int operand) {
+        visitNode(AbstractInsnNode.INT_INSN, opcode, null, null, null, operand, 0);
+        super.visitIntInsn(opcode, operand);
+        visitNodeEnd(AbstractInsnNode.INT_INSN, opcode);
+    }
+
+    @Override
+    public void visitVarInsn(int opcode, int var) {
+        visitNode(AbstractInsnNode.VAR_INSN, opcode, null, null, null, var, 0);
+        super.visitVarInsn(opcode, var);
+        visitNodeEnd(AbstractInsnNode.VAR_INSN, opcode);
+    }
+
+    @Override
+    public void visitTypeInsn(int opcode, String type) {
+        visitNode(AbstractInsnNode.TYPE_INSN, opcode, null, null, type, 0, 0);
+        super.visitTypeInsn(opcode, type);
+        visitNodeEnd(AbstractInsnNode.TYPE_INSN, opcode);
+    }
+
+    @Override
+    public void visitFieldInsn(int opcode, String owner, String name, String descriptor) {
+        visitNode(AbstractInsnNode.FIELD_INSN, opcode, owner, name, descriptor, 0, 0);
+        super.visitFieldInsn(opcode, owner, name, descriptor);
+        visitNodeEnd(AbstractInsnNode.FIELD_INSN, opcode);
+    }
+
+    @Override
+    public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+        visitNode(AbstractInsnNode.METHOD_INSN, opcode, owner, name, descriptor, 0, 0);
+        super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+        visitNodeEnd(AbstractInsnNode.METHOD_INSN, opcode);
+    }
+
+    @Override
+    public void visitInvokeDynamicInsn(String name, String descriptor, Handle bootstrapMethodHandle,
+            Object... bootstrapMethodArguments) {
+        visitNode(AbstractInsnNode.INVOKE_DYNAMIC_INSN, Opcodes.INVOKEDYNAMIC, null, name, descriptor, 0, 0);
+        super.visitInvokeDynamicInsn(name, descriptor, bootstrapMethodHandle, bootstrapMethodArguments);
+        visitNodeEnd(AbstractInsnNode.INVOKE_DYNAMIC_INSN, Opcodes.INVOKEDYNAMIC);
+    }
+
+    @Override
+    public void visitJumpInsn(int opcode, Label label) {
+        visitNode(AbstractInsnNode.JUMP_INSN, opcode, null, null, null, 0, 0);
+        super.visitJumpInsn(opcode, label);
+        visitNodeEnd(AbstractInsnNode.JUMP_INSN, opcode);
+    }
+
+    @Override
+    public void visitLabel(Label label) {
+        visitNode(AbstractInsnNode.LABEL, -1, null, null, null, 0, 0);
+        super.visitLabel(label);
+        visitNodeEnd(AbstractInsnNode.LABEL, -1);
+    }
+
+    @Override
+    public void visitLdcInsn(Object value) {
+        visitNode(AbstractInsnNode.LDC_INSN, Opcodes.LDC, null, null, null, 0, 0);
+        super.visitLdcInsn(value);
+        visitNodeEnd(AbstractInsnNode.LDC_INSN, Opcodes.LDC);
+    }
+
+    @Override
+    public void visitIincInsn(int var, int increment) {
+        visitNode(AbstractInsnNode.IINC_INSN, Opcodes.IINC, null, null, null, increment, var);
+        super.visitIincInsn(var, increment);
+        visitNodeEnd(AbstractInsnNode.IINC_INSN, Opcodes.IINC);
+    }
+
+    @Override
+    public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+        visitNode(AbstractInsnNode.TABLESWITCH_INSN, Opcodes.TABLESWITCH, null, null, null, min, max);
+        super.visitTableSwitchInsn(min, max, dflt, labels);
+        visitNodeEnd(AbstractInsnNode.TABLESWITCH_INSN, Opcodes.TABLESWITCH);
+    }
+
+    @Override
+    public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+        visitNode(AbstractInsnNode.LOOKUPSWITCH_INSN, Opcodes.LOOKUPSWITCH, null, null, null, 0, 0);
+        super.visitLookupSwitchInsn(dflt, keys, labels);
+        visitNodeEnd(AbstractInsnNode.LOOKUPSWITCH_INSN, Opcodes.LOOKUPSWITCH);
+    }
+
+    @Override
+    public void visitMultiANewArrayInsn(String descriptor, int numDimensions) {
+        visitNode(AbstractInsnNode.MULTIANEWARRAY_INSN, Opcodes.MULTIANEWARRAY, null, null, descriptor,
+                numDimensions, 0);
+        super.visitMultiANewArrayInsn(descriptor, numDimensions);
+        visitNodeEnd(AbstractInsnNode.MULTIANEWARRAY_INSN, Opcodes.MULTIANEWARRAY);
+    }
+
+    @Override
+    public void visitLineNumber(int line, Label start) {
+        visitNode(AbstractInsnNode.LINE, -1, null, null, null, line, 0);
+        super.visitLineNumber(line, start);
+        visitNodeEnd(AbstractInsnNode.LINE, -1);
+    }
+}
@@ -1,35 +1,39 @@
 package kr.ac.unist.apr.asm;
 
-import java.io.File;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.net.URLClassLoader;
-
+import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassWriter;
 
 public class InstrumentClassWriter extends ClassWriter{
-    private File directory;
-    public InstrumentClassWriter(String directory,int flags) {
+    private final TypeHierarchy hierarchy;
+
+    /**
+     * Class writer that computes frames with a {@link TypeHierarchy}, without loading classes.
+     * @param hierarchy super classes and interfaces of the program
+     * @param flags option flags of {@link ClassWriter}
+     */
+    public InstrumentClassWriter(TypeHierarchy hierarchy,int flags) {
         super(flags);
-        this.directory=new File(directory);
+        this.hierarchy=hierarchy;
     }
 
-    @Override
-    protected String getCommonSuperClass(final String type1, final String type2) {
-        try {
-            return super.getCommonSuperClass(type1, type2);
-        } catch (TypeNotPresentException e) {
-            return "java/lang/Object";
-        }
+    /**
+     * Class writer that copies the constant pool of the class, and the methods not modified by
+     * the visitors, from the reader.
+     * @param reader reader of the class to write
+     * @param hierarchy super classes and interfaces of the program
+     * @param flags option flags of {@link ClassWriter}
+     */
+    public InstrumentClassWriter(ClassReader reader,TypeHierarchy hierarchy,int flags) {
+        super(reader,flags);
+        this.hierarchy=hierarchy;
+    }
+
+    public InstrumentClassWriter(String directory,int flags) {
+        this(new TypeHierarchy(directory),flags);
     }
 
     @Override
-    protected ClassLoader getClassLoader() {
-        try {
-            return URLClassLoader.newInstance(new URL[]{directory.toURI().toURL()});
-        } catch (MalformedURLException e) {
-            // Return default class loader
-            return super.getClassLoader();
-        }
+    protected String getCommonSuperClass(final String type1, final String type2) {
+        return hierarchy.getCommonSuperClass(type1, type2);
     }
 }
@@ -0,0 +1,39 @@
+package kr.ac.unist.apr.asm;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+
+import kr.ac.unist.apr.GlobalStates;
+
+/**
+ * Generates the manifest class read by GlobalStates at runtime.
+ * <p>
+ * The manifest is a class without methods that holds the number of branch IDs of the instrumented program,
+ * so GlobalStates allocates exactly one counter per branch.
+ * </p>
+ *
+ * @see GlobalStates#STATE_MANIFEST_CLASS_NAME
+ */
+public class ManifestGenerator {
+    /**
+     * Relative path of the manifest class file.
+     */
+    public static final String MANIFEST_FILE = GlobalStates.STATE_MANIFEST_CLASS_NAME.replace('.', '/') + ".class";
+
+    /**
+     * Generate the manifest class.
+     *
+     * @param branchCount number of branch IDs, i.e. the last branch ID + 1
+     * @return class file of the manifest
+     */
+    public static byte[] generate(int branchCount) {
+        ClassWriter writer = new ClassWriter(0);
+        // Old class file version, so the manifest loads on any JVM of the target project
+        writer.visit(Opcodes.V1_5, Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL | Opcodes.ACC_SUPER,
+                GlobalStates.STATE_MANIFEST_CLASS_NAME.replace('.', '/'), null, "java/lang/Object", null);
+        writer.visitField(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC | Opcodes.ACC_FINAL,
+                GlobalStates.STATE_MANIFEST_BRANCH_COUNT, "I", null, branchCount).visitEnd();
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+}
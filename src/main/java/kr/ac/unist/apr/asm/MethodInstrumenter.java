@@ -1,12 +1,17 @@
 package kr.ac.unist.apr.asm;
 
-import java.util.ArrayDeque;
-import java.util.Deque;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.Attribute;
 import org.objectweb.asm.Label;
-import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.TypePath;
 import org.objectweb.asm.tree.InsnList;
 import org.objectweb.asm.tree.LabelNode;
 import org.objectweb.asm.tree.MethodNode;
@@ -16,31 +21,155 @@ import kr.ac.unist.apr.utils.InsnNodeUtils;
 
 /**
  * Method visitor for instrumentation.
+ * <p>
+ * Instructions are passed to the next visitor as they are read, and probes are inserted on the way.
+ * The probe of a branch is inserted after the node next to the label of the branch,
+ * and not inserted if the label is the last node of the method.
+ * Field snapshot calls are inserted before every return and throw, and at the end of the method.
+ * </p>
+ * <p>
+ * With {@link #setOptimizedPlacement(MethodNode, int[])}, the method is kept as a tree with a label at the point
+ * of each probe, and {@link ProbePlanner} places the probes on its control-flow graph at the end of the method.
+ * </p>
  * @author YoungJae Kim (FreddyYJ)
  */
-public class MethodInstrumenter extends MethodNode {
+public class MethodInstrumenter extends InstructionVisitor {
     private String className;
-    private Map<Integer,Integer> ids;
+    private String name;
+    private String desc;
+    private Map<Long,Integer> ids;
+    private ProbeMode probeMode;
+    // Null if the legacy fingerprint is used
+    private BranchFingerprint fingerprint;
+    // Every original node as string, for the legacy fingerprint
+    private List<String> nodes;
 
     private int currentLine;
 
-    private Map<LabelNode,InsnList> newInsns=new HashMap<>();
+    private boolean insertInit=false;
+    private FieldSnapshotGenerator snapshot=null;
+    private boolean isStatic;
+
+    // Branch ID of the last label, whose probe is inserted after the next node
+    private Integer pendingId=null;
+    // True if the next node is visited, so the probe is inserted before any following node
+    private boolean probeAfterNode=false;
+    private boolean codeStarted=false;
+    private boolean codeEnded=false;
+
+    private int probeCount=0;
+    private int fieldLogCount=0;
+
+    // Method kept until its end for optimized placement, or null
+    private MethodNode method=null;
+    private MethodVisitor next=null;
+    private int[] counterIds;
+    // Label at the point of each probe, and its branch ID
+    private final Map<LabelNode,Integer> probePoints=new LinkedHashMap<>();
+    private Map<Integer,int[]> probeEquations=Collections.emptyMap();
 
     /**
      * Default constructor.
      * @param api ASM API version
+     * @param methodVisitor visitor to pass the instrumented method
      * @param className class name
-     * @param access access modifier
      * @param name method name
      * @param descriptor method descriptor
-     * @param signature method signature
-     * @param exceptions method exceptions
+     * @param ids branch IDs of the original method
+     * @param probeMode kind of inserted probes
+     * @param legacyFingerprint true if ids are computed with the legacy fingerprint
      */
-    public MethodInstrumenter(int api,String className, int access, String name, String descriptor, String signature,
-            String[] exceptions,Map<Integer,Integer> ids) {
-        super(api, access, name, descriptor, signature, exceptions);
+    public MethodInstrumenter(int api,MethodVisitor methodVisitor,String className, String name, String descriptor,
+            Map<Long,Integer> ids,ProbeMode probeMode,boolean legacyFingerprint) {
+        super(api, methodVisitor);
         this.className=className;
+        this.name=name;
+        this.desc=descriptor;
         this.ids=ids;
+        this.probeMode=probeMode;
+        if (legacyFingerprint)
+            this.nodes=new ArrayList<>();
+        else
+            this.fingerprint=new BranchFingerprint(className, name, descriptor);
+    }
+
+    public MethodInstrumenter(int api,MethodVisitor methodVisitor,String className, String name, String descriptor,
+            Map<Long,Integer> ids,ProbeMode probeMode) {
+        this(api, methodVisitor, className, name, descriptor, ids, probeMode, false);
+    }
+
+    public MethodInstrumenter(int api,MethodVisitor methodVisitor,String className, String name, String descriptor,
+            Map<Long,Integer> ids) {
+        this(api, methodVisitor, className, name, descriptor, ids, ProbeMode.LEGACY);
+    }
+
+    /**
+     * Insert the initialize instructions of the probe mode on method enter.
+     * @param insertInit true to insert
+     * @see Instruction#getInitInstructions(ProbeMode)
+     */
+    public void setInsertInit(boolean insertInit) {
+        this.insertInit=insertInit;
+    }
+
+    /**
+     * Log field changes on method return, throw and exit.
+     * @param snapshot snapshot method of the class
+     * @param isStatic true if the method is static
+     */
+    public void setFieldSnapshot(FieldSnapshotGenerator snapshot,boolean isStatic) {
+        this.snapshot=snapshot;
+        this.isStatic=isStatic;
+    }
+
+    /**
+     * Place probes on the control-flow graph of the method, instead of every branch.
+     * <p>
+     * The method is passed to the given node instead of the next visitor, and passed to the next visitor with
+     * the probes at its end. Call this before visiting the method.
+     * </p>
+     * @param method empty node of the method
+     * @param counterIds branch IDs of the method, whose counters are used by the probes
+     * @see ProbePlanner
+     */
+    public void setOptimizedPlacement(MethodNode method,int[] counterIds) {
+        this.method=method;
+        this.counterIds=counterIds;
+        this.next=mv;
+        this.mv=method;
+    }
+
+    @Override
+    public void visitCode() {
+        super.visitCode();
+        codeStarted=true;
+        if (insertInit)
+            emit(Instruction.getInitInstructions(probeMode));
+    }
+
+    @Override
+    protected void visitNode(int type, int opcode, String owner, String name, String desc, int operand1,
+            int operand2) {
+        if (probeAfterNode)
+            insertPendingProbe();
+        if (snapshot!=null && ((opcode>=Opcodes.IRETURN && opcode<=Opcodes.RETURN) || opcode==Opcodes.ATHROW))
+            insertSnapshotCall();
+
+        if (fingerprint!=null)
+            fingerprint.add(type, opcode, owner, name, desc, operand1, operand2);
+        else
+            nodes.add(InsnNodeUtils.convertToString(type, opcode, owner, name, desc, operand1, operand2));
+    }
+
+    @Override
+    protected void visitNodeEnd(int type, int opcode) {
+        if (pendingId!=null && !probeAfterNode) {
+            // Annotations of an instruction follow it, so wait for the next node
+            if (opcode>=0)
+                probeAfterNode=true;
+            else
+                insertPendingProbe();
+        }
     }
 
     /**
@@ -49,30 +178,91 @@ public class MethodInstrumenter extends MethodNode {
     @Override
     public void visitLabel(Label label) {
         super.visitLabel(label);
-        
-        if (currentLine==0) return; // Between methods/fields
 
-        String hashSource=className+"::"+super.name+"::"+super.desc+"::";
+        if (fingerprint!=null) {
+            long hashed=fingerprint.visitLabel();
+            if (currentLine==0) return; // Between methods/fields
+            findProbe(hashed);
+            return;
+        }
+
+        if (currentLine==0) return; // Between methods/fields
 
         // Get k previous instructions
-        Deque<AbstractInsnNode> prevInsns=new ArrayDeque<>();
-        for (int i=instructions.size()-1;i>=0 && i>=Instrumenter.MAX_PREV_INSNS;i--) {
-            prevInsns.add(instructions.get(i));
+        StringBuilder hashSource=new StringBuilder();
+        hashSource.append(className).append("::").append(name).append("::").append(desc).append("::");
+        for (int i=nodes.size()-1;i>=0 && i>=Instrumenter.MAX_PREV_INSNS;i--) {
+            String nodeString=nodes.get(i);
+            if (nodeString.length()>0)
+                hashSource.append(nodeString).append(';');
         }
+        findProbe(hashSource.toString().hashCode());
+    }
 
-        for (AbstractInsnNode prevInsn:prevInsns) {
-            String nodeString=InsnNodeUtils.convertNodeToString(prevInsn);
-            if (nodeString.length()>0)
-                hashSource+=nodeString+";";
+    private void findProbe(long hashed) {
+        Integer branchId=ids.get(hashed);
+        if (branchId!=null)
+            pendingId=branchId;
+    }
+
+    private void insertPendingProbe() {
+        if (method!=null) {
+            // Placed at the end of the method
+            LabelNode point=new LabelNode();
+            method.instructions.add(point);
+            probePoints.put(point,pendingId);
+        } else {
+            emit(Instruction.insertNewInstructions(pendingId,probeMode));
+            Instrumenter.totalInstrumented.incrementAndGet();
+            probeCount++;
         }
-        int hashed=hashSource.hashCode();
+        pendingId=null;
+        probeAfterNode=false;
+    }
 
-        if (ids.containsKey(hashed)){
-            int branchId=ids.get(hashed);
-            InsnList newInsns=Instruction.insertNewInstructions(branchId);
-            this.newInsns.put((LabelNode)instructions.getLast(), newInsns);
-            Instrumenter.totalInstrumented++;
+    /**
+     * Insert the probes of the kept method, and remove the labels of the probe points.
+     * Probes are inserted at every point if the planner does not reduce them.
+     */
+    private void placeProbes() {
+        ProbePlanner planner=new ProbePlanner(method,probePoints,probeMode);
+        int probes;
+        if (planner.plan(counterIds)) {
+            probes=planner.apply();
+            probeEquations=planner.getEquations();
+        } else {
+            for (Map.Entry<LabelNode,Integer> point : probePoints.entrySet())
+                method.instructions.insert(point.getKey(),Instruction.insertNewInstructions(point.getValue(),probeMode));
+            probes=probePoints.size();
         }
+        for (LabelNode point : probePoints.keySet())
+            method.instructions.remove(point);
+        probeCount+=probes;
+        Instrumenter.totalInstrumented.addAndGet(probes);
+    }
+
+    private void insertSnapshotCall() {
+        emit(snapshot.getCallInstructions(isStatic));
+        Instrumenter.totalInstrumented.incrementAndGet();
+        fieldLogCount++;
+    }
+
+    // Instructions added by the instrumenter are not fingerprinted
+    private void emit(InsnList instructions) {
+        if (mv!=null)
+            instructions.accept(mv);
+    }
+
+    // End of instructions, called before local variables or maxs
+    private void endCode() {
+        if (!codeStarted || codeEnded)
+            return;
+        codeEnded=true;
+        if (probeAfterNode)
+            insertPendingProbe();
+        pendingId=null; // Label is method end
+        if (snapshot!=null)
+            insertSnapshotCall();
     }
 
     @Override
@@ -81,7 +271,60 @@ public class MethodInstrumenter extends MethodNode {
         currentLine=line;
     }
 
-    public Map<LabelNode,InsnList> getNewInsns() {
-        return newInsns;
+    @Override
+    public void visitLocalVariable(String name, String descriptor, String signature, Label start, Label end,
+            int index) {
+        endCode();
+        super.visitLocalVariable(name, descriptor, signature, start, end, index);
+    }
+
+    @Override
+    public AnnotationVisitor visitLocalVariableAnnotation(int typeRef, TypePath typePath, Label[] start,
+            Label[] end, int[] index, String descriptor, boolean visible) {
+        endCode();
+        return super.visitLocalVariableAnnotation(typeRef, typePath, start, end, index, descriptor, visible);
+    }
+
+    @Override
+    public void visitAttribute(Attribute attribute) {
+        endCode();
+        super.visitAttribute(attribute);
+    }
+
+    @Override
+    public void visitMaxs(int maxStack, int maxLocals) {
+        endCode();
+        super.visitMaxs(maxStack, maxLocals);
+    }
+
+    @Override
+    public void visitEnd() {
+        super.visitEnd();
+        if (method!=null) {
+            placeProbes();
+            method.accept(next);
+        }
+    }
+
+    /**
+     * @return number of inserted branch probes
+     */
+    public int getProbeCount() {
+        return probeCount;
+    }
+
+    /**
+     * @return count of each branch ID as pairs of a counter ID and its coefficient, with optimized placement.
+     *         Empty if probes are inserted at every branch.
+     */
+    public Map<Integer,int[]> getProbeEquations() {
+        return probeEquations;
+    }
+
+    /**
+     * @return number of inserted field log calls
+     */
+    public int getFieldLogCount() {
+        return fieldLogCount;
     }
 }
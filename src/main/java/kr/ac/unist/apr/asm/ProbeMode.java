@@ -0,0 +1,63 @@
+package kr.ac.unist.apr.asm;
+
+/**
+ * Kinds of instructions inserted at each branch and method entry.
+ *
+ * @see Instruction
+ */
+public enum ProbeMode {
+    /**
+     * Every probe and method entry checks the environment variable GREYBOX_BRANCH
+     * and initializes GlobalStates if needed, then stores the branch ID to GlobalStates.curId
+     * before increasing the counter.
+     */
+    LEGACY,
+    /**
+     * GlobalStates resolves GREYBOX_BRANCH once in its static initializer.
+     * Probes only increase the counter of the constant branch ID, and nothing is inserted at method entry.
+     */
+    BOOTSTRAP,
+    /**
+     * Same with {@link #BOOTSTRAP}, but probes call GlobalStates.countBranch(int),
+     * which increases counters owned by the current thread.
+     * Counts are exact in multi-threaded programs, without a global lock.
+     */
+    CONCURRENT,
+    /**
+     * Same with {@link #BOOTSTRAP}, but probes count edges between consecutive branches in the fixed size
+     * hit map GlobalStates.edgeHits, as AFL does, instead of the counter of each branch.
+     * The location of the previous branch is kept in GlobalStates.previousId.
+     */
+    EDGE,
+    /**
+     * Same with {@link #BOOTSTRAP}, but probes only store true to the flag of the branch in GlobalStates.branchHits,
+     * without reading it. Executed branches are saved with the number of execution 1.
+     */
+    HIT;
+
+    /**
+     * @return true if instructions to initialize GlobalStates are inserted at each method entry
+     * @see Instruction#getInitInstructions(ProbeMode)
+     */
+    public boolean needsInit() {
+        return this == LEGACY;
+    }
+
+    /**
+     * @return true if probes count every execution of their branches, so counts can be derived from other probes
+     */
+    public boolean isCounting() {
+        return this == LEGACY || this == BOOTSTRAP || this == CONCURRENT;
+    }
+
+    /**
+     * Get the mode from its name, case insensitive.
+     *
+     * @param name name of the mode
+     * @return probe mode
+     * @throws IllegalArgumentException if there is no such mode
+     */
+    public static ProbeMode fromName(String name) {
+        return valueOf(name.toUpperCase());
+    }
+}
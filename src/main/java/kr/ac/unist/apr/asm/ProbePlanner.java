@@ -0,0 +1,482 @@
+package kr.ac.unist.apr.asm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+
+/**
+ * Places the probes of a method on the edges of its control-flow graph, instead of every branch.
+ * <p>
+ * Each branch probe of {@link MethodInstrumenter} counts the executions of a point in the method, which is the
+ * start of a basic block. Its count is the sum of the edges into the block. With a virtual edge from the exit
+ * to the entry of the method, every edge of the graph keeps the flow (Knuth's method, as in JaCoCo),
+ * so edges of a spanning tree are derived from the other edges. The tree takes the edges in loops first,
+ * then the edges that need a new block for their probe. The counted edges are reduced again while every
+ * branch count is still derived from them, i.e. each edge to a branch is counted or it is a bridge of the
+ * uncounted edges.
+ * <p>
+ * Counted edges use the counters of the branch IDs of the method, so no new ID is allocated.
+ * {@link #getEquations()} gives the count of each branch ID as a sum of these raw counters.
+ * A probe on an edge is inserted before the goto, return or throw of the edge, between a block and the next
+ * block, at the method entry, or in a new block appended at the end of the method for conditional jumps and
+ * switches.
+ * <p>
+ * The flow is kept only if the method is not left in the middle of a block. A method left by an exception
+ * thrown by a call, or still running when the counts are saved (e.g. by System.exit), skews the derived counts
+ * of its branches by the number of such executions. Methods with try-catch blocks, subroutines, or without any
+ * return or throw are not planned, and neither are the methods that need more counters than their branches.
+ * </p>
+ *
+ * @see MethodInstrumenter#setOptimizedPlacement(MethodNode, int[])
+ */
+public class ProbePlanner {
+    // Greedy reduction checks the bridges once per counted edge, so it is skipped for huge methods
+    private static final int MAX_REDUCED_EDGES = 4096;
+
+    // Kinds of edges, by the position of their probes
+    private static final int FALL = 0; // before the first node of the next block
+    private static final int GOTO = 1; // before the goto
+    private static final int JUMP = 2; // in a new block between the jump and its target
+    private static final int SWITCH = 3; // in a new block between the switch and its target
+    private static final int EXIT = 4; // before the return or throw
+    private static final int ENTRY = 5; // virtual edge from the exit to the entry, at the method entry
+
+    private static class Edge {
+        final int from;
+        final int to;
+        final int kind;
+        // Jump, switch, return or throw of the edge, or the first node of the next block
+        final AbstractInsnNode insn;
+        // Target of a jump or switch
+        final LabelNode target;
+        // Index in the edges of the graph
+        int index = -1;
+        int weight = 0;
+        boolean counted = false;
+        int counterId = -1;
+
+        Edge(int from, int to, int kind, AbstractInsnNode insn, LabelNode target) {
+            this.from = from;
+            this.to = to;
+            this.kind = kind;
+            this.insn = insn;
+            this.target = target;
+        }
+
+        int other(int node) {
+            return node == from ? to : from;
+        }
+    }
+
+    private final MethodNode method;
+    private final Map<LabelNode, Integer> points;
+    private final ProbeMode probeMode;
+
+    // Blocks are the nodes 0 to exit - 1, and the exit is the last node
+    private int exit;
+    private final List<Edge> edges = new ArrayList<>();
+    private final List<Edge> countedEdges = new ArrayList<>();
+    private int[][] adjacency;
+    // Edges into the block of each branch ID
+    private final Map<Integer, List<Edge>> branchEdges = new TreeMap<>();
+    private final Map<Integer, int[]> equations = new TreeMap<>();
+
+    /**
+     * @param method    method with a label at the point of each branch probe
+     * @param points    branch ID of each probe point, in the order of the method
+     * @param probeMode kind of inserted probes, counting every execution
+     */
+    public ProbePlanner(MethodNode method, Map<LabelNode, Integer> points, ProbeMode probeMode) {
+        this.method = method;
+        this.points = points;
+        this.probeMode = probeMode;
+    }
+
+    /**
+     * Choose the edges to count, without changing the method.
+     *
+     * @param counterIds branch IDs of the method, whose counters are used by the counted edges
+     * @return true if the method is planned with fewer probes than its branches,
+     *         false to insert a probe at every branch instead
+     */
+    public boolean plan(int[] counterIds) {
+        if (points.isEmpty() || !method.tryCatchBlocks.isEmpty() || !buildGraph())
+            return false;
+
+        // Spanning tree of the hottest edges, the others are counted
+        List<Edge> sorted = new ArrayList<>(edges);
+        sorted.sort((e1, e2) -> e2.weight - e1.weight); // Stable, so edges keep the order of the method
+        int[] parents = new int[exit + 1];
+        for (int i = 0; i < parents.length; i++)
+            parents[i] = i;
+        for (Edge edge : sorted) {
+            int root1 = find(parents, edge.from);
+            int root2 = find(parents, edge.to);
+            if (root1 == root2) {
+                edge.counted = true;
+            } else {
+                parents[root1] = root2;
+            }
+        }
+
+        // Leave the edges uncounted while every branch is derived, hottest first
+        buildAdjacency();
+        if (edges.size() <= MAX_REDUCED_EDGES) {
+            for (Edge edge : sorted) {
+                if (!edge.counted)
+                    continue;
+                edge.counted = false;
+                if (!isDerived())
+                    edge.counted = true;
+            }
+        }
+
+        for (Edge edge : edges) {
+            if (edge.counted)
+                countedEdges.add(edge);
+        }
+        if (countedEdges.size() > points.size() || countedEdges.size() > counterIds.length)
+            return false;
+        for (int i = 0; i < countedEdges.size(); i++)
+            countedEdges.get(i).counterId = counterIds[i];
+
+        for (int branchId : counterIds) {
+            Map<Integer, Integer> coefficients = new TreeMap<>();
+            for (Edge edge : branchEdges.getOrDefault(branchId, Collections.emptyList()))
+                addSolution(edge, coefficients);
+            int[] terms = new int[coefficients.size() * 2];
+            int i = 0;
+            for (Map.Entry<Integer, Integer> coefficient : coefficients.entrySet()) {
+                if (coefficient.getValue() == 0)
+                    continue;
+                terms[i++] = coefficient.getKey();
+                terms[i++] = coefficient.getValue();
+            }
+            equations.put(branchId, Arrays.copyOf(terms, i));
+        }
+        return true;
+    }
+
+    /**
+     * Insert the probes of the counted edges to the method.
+     *
+     * @return number of inserted probes
+     */
+    public int apply() {
+        InsnList instructions = method.instructions;
+        for (Edge edge : countedEdges) {
+            InsnList probe = Instruction.insertNewInstructions(edge.counterId, probeMode);
+            switch (edge.kind) {
+                case ENTRY:
+                    instructions.insert(probe);
+                    break;
+                case FALL:
+                case GOTO:
+                case EXIT:
+                    instructions.insertBefore(edge.insn, probe);
+                    break;
+                default:
+                    // New block that counts the edge, then jumps to the original target
+                    LabelNode label = new LabelNode();
+                    if (edge.kind == JUMP) {
+                        ((JumpInsnNode) edge.insn).label = label;
+                    } else if (edge.insn instanceof TableSwitchInsnNode) {
+                        TableSwitchInsnNode node = (TableSwitchInsnNode) edge.insn;
+                        node.dflt = node.dflt == edge.target ? label : node.dflt;
+                        replaceLabel(node.labels, edge.target, label);
+                    } else {
+                        LookupSwitchInsnNode node = (LookupSwitchInsnNode) edge.insn;
+                        node.dflt = node.dflt == edge.target ? label : node.dflt;
+                        replaceLabel(node.labels, edge.target, label);
+                    }
+                    instructions.add(label);
+                    instructions.add(probe);
+                    instructions.add(new JumpInsnNode(Opcodes.GOTO, edge.target));
+            }
+        }
+        return countedEdges.size();
+    }
+
+    /**
+     * @return raw counters and their coefficients of each branch ID of the method, as pairs of the counter ID and
+     *         the coefficient, valid after {@link #plan(int[])} returns true. Empty for branches never executed.
+     */
+    public Map<Integer, int[]> getEquations() {
+        return equations;
+    }
+
+    private static void replaceLabel(List<LabelNode> labels, LabelNode from, LabelNode to) {
+        for (int i = 0; i < labels.size(); i++) {
+            if (labels.get(i) == from)
+                labels.set(i, to);
+        }
+    }
+
+    /**
+     * Split the method into basic blocks and find the edges reachable from the entry.
+     *
+     * @return false if the method cannot be planned
+     */
+    private boolean buildGraph() {
+        AbstractInsnNode[] nodes = method.instructions.toArray();
+        Set<LabelNode> targets = new HashSet<>();
+        for (AbstractInsnNode node : nodes) {
+            if (node instanceof JumpInsnNode) {
+                if (node.getOpcode() == Opcodes.JSR)
+                    return false;
+                targets.add(((JumpInsnNode) node).label);
+            } else if (node instanceof TableSwitchInsnNode) {
+                targets.add(((TableSwitchInsnNode) node).dflt);
+                targets.addAll(((TableSwitchInsnNode) node).labels);
+            } else if (node instanceof LookupSwitchInsnNode) {
+                targets.add(((LookupSwitchInsnNode) node).dflt);
+                targets.addAll(((LookupSwitchInsnNode) node).labels);
+            } else if (node.getOpcode() == Opcodes.RET) {
+                return false;
+            }
+        }
+
+        // Blocks start at the entry, jump targets and probe points, and after the end of other blocks
+        int[] blocks = new int[nodes.length];
+        List<Integer> starts = new ArrayList<>();
+        for (int i = 0; i < nodes.length; i++) {
+            boolean start = i == 0 || isBlockEnd(nodes[i - 1]) || targets.contains(nodes[i])
+                    || points.containsKey(nodes[i]);
+            if (start)
+                starts.add(i);
+            blocks[i] = starts.size() - 1;
+        }
+        exit = starts.size();
+
+        List<Edge> allEdges = new ArrayList<>();
+        List<List<Edge>> successors = new ArrayList<>();
+        for (int block = 0; block < exit; block++) {
+            int end = block + 1 < exit ? starts.get(block + 1) : nodes.length;
+            AbstractInsnNode last = nodes[end - 1];
+            AbstractInsnNode next = end < nodes.length ? nodes[end] : null;
+            List<Edge> out = new ArrayList<>();
+            int opcode = last.getOpcode();
+            if (last instanceof JumpInsnNode) {
+                LabelNode target = ((JumpInsnNode) last).label;
+                int to = blocks[method.instructions.indexOf(target)];
+                if (opcode == Opcodes.GOTO) {
+                    out.add(new Edge(block, to, GOTO, last, target));
+                } else {
+                    out.add(new Edge(block, to, JUMP, last, target));
+                    if (next != null)
+                        out.add(new Edge(block, block + 1, FALL, next, null));
+                }
+            } else if (last instanceof TableSwitchInsnNode || last instanceof LookupSwitchInsnNode) {
+                Set<LabelNode> switchTargets = new LinkedHashSet<>();
+                if (last instanceof TableSwitchInsnNode) {
+                    switchTargets.addAll(((TableSwitchInsnNode) last).labels);
+                    switchTargets.add(((TableSwitchInsnNode) last).dflt);
+                } else {
+                    switchTargets.addAll(((LookupSwitchInsnNode) last).labels);
+                    switchTargets.add(((LookupSwitchInsnNode) last).dflt);
+                }
+                for (LabelNode target : switchTargets)
+                    out.add(new Edge(block, blocks[method.instructions.indexOf(target)], SWITCH, last, target));
+            } else if ((opcode >= Opcodes.IRETURN && opcode <= Opcodes.RETURN) || opcode == Opcodes.ATHROW) {
+                out.add(new Edge(block, exit, EXIT, last, null));
+            } else if (next != null) {
+                out.add(new Edge(block, block + 1, FALL, next, null));
+            }
+            successors.add(out);
+            allEdges.addAll(out);
+        }
+
+        // Code that is never executed keeps the flow with zero, so its edges are dropped
+        boolean[] reachable = new boolean[exit + 1];
+        List<Integer> queue = new ArrayList<>();
+        reachable[0] = true;
+        queue.add(0);
+        for (int i = 0; i < queue.size(); i++) {
+            int block = queue.get(i);
+            if (block == exit)
+                continue;
+            for (Edge edge : successors.get(block)) {
+                if (!reachable[edge.to]) {
+                    reachable[edge.to] = true;
+                    queue.add(edge.to);
+                }
+            }
+        }
+        if (!reachable[exit])
+            return false;
+        for (Edge edge : allEdges) {
+            if (reachable[edge.from])
+                edges.add(edge);
+        }
+        edges.add(new Edge(exit, 0, ENTRY, null, null));
+        for (int i = 0; i < edges.size(); i++)
+            edges.get(i).index = i;
+
+        // Loop depth of each block, from the ranges of backward jumps
+        int[] depths = new int[exit + 1];
+        for (Edge edge : edges) {
+            if (edge.kind != FALL && edge.kind != EXIT && edge.kind != ENTRY && edge.to <= edge.from) {
+                for (int block = edge.to; block <= edge.from; block++)
+                    depths[block]++;
+            }
+        }
+        for (Edge edge : edges) {
+            boolean newBlock = edge.kind == JUMP || edge.kind == SWITCH;
+            edge.weight = Math.min(depths[edge.from], depths[edge.to]) * 2 + (newBlock ? 1 : 0);
+        }
+
+        for (Map.Entry<LabelNode, Integer> point : points.entrySet()) {
+            int block = blocks[method.instructions.indexOf(point.getKey())];
+            List<Edge> in = branchEdges.computeIfAbsent(point.getValue(), k -> new ArrayList<>());
+            for (Edge edge : edges) {
+                if (edge.to == block)
+                    in.add(edge);
+            }
+        }
+        return true;
+    }
+
+    private static boolean isBlockEnd(AbstractInsnNode node) {
+        int opcode = node.getOpcode();
+        return node instanceof JumpInsnNode || node instanceof TableSwitchInsnNode
+                || node instanceof LookupSwitchInsnNode || (opcode >= Opcodes.IRETURN && opcode <= Opcodes.RETURN)
+                || opcode == Opcodes.ATHROW;
+    }
+
+    private static int find(int[] parents, int node) {
+        while (parents[node] != node) {
+            parents[node] = parents[parents[node]];
+            node = parents[node];
+        }
+        return node;
+    }
+
+    private void buildAdjacency() {
+        int[] sizes = new int[exit + 1];
+        for (Edge edge : edges) {
+            sizes[edge.from]++;
+            sizes[edge.to]++;
+        }
+        adjacency = new int[exit + 1][];
+        for (int node = 0; node <= exit; node++)
+            adjacency[node] = new int[sizes[node]];
+        Arrays.fill(sizes, 0);
+        for (Edge edge : edges) {
+            adjacency[edge.from][sizes[edge.from]++] = edge.index;
+            adjacency[edge.to][sizes[edge.to]++] = edge.index;
+        }
+    }
+
+    /**
+     * @return true if every edge to a branch is counted, or a bridge of the uncounted edges
+     */
+    private boolean isDerived() {
+        boolean[] bridges = findBridges();
+        for (List<Edge> in : branchEdges.values()) {
+            for (Edge edge : in) {
+                if (!edge.counted && !bridges[edge.index])
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    // Tarjan's bridge finding on the uncounted edges, without recursion
+    private boolean[] findBridges() {
+        int nodeCount = exit + 1;
+        boolean[] bridges = new boolean[edges.size()];
+        int[] discovery = new int[nodeCount];
+        int[] low = new int[nodeCount];
+        int[] nextEdge = new int[nodeCount];
+        int[] parentEdge = new int[nodeCount];
+        int[] stack = new int[nodeCount];
+        Arrays.fill(discovery, -1);
+        int time = 0;
+        for (int root = 0; root < nodeCount; root++) {
+            if (discovery[root] >= 0)
+                continue;
+            int top = 0;
+            stack[0] = root;
+            discovery[root] = low[root] = time++;
+            parentEdge[root] = -1;
+            while (top >= 0) {
+                int node = stack[top];
+                if (nextEdge[node] < adjacency[node].length) {
+                    int edgeIndex = adjacency[node][nextEdge[node]++];
+                    Edge edge = edges.get(edgeIndex);
+                    if (edge.counted || edgeIndex == parentEdge[node])
+                        continue;
+                    int other = edge.other(node);
+                    if (discovery[other] < 0) {
+                        discovery[other] = low[other] = time++;
+                        parentEdge[other] = edgeIndex;
+                        stack[++top] = other;
+                    } else {
+                        low[node] = Math.min(low[node], discovery[other]);
+                    }
+                } else {
+                    top--;
+                    if (top >= 0) {
+                        int parent = stack[top];
+                        low[parent] = Math.min(low[parent], low[node]);
+                        if (low[node] > discovery[parent])
+                            bridges[parentEdge[node]] = true;
+                    }
+                }
+            }
+        }
+        return bridges;
+    }
+
+    /**
+     * Add the count of an edge to the equation, as the flow through the blocks on the source side of the edge.
+     *
+     * @param edge         edge to a branch, counted or a bridge of the uncounted edges
+     * @param coefficients coefficient of each counter ID
+     */
+    private void addSolution(Edge edge, Map<Integer, Integer> coefficients) {
+        if (edge.counted) {
+            coefficients.merge(edge.counterId, 1, Integer::sum);
+            return;
+        }
+        // Blocks connected to the source without the edge. The other counted edges into them carry the flow.
+        boolean[] side = new boolean[exit + 1];
+        List<Integer> queue = new ArrayList<>();
+        side[edge.from] = true;
+        queue.add(edge.from);
+        for (int i = 0; i < queue.size(); i++) {
+            int node = queue.get(i);
+            for (int edgeIndex : adjacency[node]) {
+                Edge next = edges.get(edgeIndex);
+                if (next == edge || next.counted)
+                    continue;
+                int other = next.other(node);
+                if (!side[other]) {
+                    side[other] = true;
+                    queue.add(other);
+                }
+            }
+        }
+        for (Edge counted : countedEdges) {
+            if (!side[counted.from] && side[counted.to])
+                coefficients.merge(counted.counterId, 1, Integer::sum);
+            else if (side[counted.from] && !side[counted.to])
+                coefficients.merge(counted.counterId, -1, Integer::sum);
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package kr.ac.unist.apr.asm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Index of super classes and interfaces, read from the headers of class files.
+ * <p>
+ * {@link org.objectweb.asm.ClassWriter#COMPUTE_FRAMES} needs the common super class of two types, and the default
+ * implementation of ASM loads both classes for it. This index answers from class files instead,
+ * so classes of the target program are never loaded or initialized.
+ * Types are read once and kept, so the index is shared by every class of an instrumentation.
+ * <p>
+ * A type is searched in the class files of this index, then in its parent.
+ * Types of the JDK and the libraries of JPatchInst are in {@link #getSystem()}, which is kept
+ * until the end of the process and shared by every instrumentation.
+ * </p>
+ *
+ * @see InstrumentClassWriter
+ */
+public class TypeHierarchy {
+    private static final String OBJECT = "java/lang/Object";
+    private static final TypeHierarchy SYSTEM = new TypeHierarchy(null, ClassLoader.getSystemClassLoader(), null);
+
+    private final File directory;
+    private final ClassLoader loader;
+    private final TypeHierarchy parent;
+    private final ConcurrentHashMap<String, TypeInfo> types = new ConcurrentHashMap<>();
+
+    /**
+     * Super class and interfaces of a type.
+     */
+    private static class TypeInfo {
+        private static final TypeInfo MISSING = new TypeInfo(null, new String[0], false);
+
+        final String superName;
+        final String[] interfaces;
+        final boolean isInterface;
+        // Every super class and interface including the type itself, computed when first used
+        volatile Set<String> superTypes = null;
+
+        TypeInfo(String superName, String[] interfaces, boolean isInterface) {
+            this.superName = superName;
+            this.interfaces = interfaces;
+            this.isInterface = isInterface;
+        }
+    }
+
+    private TypeHierarchy(File directory, ClassLoader loader, TypeHierarchy parent) {
+        this.directory = directory;
+        this.loader = loader;
+        this.parent = parent;
+    }
+
+    /**
+     * Index of the class files in a class path directory, with {@link #getSystem()} as its parent.
+     *
+     * @param directory class path directory
+     */
+    public TypeHierarchy(String directory) {
+        this(new File(directory), null, SYSTEM);
+    }
+
+    /**
+     * Index of the classes visible to a class loader, read as its resources.
+     *
+     * @param loader class loader, or null for {@link #getSystem()}
+     * @return index of the loader
+     */
+    public static TypeHierarchy forClassLoader(ClassLoader loader) {
+        return loader == null ? SYSTEM : new TypeHierarchy(null, loader, null);
+    }
+
+    /**
+     * @return index of the JDK and the class path of JPatchInst
+     */
+    public static TypeHierarchy getSystem() {
+        return SYSTEM;
+    }
+
+    /**
+     * Add a class before it is requested, e.g. a class already read to instrument.
+     *
+     * @param classFile class file
+     */
+    public void add(byte[] classFile) {
+        ClassReader reader;
+        try {
+            reader = new ClassReader(classFile);
+        } catch (RuntimeException e) {
+            // Malformed class file, left to be read from the class path
+            return;
+        }
+        types.putIfAbsent(reader.getClassName(), toTypeInfo(reader));
+    }
+
+    /**
+     * Same rule with {@link org.objectweb.asm.ClassWriter#getCommonSuperClass(String, String)}.
+     * <p>
+     * Returns <code>java/lang/Object</code> if any of the types is not found.
+     * </p>
+     *
+     * @param type1 internal name of a class
+     * @param type2 internal name of another class
+     * @return internal name of the common super class
+     */
+    public String getCommonSuperClass(String type1, String type2) {
+        TypeInfo info1 = getTypeInfo(type1);
+        TypeInfo info2 = getTypeInfo(type2);
+        if (info1 == TypeInfo.MISSING || info2 == TypeInfo.MISSING)
+            return OBJECT;
+
+        Set<String> superTypes2 = getSuperTypes(type2, info2);
+        if (superTypes2.contains(type1))
+            return type1;
+        if (getSuperTypes(type1, info1).contains(type2))
+            return type2;
+        if (info1.isInterface || info2.isInterface)
+            return OBJECT;
+
+        for (String type = info1.superName; type != null; type = getTypeInfo(type).superName) {
+            if (superTypes2.contains(type))
+                return type;
+        }
+        return OBJECT;
+    }
+
+    private Set<String> getSuperTypes(String type, TypeInfo info) {
+        Set<String> superTypes = info.superTypes;
+        if (superTypes != null)
+            return superTypes;
+
+        superTypes = new HashSet<>();
+        Deque<String> queue = new ArrayDeque<>();
+        queue.add(type);
+        while (!queue.isEmpty()) {
+            String current = queue.poll();
+            if (!superTypes.add(current))
+                continue;
+            TypeInfo currentInfo = getTypeInfo(current);
+            if (currentInfo.superName != null)
+                queue.add(currentInfo.superName);
+            Collections.addAll(queue, currentInfo.interfaces);
+        }
+        info.superTypes = superTypes;
+        return superTypes;
+    }
+
+    private TypeInfo getTypeInfo(String type) {
+        TypeInfo info = types.get(type);
+        if (info != null)
+            return info;
+
+        info = readTypeInfo(type);
+        if (info == TypeInfo.MISSING && parent != null)
+            info = parent.getTypeInfo(type);
+        TypeInfo previous = types.putIfAbsent(type, info);
+        return previous != null ? previous : info;
+    }
+
+    private TypeInfo readTypeInfo(String type) {
+        try {
+            if (directory != null) {
+                File classFile = new File(directory, type + ".class");
+                if (classFile.isFile())
+                    return toTypeInfo(new ClassReader(Files.readAllBytes(classFile.toPath())));
+            } else if (loader != null) {
+                try (InputStream stream = loader.getResourceAsStream(type + ".class")) {
+                    if (stream != null)
+                        return toTypeInfo(new ClassReader(stream));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // Unreadable or malformed class file
+        }
+        return TypeInfo.MISSING;
+    }
+
+    private static TypeInfo toTypeInfo(ClassReader reader) {
+        return new TypeInfo(reader.getSuperName(), reader.getInterfaces(),
+                (reader.getAccess() & Opcodes.ACC_INTERFACE) != 0);
+    }
+}
@@ -0,0 +1,281 @@
+package kr.ac.unist.apr.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+/**
+ * Persistent on-disk cache of instrumented classes.
+ * <p>
+ * Each entry is addressed by the SHA-256 hash of the tool version, the instrumentation
+ * configuration (e.g. selected branch IDs and the first branch ID of the class),
+ * the original class file and the patched class file.
+ * An entry stores the instrumented class file and the branch IDs computed from the original class.
+ * <p>
+ * Entries are evicted in least-recently-used order when the total size exceeds the limit.
+ * The access time of an entry is kept as the last modified time of its class file,
+ * so the order survives between runs.
+ * <p>
+ * Note that frames of the instrumented class also depend on the class hierarchy of the target program.
+ * The hierarchy is assumed to be unchanged between patches.
+ * </p>
+ */
+public class InstrumentationCache {
+    private static final String CLASS_SUFFIX = ".class";
+    private static final String INFO_SUFFIX = ".json";
+
+    private final File directory;
+    private final long maxBytes;
+    private final Gson gson = new Gson();
+
+    /** Size of each entry, in least-recently-used order. */
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Cached result of a single class.
+     */
+    public static class Entry {
+        /** Instrumented class file. Not serialized to the info file. */
+        public transient byte[] classBytes;
+        /** Source file attribute of the original class. */
+        public String sourceFile;
+        /** Branch IDs of each method, keyed by method name + descriptor, then by hash. */
+        public Map<String, Map<Long, Integer>> branchIds;
+        /** Equations of branch counts with optimized probes, or null. */
+        public Map<Integer, int[]> probeEquations;
+
+        public Entry(byte[] classBytes, String sourceFile, Map<String, Map<Long, Integer>> branchIds) {
+            this(classBytes, sourceFile, branchIds, null);
+        }
+
+        public Entry(byte[] classBytes, String sourceFile, Map<String, Map<Long, Integer>> branchIds,
+                Map<Integer, int[]> probeEquations) {
+            this.classBytes = classBytes;
+            this.sourceFile = sourceFile;
+            this.branchIds = branchIds;
+            this.probeEquations = probeEquations;
+        }
+    }
+
+    /**
+     * Open the cache in the given directory.
+     * <p>
+     * The directory is created if it does not exist.
+     * Existing entries are loaded in the order of their last access,
+     * and evicted if they exceed the limit.
+     * </p>
+     *
+     * @param directory cache directory
+     * @param maxBytes  maximum total size of the entries in bytes
+     * @throws IOException if the directory cannot be created or entries cannot be removed
+     */
+    public InstrumentationCache(File directory, long maxBytes) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(directory.toPath());
+
+        File[] classFiles = directory.listFiles((dir, name) -> name.endsWith(CLASS_SUFFIX));
+        if (classFiles == null)
+            throw new IOException("Cannot list cache directory: " + directory);
+        Arrays.sort(classFiles, Comparator.comparingLong(File::lastModified));
+        for (File classFile : classFiles) {
+            String key = classFile.getName().substring(0, classFile.getName().length() - CLASS_SUFFIX.length());
+            long size = classFile.length() + getInfoFile(key).length();
+            entries.put(key, size);
+            totalBytes += size;
+        }
+        evict(null);
+    }
+
+    /**
+     * Compute the key of an entry.
+     *
+     * @param toolVersion version of the instrumenter
+     * @param config      instrumentation configuration that affects the result
+     * @param original    original class file
+     * @param patched     patched class file
+     * @return hexadecimal SHA-256 hash
+     */
+    public static String computeKey(String toolVersion, String config, byte[] original, byte[] patched) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not supported", e);
+        }
+        update(digest, toolVersion.getBytes(StandardCharsets.UTF_8));
+        update(digest, config.getBytes(StandardCharsets.UTF_8));
+        update(digest, original);
+        update(digest, patched);
+
+        StringBuilder builder = new StringBuilder();
+        for (byte b : digest.digest()) {
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16));
+            builder.append(Character.forDigit(b & 0xF, 16));
+        }
+        return builder.toString();
+    }
+
+    // Prefix each part with its length, so the boundaries are part of the hash.
+    private static void update(MessageDigest digest, byte[] bytes) {
+        int length = bytes.length;
+        digest.update(new byte[] { (byte) (length >>> 24), (byte) (length >>> 16), (byte) (length >>> 8),
+                (byte) length });
+        digest.update(bytes);
+    }
+
+    /**
+     * Get the entry of the given key.
+     * <p>
+     * An entry that cannot be read, e.g. removed by another thread or process or truncated, is dropped
+     * and counted as a miss.
+     * </p>
+     *
+     * @param key key from {@link #computeKey(String, String, byte[], byte[])}
+     * @return cached entry, or null if not cached
+     */
+    public Entry get(String key) {
+        synchronized (this) {
+            // get() moves the entry to the most-recently-used end
+            if (entries.get(key) == null) {
+                misses.incrementAndGet();
+                return null;
+            }
+        }
+
+        File classFile = getClassFile(key);
+        Entry entry;
+        try (Reader reader = Files.newBufferedReader(getInfoFile(key).toPath(), StandardCharsets.UTF_8)) {
+            entry = gson.fromJson(reader, Entry.class);
+            if (entry != null)
+                entry.classBytes = Files.readAllBytes(classFile.toPath());
+        } catch (IOException | JsonParseException e) {
+            entry = null;
+        }
+        if (entry == null) {
+            synchronized (this) {
+                Long size = entries.remove(key);
+                if (size != null)
+                    totalBytes -= size;
+            }
+            misses.incrementAndGet();
+            return null;
+        }
+        classFile.setLastModified(System.currentTimeMillis());
+        hits.incrementAndGet();
+        return entry;
+    }
+
+    /**
+     * Store an entry and evict least-recently-used entries if the cache is full.
+     *
+     * @param key   key from {@link #computeKey(String, String, byte[], byte[])}
+     * @param entry entry to store
+     * @throws IOException if the entry cannot be written
+     */
+    public void put(String key, Entry entry) throws IOException {
+        File classFile = getClassFile(key);
+        File infoFile = getInfoFile(key);
+
+        // Write to temporary files and move, so other processes never read a partial entry.
+        File tempInfo = File.createTempFile(key, INFO_SUFFIX, directory);
+        try (Writer writer = Files.newBufferedWriter(tempInfo.toPath(), StandardCharsets.UTF_8)) {
+            gson.toJson(entry, writer);
+        }
+        Files.move(tempInfo.toPath(), infoFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        File tempClass = File.createTempFile(key, ".tmp", directory);
+        Files.write(tempClass.toPath(), entry.classBytes);
+        Files.move(tempClass.toPath(), classFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+
+        synchronized (this) {
+            long size = classFile.length() + infoFile.length();
+            Long oldSize = entries.put(key, size);
+            totalBytes += size - (oldSize == null ? 0 : oldSize);
+        }
+        evict(key);
+    }
+
+    /**
+     * Remove least-recently-used entries until the total size is within the limit.
+     *
+     * @param keep key of the entry that should not be removed, or null
+     * @throws IOException if an entry cannot be removed
+     */
+    private void evict(String keep) throws IOException {
+        List<String> evicted = new ArrayList<>();
+        synchronized (this) {
+            Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+            while (totalBytes > maxBytes && iterator.hasNext()) {
+                Map.Entry<String, Long> eldest = iterator.next();
+                if (eldest.getKey().equals(keep))
+                    continue;
+                totalBytes -= eldest.getValue();
+                evicted.add(eldest.getKey());
+                iterator.remove();
+            }
+        }
+        for (String evictedKey : evicted) {
+            Files.deleteIfExists(getClassFile(evictedKey).toPath());
+            Files.deleteIfExists(getInfoFile(evictedKey).toPath());
+            evictions.incrementAndGet();
+        }
+    }
+
+    private File getClassFile(String key) {
+        return new File(directory, key + CLASS_SUFFIX);
+    }
+
+    private File getInfoFile(String key) {
+        return new File(directory, key + INFO_SUFFIX);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * @return summary of hits, misses, evictions and size
+     */
+    public String getStatistics() {
+        long total = getHits() + getMisses();
+        double hitRate = total == 0 ? 0 : getHits() * 100.0 / total;
+        return String.format("hits: %d, misses: %d (hit rate %.1f%%), evictions: %d, size: %d bytes",
+                getHits(), getMisses(), hitRate, getEvictions(), getTotalBytes());
+    }
+}
@@ -0,0 +1,66 @@
+package kr.ac.unist.apr.metrics;
+
+/**
+ * Time and result of instrumenting a single class.
+ * <p>
+ * Times are in nanoseconds, and each phase is measured in the thread instrumenting the class.
+ * Phases not run for the class are 0, e.g. only read and write for a cached class.
+ * </p>
+ *
+ * @see MetricsReport
+ */
+public class ClassMetrics {
+    public static final String STATUS_INSTRUMENTED = "instrumented";
+    public static final String STATUS_CACHED = "cached";
+    public static final String STATUS_SKIPPED = "skipped";
+
+    public static final String REASON_UNCHANGED = "unchanged";
+    public static final String REASON_NOT_IN_TARGET = "not-in-target";
+    public static final String REASON_ALREADY_INSTRUMENTED = "already-instrumented";
+    public static final String REASON_NOT_SELECTED = "not-selected";
+
+    /** Relative path of the class file */
+    public String className;
+    public String sourceFile;
+    /** One of instrumented, cached and skipped */
+    public String status = STATUS_INSTRUMENTED;
+    /** Reason of skipping, null if not skipped */
+    public String reason;
+
+    /** Reading and parsing the class files, including the cache lookup */
+    public long readNanos;
+    /** Parsing the original class and computing its branch IDs, 0 if reused */
+    public long idNanos;
+    /** Inserting probes and field logs, in a single pass that also computes frames of the modified methods */
+    public long probeNanos;
+    /** Writing the class to bytes */
+    public long frameNanos;
+    /** Writing the class file and the cache entry */
+    public long writeNanos;
+    public long totalNanos;
+
+    /** Number of inserted branch probes */
+    public int probes;
+    /** Number of inserted field log calls */
+    public int fieldLogs;
+    /** Size of the patched class file */
+    public int sizeBefore;
+    /** Size of the instrumented class file */
+    public int sizeAfter;
+
+    public ClassMetrics(String className) {
+        this.className = className;
+    }
+
+    /**
+     * Mark the class as skipped.
+     *
+     * @param reason reason of skipping
+     * @return this
+     */
+    public ClassMetrics skip(String reason) {
+        this.status = STATUS_SKIPPED;
+        this.reason = reason;
+        return this;
+    }
+}
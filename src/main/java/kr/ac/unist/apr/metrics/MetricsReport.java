@@ -0,0 +1,163 @@
+package kr.ac.unist.apr.metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.ToLongFunction;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+/**
+ * Metrics of a single instrumentation, saved as JSON.
+ * <p>
+ * The report has the time of each phase of the run, totals over every class,
+ * statistics of each phase of classes and the metrics of each class:
+ * <pre>
+ * {"toolVersion": "5", "probeMode": "BOOTSTRAP", "threads": 4, "branchCount": 5163, "totalNanos": 2310512345,
+ *  "phases": {"scan": ..., "branchIds": ..., "typeHierarchy": ..., "instrument": ..., "manifest": ...},
+ *  "statuses": {"instrumented": 1040}, "skipReasons": {}, "probes": 5120, "fieldLogs": 7562,
+ *  "sizeBefore": 4410000, "sizeAfter": 5290000,
+ *  "classPhases": {"read": {"total": ..., "mean": ..., "p50": ..., "p90": ..., "p99": ..., "max": ...}, ...},
+ *  "classes": [{"className": "a/B.class", "status": "instrumented", "readNanos": ..., ...}, ...]}
+ * </pre>
+ * If the target is a jar or zip file, "archive" is the time to write it after the manifest.
+ * Times are in nanoseconds. Statistics of class phases are computed over the classes not skipped.
+ * Class phases overlap if more than one thread is used, so their totals may exceed the instrument phase.
+ * </p>
+ *
+ * @see ClassMetrics
+ */
+public class MetricsReport {
+    public String toolVersion;
+    public String probeMode;
+    public int threads;
+    public int branchCount;
+    public long totalNanos;
+    /** Time of each phase of the run, in the order they run */
+    public Map<String, Long> phases = new LinkedHashMap<>();
+
+    /** Number of classes of each status */
+    public Map<String, Integer> statuses = new TreeMap<>();
+    /** Number of skipped classes of each reason */
+    public Map<String, Integer> skipReasons = new TreeMap<>();
+    public int probes;
+    public int fieldLogs;
+    public long sizeBefore;
+    public long sizeAfter;
+    /** Statistics of each phase of classes */
+    public Map<String, PhaseStatistics> classPhases = new LinkedHashMap<>();
+    public List<ClassMetrics> classes = new ArrayList<>();
+
+    /**
+     * Distribution of a phase over classes.
+     */
+    public static class PhaseStatistics {
+        public long total;
+        public long mean;
+        public long p50;
+        public long p90;
+        public long p99;
+        public long max;
+    }
+
+    /**
+     * @param toolVersion version of the instrumentation result
+     * @param probeMode   name of the probe mode
+     * @param threads     number of worker threads
+     */
+    public MetricsReport(String toolVersion, String probeMode, int threads) {
+        this.toolVersion = toolVersion;
+        this.probeMode = probeMode;
+        this.threads = threads;
+    }
+
+    /**
+     * Add the time of a phase of the run.
+     *
+     * @param name  name of the phase
+     * @param nanos time in nanoseconds
+     */
+    public void addPhase(String name, long nanos) {
+        phases.merge(name, nanos, Long::sum);
+    }
+
+    /**
+     * Set the metrics of classes and compute totals and statistics.
+     *
+     * @param classes     metrics of each class, in the order of branch IDs
+     * @param branchCount number of branch IDs of the program
+     * @param totalNanos  time of the whole run
+     */
+    public void setClasses(List<ClassMetrics> classes, int branchCount, long totalNanos) {
+        this.classes = classes;
+        this.branchCount = branchCount;
+        this.totalNanos = totalNanos;
+
+        List<ClassMetrics> processed = new ArrayList<>();
+        for (ClassMetrics metrics : classes) {
+            statuses.merge(metrics.status, 1, Integer::sum);
+            if (metrics.reason != null)
+                skipReasons.merge(metrics.reason, 1, Integer::sum);
+            probes += metrics.probes;
+            fieldLogs += metrics.fieldLogs;
+            sizeBefore += metrics.sizeBefore;
+            sizeAfter += metrics.sizeAfter;
+            if (!ClassMetrics.STATUS_SKIPPED.equals(metrics.status))
+                processed.add(metrics);
+        }
+
+        classPhases.put("read", computeStatistics(processed, m -> m.readNanos));
+        classPhases.put("branchIds", computeStatistics(processed, m -> m.idNanos));
+        classPhases.put("probes", computeStatistics(processed, m -> m.probeNanos));
+        classPhases.put("frames", computeStatistics(processed, m -> m.frameNanos));
+        classPhases.put("write", computeStatistics(processed, m -> m.writeNanos));
+        classPhases.put("total", computeStatistics(processed, m -> m.totalNanos));
+    }
+
+    private static PhaseStatistics computeStatistics(List<ClassMetrics> classes, ToLongFunction<ClassMetrics> phase) {
+        PhaseStatistics statistics = new PhaseStatistics();
+        if (classes.isEmpty())
+            return statistics;
+
+        long[] values = new long[classes.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = phase.applyAsLong(classes.get(i));
+            statistics.total += values[i];
+        }
+        Arrays.sort(values);
+        statistics.mean = statistics.total / values.length;
+        statistics.p50 = getPercentile(values, 50);
+        statistics.p90 = getPercentile(values, 90);
+        statistics.p99 = getPercentile(values, 99);
+        statistics.max = values[values.length - 1];
+        return statistics;
+    }
+
+    // Nearest-rank percentile of sorted values
+    private static long getPercentile(long[] sorted, int percentile) {
+        int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+        return sorted[Math.max(rank - 1, 0)];
+    }
+
+    /**
+     * Save the report as JSON.
+     *
+     * @param file output file
+     * @throws IOException if the file cannot be written
+     */
+    public void write(File file) throws IOException {
+        Gson gson = new GsonBuilder().setPrettyPrinting().create();
+        try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            gson.toJson(this, writer);
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package kr.ac.unist.apr.result;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import kr.ac.unist.apr.GlobalStates;
+import kr.ac.unist.apr.asm.Instruction;
+
+/**
+ * Branch coverage saved by GlobalStates at the end of an instrumented run.
+ * <p>
+ * Reads both the text format (<code>id:count</code> lines) and the binary format
+ * written if GREYBOX_RESULT_FORMAT is binary. The format is detected from the magic number.
+ * Entries are sorted by branch ID.
+ * <p>
+ * Results of the edge probe mode have the hit map of edges instead, and {@link #isEdgeCoverage()} is true.
+ * Their IDs are the indices of the map, computed by {@link #getEdgeIndex(int, int)}, and their counts are
+ * the hits of each edge, wrapped to 1 after 255.
+ * </p>
+ *
+ * @see GlobalStates
+ */
+public class CoverageResult {
+    private static final String EDGE_HEADER = "# edges ";
+
+    private final int[] ids;
+    private final int[] counts;
+    private final int branchCount;
+    private final boolean edgeCoverage;
+
+    private CoverageResult(int[] ids, int[] counts, int branchCount, boolean edgeCoverage) {
+        this.ids = ids;
+        this.counts = counts;
+        this.branchCount = branchCount;
+        this.edgeCoverage = edgeCoverage;
+    }
+
+    /**
+     * Read a result file.
+     *
+     * @param path result file, i.e. GREYBOX_RESULT
+     * @return executed branches and their counts
+     * @throws IOException if the file cannot be read or is malformed
+     */
+    public static CoverageResult read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size >= 16) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                int magic = buffer.getInt(0);
+                if (magic == GlobalStates.RESULT_MAGIC || magic == GlobalStates.EDGE_RESULT_MAGIC)
+                    return readBinary(buffer, path);
+            }
+        }
+        return readText(path);
+    }
+
+    private static CoverageResult readBinary(ByteBuffer buffer, Path path) throws IOException {
+        boolean edgeCoverage = buffer.getInt() == GlobalStates.EDGE_RESULT_MAGIC;
+        int version = buffer.getInt();
+        if (version != GlobalStates.RESULT_VERSION)
+            throw new IOException("Unsupported result version " + version + ": " + path);
+        int branchCount = buffer.getInt();
+        int entries = buffer.getInt();
+        if (entries < 0)
+            throw new IOException("Malformed result: " + path);
+
+        int[] ids = new int[entries];
+        int[] counts = new int[entries];
+        int previous = -1;
+        try {
+            for (int i = 0; i < entries; i++) {
+                previous += getVarint(buffer);
+                ids[i] = previous;
+                counts[i] = getVarint(buffer);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated result: " + path, e);
+        }
+        return new CoverageResult(ids, counts, branchCount, edgeCoverage);
+    }
+
+    private static int getVarint(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                break;
+        }
+        return value;
+    }
+
+    private static CoverageResult readText(Path path) throws IOException {
+        int[] ids = new int[1024];
+        int[] counts = new int[1024];
+        int size = 0;
+        boolean sorted = true;
+        int edgeMapSize = -1;
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty())
+                    continue;
+                if (line.startsWith(EDGE_HEADER)) {
+                    try {
+                        edgeMapSize = Integer.parseInt(line.substring(EDGE_HEADER.length()).trim());
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Malformed line '" + line + "': " + path, e);
+                    }
+                    continue;
+                }
+                int separator = line.indexOf(':');
+                if (separator < 0)
+                    throw new IOException("Malformed line '" + line + "': " + path);
+                if (size == ids.length) {
+                    ids = Arrays.copyOf(ids, size * 2);
+                    counts = Arrays.copyOf(counts, size * 2);
+                }
+                try {
+                    ids[size] = Integer.parseInt(line.substring(0, separator));
+                    counts[size] = Integer.parseInt(line.substring(separator + 1));
+                } catch (NumberFormatException e) {
+                    throw new IOException("Malformed line '" + line + "': " + path, e);
+                }
+                if (size > 0 && ids[size] < ids[size - 1])
+                    sorted = false;
+                size++;
+            }
+        }
+
+        ids = Arrays.copyOf(ids, size);
+        counts = Arrays.copyOf(counts, size);
+        if (!sorted) {
+            long[] entries = new long[size];
+            for (int i = 0; i < size; i++)
+                entries[i] = ((long) ids[i] << 32) | (counts[i] & 0xFFFFFFFFL);
+            Arrays.sort(entries);
+            for (int i = 0; i < size; i++) {
+                ids[i] = (int) (entries[i] >>> 32);
+                counts[i] = (int) entries[i];
+            }
+        }
+        if (edgeMapSize >= 0)
+            return new CoverageResult(ids, counts, edgeMapSize, true);
+        // Text format does not keep the number of branch IDs
+        return new CoverageResult(ids, counts, size == 0 ? 0 : ids[size - 1] + 1, false);
+    }
+
+    /**
+     * @return number of executed branches
+     */
+    public int size() {
+        return ids.length;
+    }
+
+    /**
+     * @param index index of the entry, from 0 to {@link #size()} - 1
+     * @return branch ID of the entry
+     */
+    public int getId(int index) {
+        return ids[index];
+    }
+
+    /**
+     * @param index index of the entry, from 0 to {@link #size()} - 1
+     * @return number of execution of the entry
+     */
+    public int getCountAt(int index) {
+        return counts[index];
+    }
+
+    /**
+     * Get the number of execution of a branch.
+     *
+     * @param branchId branch ID
+     * @return number of execution, 0 if not executed
+     */
+    public int getCount(int branchId) {
+        int index = Arrays.binarySearch(ids, branchId);
+        return index < 0 ? 0 : counts[index];
+    }
+
+    /**
+     * @return number of branch IDs of the program in the binary format, or the last executed ID + 1 in the text format.
+     *         Size of the hit map for edge coverage.
+     */
+    public int getBranchCount() {
+        return branchCount;
+    }
+
+    /**
+     * @return true if the result has the hit map of edges, instead of the counter of each branch
+     */
+    public boolean isEdgeCoverage() {
+        return edgeCoverage;
+    }
+
+    /**
+     * Get the index of an edge in the hit map of edge coverage.
+     * <p>
+     * Different edges may share an index. The first branch of a run has the index of the edge from branch ID 0,
+     * whose location is 0.
+     * </p>
+     *
+     * @param previousBranchId branch executed before
+     * @param branchId         branch executed next
+     * @return index of the edge, to use with {@link #getCount(int)}
+     */
+    public static int getEdgeIndex(int previousBranchId, int branchId) {
+        return (Instruction.getEdgeLocation(previousBranchId) >> 1) ^ Instruction.getEdgeLocation(branchId);
+    }
+
+    /**
+     * @return number of execution of each executed branch, in ascending order of ID
+     */
+    public Map<Integer, Integer> toMap() {
+        Map<Integer, Integer> map = new LinkedHashMap<>();
+        for (int i = 0; i < ids.length; i++)
+            map.put(ids[i], counts[i]);
+        return map;
+    }
+}
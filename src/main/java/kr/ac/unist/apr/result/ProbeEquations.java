@@ -0,0 +1,163 @@
+package kr.ac.unist.apr.result;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Equations to derive the count of each branch from a result of optimized probe placement.
+ * <p>
+ * With optimized placement, the counters of the branch IDs of a method count edges of its control-flow graph,
+ * and each branch count is a sum of these raw counters. Each line of the file is an equation of a branch ID,
+ * e.g. <code>12=+12-15+2*13</code>, and <code>12=</code> if the branch is never executed.
+ * Branch IDs without an equation are counted by their own probes, so their raw counts are kept.
+ * Lines starting with # are ignored.
+ * <p>
+ * Usage: <code>ProbeEquations &lt;equation file&gt; &lt;result file&gt; [output file]</code>. The branch counts
+ * are written in the text format of GREYBOX_RESULT, or printed if there is no output file.
+ * A negative count means that a method was left in the middle, e.g. by an exception from a call.
+ * </p>
+ *
+ * @see kr.ac.unist.apr.asm.ProbePlanner
+ */
+public class ProbeEquations {
+    private static final Pattern TERM = Pattern.compile("([+-])(?:(\\d+)\\*)?(\\d+)");
+
+    // Pairs of a counter ID and its coefficient, for each branch ID
+    private final Map<Integer, int[]> equations = new TreeMap<>();
+
+    /**
+     * Add equations of branch IDs.
+     *
+     * @param equations pairs of a counter ID and its coefficient, for each branch ID
+     */
+    public synchronized void putAll(Map<Integer, int[]> equations) {
+        this.equations.putAll(equations);
+    }
+
+    /**
+     * @return number of branch IDs with an equation
+     */
+    public synchronized int size() {
+        return equations.size();
+    }
+
+    /**
+     * Derive the count of each branch from raw counters.
+     *
+     * @param raw result of an instrumented run
+     * @return nonzero count of each branch, in ascending order of ID
+     * @throws IllegalArgumentException if the result is edge coverage
+     */
+    public synchronized Map<Integer, Long> apply(CoverageResult raw) {
+        if (raw.isEdgeCoverage())
+            throw new IllegalArgumentException("Edge coverage does not have branch counts");
+        Map<Integer, Long> counts = new TreeMap<>();
+        for (int i = 0; i < raw.size(); i++) {
+            if (!equations.containsKey(raw.getId(i)))
+                counts.put(raw.getId(i), (long) raw.getCountAt(i));
+        }
+        for (Map.Entry<Integer, int[]> equation : equations.entrySet()) {
+            int[] terms = equation.getValue();
+            long count = 0;
+            for (int i = 0; i < terms.length; i += 2)
+                count += (long) terms[i + 1] * raw.getCount(terms[i]);
+            if (count != 0)
+                counts.put(equation.getKey(), count);
+        }
+        return counts;
+    }
+
+    /**
+     * Save the equations.
+     *
+     * @param path output file
+     * @throws IOException if the file cannot be written
+     */
+    public synchronized void write(Path path) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            writer.write("# branch ID=sum of coefficient*raw count of counter ID\n");
+            for (Map.Entry<Integer, int[]> equation : equations.entrySet()) {
+                StringBuilder line = new StringBuilder();
+                line.append(equation.getKey()).append('=');
+                int[] terms = equation.getValue();
+                for (int i = 0; i < terms.length; i += 2) {
+                    int coefficient = terms[i + 1];
+                    line.append(coefficient < 0 ? '-' : '+');
+                    if (Math.abs(coefficient) != 1)
+                        line.append(Math.abs(coefficient)).append('*');
+                    line.append(terms[i]);
+                }
+                writer.write(line.append('\n').toString());
+            }
+        }
+    }
+
+    /**
+     * Read equations saved by {@link #write(Path)}.
+     *
+     * @param path equation file
+     * @return equations of the file
+     * @throws IOException if the file cannot be read or is malformed
+     */
+    public static ProbeEquations read(Path path) throws IOException {
+        ProbeEquations result = new ProbeEquations();
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+                int separator = line.indexOf('=');
+                if (separator < 0)
+                    throw new IOException("Malformed line '" + line + "': " + path);
+                List<Integer> terms = new ArrayList<>();
+                Matcher matcher = TERM.matcher(line);
+                int end = separator + 1;
+                try {
+                    while (matcher.find(end) && matcher.start() == end) {
+                        int coefficient = matcher.group(2) == null ? 1 : Integer.parseInt(matcher.group(2));
+                        terms.add(Integer.parseInt(matcher.group(3)));
+                        terms.add(matcher.group(1).equals("-") ? -coefficient : coefficient);
+                        end = matcher.end();
+                    }
+                    if (end != line.length())
+                        throw new IOException("Malformed line '" + line + "': " + path);
+                    result.equations.put(Integer.parseInt(line.substring(0, separator).trim()),
+                            terms.stream().mapToInt(Integer::intValue).toArray());
+                } catch (NumberFormatException e) {
+                    throw new IOException("Malformed line '" + line + "': " + path, e);
+                }
+            }
+        }
+        return result;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: ProbeEquations <equation file> <result file> [output file]");
+            System.exit(1);
+        }
+        ProbeEquations equations = read(Paths.get(args[0]));
+        Map<Integer, Long> counts = equations.apply(CoverageResult.read(Paths.get(args[1])));
+        Writer output = args.length > 2 ? Files.newBufferedWriter(Paths.get(args[2]), StandardCharsets.UTF_8)
+                : new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+        try (PrintWriter writer = new PrintWriter(output)) {
+            for (Map.Entry<Integer, Long> count : counts.entrySet())
+                writer.print(count.getKey() + ":" + count.getValue() + "\n");
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package kr.ac.unist.apr.server;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+
+import kr.ac.unist.apr.BranchSelection;
+import kr.ac.unist.apr.Instrumenter;
+import kr.ac.unist.apr.Main;
+import kr.ac.unist.apr.OriginalProgram;
+import kr.ac.unist.apr.asm.ProbeMode;
+import kr.ac.unist.apr.cache.InstrumentationCache;
+
+/**
+ * Daemon that instruments patches of a single original program.
+ * <p>
+ * The original program is parsed and its branch IDs are computed once when the server starts,
+ * and kept in memory for every job. Each line of the input is a job in JSON, and the server writes
+ * a JSON line with the result of each job. Jobs run one by one, in the order of the input.
+ * The server stops at the end of the input.
+ * <p>
+ * Only target is required in a job. Missing fields are the options of the server:
+ * <pre>
+ * {"id": "p1", "target": "/path/to/patched/classes", "branchIds": [1, 2], "branches": "10-20,@ids.txt",
+ *  "includeClasses": ["com.example.**"], "excludeClasses": [], "includeMethods": [], "excludeMethods": ["toString"],
+ *  "probe": "bootstrap", "legacyFingerprint": false, "changedOnly": true, "distance": 1, "threads": 4, "streaming": false,
+ *  "timeOutput": "/path/to/time.csv", "report": "/path/to/report.json", "hashStringFile": "/path/to/hash.txt",
+ *  "probeEquations": "/path/to/equations.txt"}
+ * </pre>
+ * The first output line reports that the server is ready, and the other lines are the results of jobs:
+ * <pre>
+ * {"status": "ready", "branchCount": 5163, "timings": {"prepare": 2310.5}}
+ * {"id": "p1", "status": "ok", "branchCount": 5163, "probes": 120, "timings": {"scan": 3.1, "instrument": 41.8, "total": 44.9}}
+ * {"id": "p2", "status": "error", "error": "java.nio.file.NoSuchFileException: ..."}
+ * </pre>
+ * Timings are in milliseconds. If a job has <code>branchIds</code> or <code>branches</code>, both of them are
+ * taken from the job instead of the server.
+ * </p>
+ */
+public class InstrumentationServer {
+    private final OriginalProgram original;
+    private final Job defaults;
+    private final InstrumentationCache cache;
+    private final Gson gson = new GsonBuilder().disableHtmlEscaping().create();
+
+    /**
+     * Instrumentation job. Null fields are replaced with the default job of the server.
+     */
+    public static class Job {
+        /** ID echoed in the result */
+        public String id;
+        /** Class path of the patched program, overwritten with the instrumented classes */
+        public String target;
+        public List<Integer> branchIds;
+        /** Branch IDs, ranges and files of IDs, same with -i */
+        public String branches;
+        public List<String> includeClasses;
+        public List<String> excludeClasses;
+        public List<String> includeMethods;
+        public List<String> excludeMethods;
+        public String probe;
+        public Boolean legacyFingerprint;
+        public Boolean changedOnly;
+        public Integer distance;
+        public Integer threads;
+        public Boolean streaming;
+        public String timeOutput;
+        /** Output file of the metrics report */
+        public String report;
+        public String hashStringFile;
+        /** Output file of the probe equations, same with -O */
+        public String probeEquations;
+    }
+
+    /**
+     * Result of a job.
+     */
+    public static class JobResult {
+        public String id;
+        public String status;
+        public String error;
+        public Integer branchCount;
+        public Integer probes;
+        public Map<String, Double> timings;
+    }
+
+    /**
+     * @param original resident original program
+     * @param defaults default values of the job fields
+     * @param cache    cache shared by every job, or null
+     */
+    public InstrumentationServer(OriginalProgram original, Job defaults, InstrumentationCache cache) {
+        this.original = original;
+        this.defaults = defaults;
+        this.cache = cache;
+    }
+
+    /**
+     * Analyze the original program, then run jobs until the end of the input.
+     *
+     * @param in  job per line
+     * @param out result per line
+     * @throws IOException if the original program cannot be read or the output cannot be written
+     */
+    public void serve(BufferedReader in, Writer out) throws IOException {
+        long start = System.nanoTime();
+        Instrumenter.prepare(original, getOrDefault(null, defaults.threads, 1));
+        JobResult ready = new JobResult();
+        ready.status = "ready";
+        ready.branchCount = original.getBranchCount();
+        ready.timings = new LinkedHashMap<>();
+        ready.timings.put("prepare", toMillis(System.nanoTime() - start));
+        writeResult(out, ready);
+        Main.LOGGER.log(Level.INFO, "Server ready");
+
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.trim().isEmpty())
+                continue;
+
+            JobResult result;
+            try {
+                Job job = gson.fromJson(line, Job.class);
+                result = job == null ? getError(null, "Empty job") : run(job);
+            } catch (JsonParseException e) {
+                result = getError(null, "Malformed job: " + e.getMessage());
+            }
+            writeResult(out, result);
+        }
+    }
+
+    /**
+     * Run a single job.
+     *
+     * @param job job to run
+     * @return result of the job, with status error if it failed
+     */
+    public JobResult run(Job job) {
+        if (job.target == null)
+            return getError(job.id, "target is required");
+        if (!new File(job.target).exists())
+            return getError(job.id, "target not found: " + job.target);
+
+        long start = System.nanoTime();
+        try {
+            Instrumenter instrumenter = new Instrumenter(job.target, original, Collections.emptyList(),
+                    getOrDefault(job.streaming, defaults.streaming, false));
+            long scanned = System.nanoTime();
+
+            instrumenter.setSelection(getSelection(job));
+            instrumenter.setThreads(getOrDefault(job.threads, defaults.threads, 1));
+            instrumenter.setProbeMode(ProbeMode.fromName(getOrDefault(job.probe, defaults.probe, "legacy")));
+            instrumenter.setLegacyFingerprint(getOrDefault(job.legacyFingerprint, defaults.legacyFingerprint, false));
+            if (getOrDefault(job.changedOnly, defaults.changedOnly, false))
+                instrumenter.setChangedMethodDistance(getOrDefault(job.distance, defaults.distance, 0));
+            else if (job.distance != null)
+                Main.LOGGER.warning("Job " + job.id + ": distance is only used with changedOnly."
+                        + " Every method is instrumented.");
+            String hashStringFile = getOrDefault(job.hashStringFile, defaults.hashStringFile, "");
+            if (!hashStringFile.equals(""))
+                instrumenter.setHashStringFile(hashStringFile);
+            instrumenter.setProbeEquationFile(getOrDefault(job.probeEquations, defaults.probeEquations, null));
+            instrumenter.setCache(cache);
+            instrumenter.setReportFile(getOrDefault(job.report, defaults.report, null));
+
+            int probes = Instrumenter.totalInstrumented.get();
+            instrumenter.instrument(getOrDefault(job.timeOutput, defaults.timeOutput, ""));
+            long end = System.nanoTime();
+
+            JobResult result = new JobResult();
+            result.id = job.id;
+            result.status = "ok";
+            result.branchCount = instrumenter.getBranchCount();
+            result.probes = Instrumenter.totalInstrumented.get() - probes;
+            result.timings = new LinkedHashMap<>();
+            result.timings.put("scan", toMillis(scanned - start));
+            result.timings.put("instrument", toMillis(end - scanned));
+            result.timings.put("total", toMillis(end - start));
+            return result;
+        } catch (IOException | RuntimeException e) {
+            Main.LOGGER.log(Level.WARNING, "Job " + job.id + " failed", e);
+            return getError(job.id, e.toString());
+        }
+    }
+
+    /**
+     * Get the branches to instrument of a job, with the default fields of the server.
+     *
+     * @param job job
+     * @return selection of the job
+     * @throws IOException if a file of branch IDs cannot be read
+     */
+    private BranchSelection getSelection(Job job) throws IOException {
+        Job ids = job.branchIds != null || job.branches != null ? job : defaults;
+        BranchSelection selection = BranchSelection.ofIds(getOrDefault(ids.branchIds, null,
+                Collections.<Integer>emptyList()));
+        selection.addIds(getOrDefault(ids.branches, null, ""));
+
+        List<String> none = Collections.emptyList();
+        for (String pattern : getOrDefault(job.includeClasses, defaults.includeClasses, none))
+            selection.includeClass(pattern);
+        for (String pattern : getOrDefault(job.excludeClasses, defaults.excludeClasses, none))
+            selection.excludeClass(pattern);
+        for (String pattern : getOrDefault(job.includeMethods, defaults.includeMethods, none))
+            selection.includeMethod(pattern);
+        for (String pattern : getOrDefault(job.excludeMethods, defaults.excludeMethods, none))
+            selection.excludeMethod(pattern);
+        return selection;
+    }
+
+    private void writeResult(Writer out, JobResult result) throws IOException {
+        out.write(gson.toJson(result));
+        out.write('\n');
+        out.flush();
+    }
+
+    private static JobResult getError(String id, String message) {
+        JobResult result = new JobResult();
+        result.id = id;
+        result.status = "error";
+        result.error = message;
+        return result;
+    }
+
+    private static <T> T getOrDefault(T value, T defaultValue, T fallback) {
+        if (value != null)
+            return value;
+        return defaultValue != null ? defaultValue : fallback;
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / 1000000.0;
+    }
+}
@@ -0,0 +1,456 @@
+package kr.ac.unist.apr.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import kr.ac.unist.apr.Main;
+
+/**
+ * Writes a jar or zip file with some entries replaced, without extracting it.
+ * <p>
+ * Entries that are not replaced are copied as they are: the local header and the compressed data are copied
+ * from the source file, so they are not inflated or compressed again. Replaced and new entries are deflated
+ * in advance with {@link #compress(byte[])}.
+ * The central directory is written again with the new offsets.
+ * <p>
+ * ZIP64 archives, and archives with data after the central directory, are written with {@link ZipOutputStream}
+ * instead, which compresses every entry again.
+ * <p>
+ * Signature files in META-INF are dropped, because the signatures do not match the replaced entries.
+ * <p>
+ * Added entries have the time of the DOS epoch, 1980-01-01 00:00, so the same input gives the same archive.
+ * </p>
+ *
+ * @see ClassArchive
+ */
+public class ArchiveWriter {
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+    private static final int MAX_COMMENT_SIZE = 0xFFFF;
+    private static final long MAX_OFFSET = 0xFFFFFFFFL;
+    private static final int MAX_ENTRIES = 0xFFFF;
+
+    private static final int FLAG_DATA_DESCRIPTOR = 1 << 3;
+    private static final int FLAG_UTF8 = 1 << 11;
+    private static final int METHOD_DEFLATED = 8;
+    private static final int VERSION_DEFLATED = 20;
+
+    // 1980-01-01 00:00 in MS-DOS date and time
+    private static final int DOS_EPOCH_TIME = 0;
+    private static final int DOS_EPOCH_DATE = 1 << 5 | 1;
+
+    /**
+     * Entry in the central directory of the source archive.
+     */
+    private static class CentralEntry {
+        final String name;
+        // Central directory record, with the name, extra field and comment
+        final byte[] record;
+        final long offset;
+
+        CentralEntry(String name, byte[] record, long offset) {
+            this.name = name;
+            this.record = record;
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * Central directory of the source archive.
+     */
+    private static class CentralDirectory {
+        final List<CentralEntry> entries = new ArrayList<>();
+        long offset;
+        byte[] comment;
+    }
+
+    /**
+     * Deflated content of an entry, created with {@link #compress(byte[])}.
+     */
+    public static class CompressedEntry {
+        final byte[] compressed;
+        final int crc;
+        final int size;
+
+        private CompressedEntry(byte[] compressed, int crc, int size) {
+            this.compressed = compressed;
+            this.crc = crc;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Deflate the content of an entry.
+     * <p>
+     * Entries are compressed when they are created, e.g. by each thread of an instrumentation,
+     * so {@link #rewrite} only copies them.
+     * </p>
+     *
+     * @param content uncompressed content
+     * @return compressed entry
+     */
+    public static CompressedEntry compress(byte[] content) {
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(content);
+            deflater.finish();
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(content.length / 2 + 64);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                int length = deflater.deflate(buffer);
+                compressed.write(buffer, 0, length);
+            }
+            return new CompressedEntry(compressed.toByteArray(), (int) crc.getValue(), content.length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Write a copy of an archive with replaced entries.
+     *
+     * @param source      source archive
+     * @param entries     compressed content of each entry name, separated with '/'.
+     *                    Entries not in the source are added.
+     * @param destination new archive, should be different from the source
+     * @throws IOException if the source cannot be read or the destination cannot be written
+     */
+    public static void rewrite(File source, Map<String, CompressedEntry> entries, File destination) throws IOException {
+        try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+            CentralDirectory directory = readCentralDirectory(in);
+            if (directory != null && copyEntries(in, directory, entries, destination))
+                return;
+        }
+        Main.LOGGER.log(Level.INFO, "Archive " + source + " is not copied as is, compress every entry again.");
+        compressEntries(source, entries, destination);
+    }
+
+    /**
+     * Read the central directory.
+     *
+     * @param in source archive
+     * @return central directory, or null if the archive is ZIP64 or has unexpected data
+     * @throws IOException if the archive cannot be read
+     */
+    private static CentralDirectory readCentralDirectory(FileChannel in) throws IOException {
+        long size = in.size();
+        if (size < END_OF_CENTRAL_DIRECTORY_SIZE)
+            return null;
+
+        // End of central directory record, followed by the comment until the end of the file
+        int tailSize = (int) Math.min(size, END_OF_CENTRAL_DIRECTORY_SIZE + MAX_COMMENT_SIZE);
+        ByteBuffer tail = read(in, size - tailSize, tailSize);
+        int end = -1;
+        for (int i = tailSize - END_OF_CENTRAL_DIRECTORY_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == END_OF_CENTRAL_DIRECTORY
+                    && i + END_OF_CENTRAL_DIRECTORY_SIZE + getShort(tail, i + 20) == tailSize) {
+                end = i;
+                break;
+            }
+        }
+        if (end < 0)
+            return null;
+
+        int count = getShort(tail, end + 10);
+        long directorySize = getInt(tail, end + 12);
+        long directoryOffset = getInt(tail, end + 16);
+        if (getShort(tail, end + 4) != 0 || getShort(tail, end + 6) != 0 || count == MAX_ENTRIES
+                || directorySize == MAX_OFFSET || directoryOffset == MAX_OFFSET
+                || directoryOffset + directorySize != size - tailSize + end)
+            return null;
+
+        CentralDirectory directory = new CentralDirectory();
+        directory.offset = directoryOffset;
+        directory.comment = new byte[getShort(tail, end + 20)];
+        tail.position(end + END_OF_CENTRAL_DIRECTORY_SIZE);
+        tail.get(directory.comment);
+
+        ByteBuffer records = read(in, directoryOffset, (int) directorySize);
+        int position = 0;
+        for (int i = 0; i < count; i++) {
+            if (position + CENTRAL_HEADER_SIZE > directorySize || records.getInt(position) != CENTRAL_HEADER)
+                return null;
+            long compressedSize = getInt(records, position + 20);
+            long entrySize = getInt(records, position + 24);
+            long offset = getInt(records, position + 42);
+            if (compressedSize == MAX_OFFSET || entrySize == MAX_OFFSET || offset == MAX_OFFSET)
+                return null;
+            int nameLength = getShort(records, position + 28);
+            int recordSize = CENTRAL_HEADER_SIZE + nameLength + getShort(records, position + 30)
+                    + getShort(records, position + 32);
+            if (position + recordSize > directorySize)
+                return null;
+
+            byte[] record = new byte[recordSize];
+            records.position(position);
+            records.get(record);
+            String name = new String(record, CENTRAL_HEADER_SIZE, nameLength, StandardCharsets.UTF_8);
+            directory.entries.add(new CentralEntry(name, record, offset));
+            position += recordSize;
+        }
+        return directory;
+    }
+
+    /**
+     * Copy the entries of the source archive and write the replaced entries.
+     *
+     * @return false if the new archive needs ZIP64
+     */
+    private static boolean copyEntries(FileChannel in, CentralDirectory directory, Map<String, CompressedEntry> entries,
+            File destination) throws IOException {
+        // Local entries are copied in the order of the file, from the offset of each entry to the next one
+        List<CentralEntry> localOrder = new ArrayList<>(directory.entries);
+        localOrder.sort(Comparator.comparingLong(e -> e.offset));
+        Map<String, CompressedEntry> newEntries = new TreeMap<>(entries);
+        Set<CentralEntry> dropped = new HashSet<>();
+
+        try (FileChannel out = FileChannel.open(destination.toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            // Data before the first entry, e.g. the launcher script of an executable jar
+            long start = localOrder.isEmpty() ? directory.offset : localOrder.get(0).offset;
+            transfer(in, 0, start, out);
+
+            Map<CentralEntry, Long> offsets = new HashMap<>();
+            Map<CentralEntry, Integer> replacedFlags = new HashMap<>();
+            for (int i = 0; i < localOrder.size(); i++) {
+                CentralEntry entry = localOrder.get(i);
+                long next = i + 1 < localOrder.size() ? localOrder.get(i + 1).offset : directory.offset;
+                if (isSignature(entry.name)) {
+                    dropped.add(entry);
+                    continue;
+                }
+                offsets.put(entry, out.position());
+                CompressedEntry content = entries.get(entry.name);
+                if (content == null) {
+                    transfer(in, entry.offset, next - entry.offset, out);
+                } else {
+                    newEntries.remove(entry.name);
+                    ByteBuffer record = ByteBuffer.wrap(entry.record).order(ByteOrder.LITTLE_ENDIAN);
+                    int flags = getShort(record, 8) & ~FLAG_DATA_DESCRIPTOR;
+                    writeLocalEntry(out, entry.name, content, flags, getShort(record, 12), getShort(record, 14));
+                    replacedFlags.put(entry, flags);
+                }
+            }
+            if (!dropped.isEmpty())
+                Main.LOGGER.warning("Signature files are removed from the instrumented archive: " + dropped.size());
+
+            // Added entries, in the order of names
+            List<byte[]> addedRecords = new ArrayList<>();
+            for (Map.Entry<String, CompressedEntry> entry : newEntries.entrySet()) {
+                long offset = out.position();
+                if (offset > MAX_OFFSET)
+                    return false;
+                writeLocalEntry(out, entry.getKey(), entry.getValue(), FLAG_UTF8, DOS_EPOCH_TIME, DOS_EPOCH_DATE);
+                addedRecords.add(createCentralRecord(entry.getKey(), entry.getValue(), DOS_EPOCH_TIME,
+                        DOS_EPOCH_DATE, offset));
+            }
+
+            long directoryOffset = out.position();
+            int count = addedRecords.size();
+            for (CentralEntry entry : directory.entries) {
+                if (dropped.contains(entry))
+                    continue;
+                ByteBuffer record = ByteBuffer.wrap(entry.record.clone()).order(ByteOrder.LITTLE_ENDIAN);
+                Integer flags = replacedFlags.get(entry);
+                if (flags != null) {
+                    CompressedEntry content = entries.get(entry.name);
+                    record.putShort(6, (short) VERSION_DEFLATED);
+                    record.putShort(8, (short) (int) flags);
+                    record.putShort(10, (short) METHOD_DEFLATED);
+                    record.putInt(16, content.crc);
+                    record.putInt(20, content.compressed.length);
+                    record.putInt(24, content.size);
+                }
+                long offset = offsets.get(entry);
+                if (offset > MAX_OFFSET)
+                    return false;
+                record.putInt(42, (int) offset);
+                write(out, record);
+                count++;
+            }
+            for (byte[] record : addedRecords)
+                write(out, ByteBuffer.wrap(record));
+            long directorySize = out.position() - directoryOffset;
+            if (count >= MAX_ENTRIES || directoryOffset + directorySize > MAX_OFFSET)
+                return false;
+
+            ByteBuffer end = ByteBuffer.allocate(END_OF_CENTRAL_DIRECTORY_SIZE + directory.comment.length)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            end.putInt(END_OF_CENTRAL_DIRECTORY).putShort((short) 0).putShort((short) 0);
+            end.putShort((short) count).putShort((short) count);
+            end.putInt((int) directorySize).putInt((int) directoryOffset);
+            end.putShort((short) directory.comment.length).put(directory.comment);
+            end.flip();
+            write(out, end);
+        }
+        return true;
+    }
+
+    /**
+     * Write a deflated entry with its local header.
+     */
+    private static void writeLocalEntry(FileChannel out, String name, CompressedEntry content, int flags, int time,
+            int date) throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+
+        ByteBuffer header = ByteBuffer.allocate(LOCAL_HEADER_SIZE + nameBytes.length).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(LOCAL_HEADER).putShort((short) VERSION_DEFLATED).putShort((short) flags);
+        header.putShort((short) METHOD_DEFLATED).putShort((short) time).putShort((short) date);
+        header.putInt(content.crc).putInt(content.compressed.length).putInt(content.size);
+        header.putShort((short) nameBytes.length).putShort((short) 0).put(nameBytes);
+        header.flip();
+        write(out, header);
+        write(out, ByteBuffer.wrap(content.compressed));
+    }
+
+    private static byte[] createCentralRecord(String name, CompressedEntry content, int time, int date, long offset) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(CENTRAL_HEADER_SIZE + nameBytes.length).order(ByteOrder.LITTLE_ENDIAN);
+        record.putInt(CENTRAL_HEADER).putShort((short) VERSION_DEFLATED).putShort((short) VERSION_DEFLATED);
+        record.putShort((short) FLAG_UTF8).putShort((short) METHOD_DEFLATED);
+        record.putShort((short) time).putShort((short) date);
+        record.putInt(content.crc).putInt(content.compressed.length).putInt(content.size);
+        record.putShort((short) nameBytes.length).putShort((short) 0).putShort((short) 0);
+        // Disk, internal and external attributes
+        record.putShort((short) 0).putShort((short) 0).putInt(0);
+        record.putInt((int) offset).put(nameBytes);
+        return record.array();
+    }
+
+    /**
+     * Write the archive with {@link ZipOutputStream}, for archives that cannot be copied as they are.
+     */
+    private static void compressEntries(File source, Map<String, CompressedEntry> entries, File destination)
+            throws IOException {
+        Map<String, CompressedEntry> newEntries = new TreeMap<>(entries);
+        try (ZipFile zip = new ZipFile(source);
+                ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(destination)))) {
+            if (zip.getComment() != null)
+                out.setComment(zip.getComment());
+            byte[] buffer = new byte[8192];
+            Enumeration<? extends ZipEntry> sourceEntries = zip.entries();
+            while (sourceEntries.hasMoreElements()) {
+                ZipEntry entry = sourceEntries.nextElement();
+                if (isSignature(entry.getName()))
+                    continue;
+                ZipEntry newEntry = new ZipEntry(entry.getName());
+                newEntry.setTime(entry.getTime());
+                out.putNextEntry(newEntry);
+                CompressedEntry content = newEntries.remove(entry.getName());
+                if (content != null) {
+                    out.write(inflate(content));
+                } else {
+                    try (InputStream stream = zip.getInputStream(entry)) {
+                        int read;
+                        while ((read = stream.read(buffer)) != -1)
+                            out.write(buffer, 0, read);
+                    }
+                }
+                out.closeEntry();
+            }
+            // ZipEntry converts the time to MS-DOS time in the default time zone
+            long epoch = new GregorianCalendar(1980, Calendar.JANUARY, 1).getTimeInMillis();
+            for (Map.Entry<String, CompressedEntry> entry : newEntries.entrySet()) {
+                ZipEntry newEntry = new ZipEntry(entry.getKey());
+                newEntry.setTime(epoch);
+                out.putNextEntry(newEntry);
+                out.write(inflate(entry.getValue()));
+                out.closeEntry();
+            }
+        }
+    }
+
+    private static byte[] inflate(CompressedEntry entry) throws IOException {
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(entry.compressed);
+            byte[] content = new byte[entry.size];
+            int length = 0;
+            while (length < content.length) {
+                int read = inflater.inflate(content, length, content.length - length);
+                if (read == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+                    throw new IOException("Truncated entry");
+                length += read;
+            }
+            return content;
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static boolean isSignature(String name) {
+        String upperName = name.toUpperCase();
+        return upperName.startsWith("META-INF/") && upperName.indexOf('/', "META-INF/".length()) < 0
+                && (upperName.endsWith(".SF") || upperName.endsWith(".RSA") || upperName.endsWith(".DSA")
+                        || upperName.endsWith(".EC"));
+    }
+
+    private static ByteBuffer read(FileChannel in, long position, int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer, position + buffer.position()) < 0)
+                throw new IOException("Unexpected end of archive");
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void write(FileChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            out.write(buffer);
+    }
+
+    private static void transfer(FileChannel in, long position, long count, FileChannel out) throws IOException {
+        long transferred = 0;
+        while (transferred < count) {
+            long length = in.transferTo(position + transferred, count - transferred, out);
+            if (length <= 0)
+                throw new IOException("Unexpected end of archive");
+            transferred += length;
+        }
+    }
+
+    private static int getShort(ByteBuffer buffer, int index) {
+        return buffer.getShort(index) & 0xFFFF;
+    }
+
+    private static long getInt(ByteBuffer buffer, int index) {
+        return buffer.getInt(index) & 0xFFFFFFFFL;
+    }
+}
@@ -0,0 +1,134 @@
+package kr.ac.unist.apr.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Class files in a jar or zip file.
+ * <p>
+ * Entries are inflated when they are read, without extracting the archive.
+ * Class names are the entry names with the separator of the platform, same with the relative paths of
+ * the class files in the extracted directory. So branch IDs of an archive are same with its directory.
+ * </p>
+ *
+ * @see ArchiveWriter
+ */
+public class ClassArchive implements Closeable {
+    private final File file;
+    private final ZipFile zip;
+
+    /**
+     * Open an archive.
+     *
+     * @param file jar or zip file
+     * @throws IOException if the file is not a valid archive
+     */
+    public ClassArchive(File file) throws IOException {
+        this.file = file;
+        this.zip = new ZipFile(file);
+    }
+
+    /**
+     * @return archive file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Get the class files in the archive, except the classes of this instrumenter.
+     *
+     * @return relative paths of the class files, sorted
+     */
+    public List<String> getClassNames() {
+        List<String> classNames = new ArrayList<>();
+        Enumeration<? extends ZipEntry> entries = zip.entries();
+        while (entries.hasMoreElements()) {
+            ZipEntry entry = entries.nextElement();
+            String name = entry.getName();
+            if (entry.isDirectory() || !name.endsWith(".class") || name.contains("kr/ac/unist/apr"))
+                continue;
+            classNames.add(toClassName(name));
+        }
+        Collections.sort(classNames);
+        return classNames;
+    }
+
+    /**
+     * Read a class file.
+     *
+     * @param className relative path of the class file
+     * @return class file, or null if the archive does not have it
+     * @throws IOException if the entry cannot be read
+     */
+    public byte[] read(String className) throws IOException {
+        ZipEntry entry = zip.getEntry(toEntryName(className));
+        if (entry == null)
+            return null;
+        try (InputStream stream = zip.getInputStream(entry)) {
+            long size = entry.getSize();
+            if (size >= 0) {
+                byte[] bytes = new byte[(int) size];
+                new DataInputStream(stream).readFully(bytes);
+                return bytes;
+            }
+            // Size is unknown if the entry has a data descriptor and the central directory does not have it
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = stream.read(buffer)) != -1)
+                bytes.write(buffer, 0, read);
+            return bytes.toByteArray();
+        }
+    }
+
+    /**
+     * Get the size of a class file, without reading it.
+     *
+     * @param className relative path of the class file
+     * @return uncompressed size, or -1 if the archive does not have the class or the size is unknown
+     */
+    public long getSize(String className) {
+        ZipEntry entry = zip.getEntry(toEntryName(className));
+        return entry == null ? -1 : entry.getSize();
+    }
+
+    /**
+     * Get the CRC-32 checksum of a class file, without reading it.
+     *
+     * @param className relative path of the class file
+     * @return CRC-32 of the uncompressed class file, or -1 if the archive does not have the class or the checksum
+     *         is unknown
+     */
+    public long getCrc(String className) {
+        ZipEntry entry = zip.getEntry(toEntryName(className));
+        return entry == null ? -1 : entry.getCrc();
+    }
+
+    @Override
+    public void close() throws IOException {
+        zip.close();
+    }
+
+    /**
+     * @param className relative path of a class file
+     * @return entry name of the class file, separated with '/'
+     */
+    public static String toEntryName(String className) {
+        return className.replace(File.separatorChar, '/');
+    }
+
+    private static String toClassName(String entryName) {
+        return entryName.replace('/', File.separatorChar);
+    }
+}
@@ -0,0 +1,70 @@
+package kr.ac.unist.apr.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystemLoopException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.EnumSet;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Finds the class files of a class path directory in a single walk of the file tree.
+ * <p>
+ * The relative path of each class file is cut from the path of the walk, and the type of each file comes from
+ * the walk, so files are not opened or checked one by one. Symbolic links are followed, and loops are skipped.
+ * Classes of this instrumenter (kr/ac/unist/apr) are skipped.
+ * </p>
+ */
+public class ClassScanner {
+    private static final String CLASS_SUFFIX = ".class";
+    private static final String INSTRUMENTER_PACKAGE = "kr" + File.separator + "ac" + File.separator + "unist"
+            + File.separator + "apr";
+
+    /**
+     * Find the class files of a class path.
+     *
+     * @param classPath class path directory, or a class file
+     * @return absolute path of each class file, keyed by its relative path from the class path in the order of paths.
+     *         A class file given as the class path is keyed by the empty string.
+     * @throws IOException if a directory cannot be read
+     */
+    public static SortedMap<String, String> scan(File classPath) throws IOException {
+        SortedMap<String, String> classFiles = new TreeMap<>();
+        Path root = classPath.toPath().toAbsolutePath().normalize();
+        if (Files.isRegularFile(root)) {
+            if (root.toString().endsWith(CLASS_SUFFIX))
+                classFiles.put("", root.toString());
+            return classFiles;
+        }
+
+        String rootPath = root.toString();
+        int prefixLength = rootPath.endsWith(File.separator) ? rootPath.length() : rootPath.length() + 1;
+        Files.walkFileTree(root, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE,
+                new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                        String path = file.toString();
+                        if (attributes.isRegularFile() && path.endsWith(CLASS_SUFFIX)) {
+                            String className = path.substring(prefixLength);
+                            if (!className.contains(INSTRUMENTER_PACKAGE))
+                                classFiles.put(className, path);
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path file, IOException exception) throws IOException {
+                        if (exception instanceof FileSystemLoopException)
+                            return FileVisitResult.CONTINUE;
+                        throw exception;
+                    }
+                });
+        return classFiles;
+    }
+}
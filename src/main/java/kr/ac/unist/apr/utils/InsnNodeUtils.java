@@ -1,16 +1,31 @@
 package kr.ac.unist.apr.utils;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
 import org.objectweb.asm.tree.AbstractInsnNode;
 import org.objectweb.asm.tree.FieldInsnNode;
 import org.objectweb.asm.tree.FrameNode;
 import org.objectweb.asm.tree.IincInsnNode;
+import org.objectweb.asm.tree.InsnList;
 import org.objectweb.asm.tree.IntInsnNode;
 import org.objectweb.asm.tree.InvokeDynamicInsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.LineNumberNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
 import org.objectweb.asm.tree.MethodInsnNode;
 import org.objectweb.asm.tree.MethodNode;
 import org.objectweb.asm.tree.MultiANewArrayInsnNode;
 import org.objectweb.asm.tree.TableSwitchInsnNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
 import org.objectweb.asm.tree.TypeInsnNode;
+import org.objectweb.asm.tree.VarInsnNode;
 
 /**
  * Utility class related to ASM.
@@ -25,47 +40,218 @@ public class InsnNodeUtils {
         switch (node.getType()){
             case AbstractInsnNode.FIELD_INSN:
                 FieldInsnNode fieldInsnNode=(FieldInsnNode)node;
-                return "FieldInsn:"+node.getOpcode()+","+fieldInsnNode.owner+"."+fieldInsnNode.name+":"+fieldInsnNode.desc;
+                return convertToString(node.getType(),node.getOpcode(),fieldInsnNode.owner,fieldInsnNode.name,fieldInsnNode.desc,0,0);
             case AbstractInsnNode.FRAME:
-                FrameNode frameNode=(FrameNode)node;
-                return "Frame:"+node.getOpcode()+","+frameNode.type;
+                return convertToString(node.getType(),node.getOpcode(),null,null,null,((FrameNode)node).type,0);
             case AbstractInsnNode.IINC_INSN:
                 IincInsnNode iincInsnNode=(IincInsnNode)node;
-                return "IincInsn:"+node.getOpcode()+","+iincInsnNode.incr;
-            case AbstractInsnNode.INSN:
-                return "Insn:"+node.getOpcode();
+                return convertToString(node.getType(),node.getOpcode(),null,null,null,iincInsnNode.incr,iincInsnNode.var);
             case AbstractInsnNode.INT_INSN:
-                IntInsnNode intInsnNode=(IntInsnNode)node;
-                return "IntInsn:"+node.getOpcode()+","+intInsnNode.operand;
+                return convertToString(node.getType(),node.getOpcode(),null,null,null,((IntInsnNode)node).operand,0);
             case AbstractInsnNode.INVOKE_DYNAMIC_INSN:
                 InvokeDynamicInsnNode invokeDynamicInsnNode=(InvokeDynamicInsnNode)node;
-                return "InvokeDynamicInsn:"+node.getOpcode()+","+invokeDynamicInsnNode.name+":"+invokeDynamicInsnNode.desc;
+                return convertToString(node.getType(),node.getOpcode(),null,invokeDynamicInsnNode.name,invokeDynamicInsnNode.desc,0,0);
+            case AbstractInsnNode.LINE:
+                return convertToString(node.getType(),node.getOpcode(),null,null,null,((LineNumberNode)node).line,0);
+            case AbstractInsnNode.METHOD_INSN:
+                MethodInsnNode methodInsnNode=(MethodInsnNode)node;
+                return convertToString(node.getType(),node.getOpcode(),methodInsnNode.owner,methodInsnNode.name,methodInsnNode.desc,0,0);
+            case AbstractInsnNode.MULTIANEWARRAY_INSN:
+                MultiANewArrayInsnNode multiANewArrayInsnNode=(MultiANewArrayInsnNode)node;
+                return convertToString(node.getType(),node.getOpcode(),null,null,multiANewArrayInsnNode.desc,multiANewArrayInsnNode.dims,0);
+            case AbstractInsnNode.TABLESWITCH_INSN:
+                TableSwitchInsnNode tableSwitchInsnNode=(TableSwitchInsnNode)node;
+                return convertToString(node.getType(),node.getOpcode(),null,null,null,tableSwitchInsnNode.min,tableSwitchInsnNode.max);
+            case AbstractInsnNode.TYPE_INSN:
+                return convertToString(node.getType(),node.getOpcode(),null,null,((TypeInsnNode)node).desc,0,0);
+            case AbstractInsnNode.VAR_INSN:
+                return convertToString(node.getType(),node.getOpcode(),null,null,null,((VarInsnNode)node).var,0);
+            default:
+                // Only the type and opcode
+                return convertToString(node.getType(),node.getOpcode(),null,null,null,0,0);
+        }
+    }
+
+    /**
+     * Converts an instruction visited by a MethodVisitor to string to generate a hash.
+     * <p>
+     * Same with {@link #convertNodeToString(AbstractInsnNode)} for the node of the instruction.
+     * Operands are given as {@link kr.ac.unist.apr.asm.InstructionVisitor#visitNode} passes them.
+     * </p>
+     * @param type type of the node, e.g. {@link AbstractInsnNode#FIELD_INSN}
+     * @param opcode opcode, -1 for labels, line numbers and frames
+     * @param owner owner of field and method instructions
+     * @param name name of field, method and invokedynamic instructions
+     * @param desc descriptor of field, method, invokedynamic, type and multianewarray instructions
+     * @param operand1 first int operand
+     * @param operand2 second int operand
+     * @return string representation of the instruction
+     */
+    public static String convertToString(int type,int opcode,String owner,String name,String desc,int operand1,int operand2) {
+        switch (type){
+            case AbstractInsnNode.FIELD_INSN:
+                return "FieldInsn:"+opcode+","+owner+"."+name+":"+desc;
+            case AbstractInsnNode.FRAME:
+                return "Frame:"+opcode+","+operand1;
+            case AbstractInsnNode.IINC_INSN:
+                return "IincInsn:"+opcode+","+operand1;
+            case AbstractInsnNode.INSN:
+                return "Insn:"+opcode;
+            case AbstractInsnNode.INT_INSN:
+                return "IntInsn:"+opcode+","+operand1;
+            case AbstractInsnNode.INVOKE_DYNAMIC_INSN:
+                return "InvokeDynamicInsn:"+opcode+","+name+":"+desc;
             case AbstractInsnNode.JUMP_INSN:
-                return "JumpInsn:"+node.getOpcode();
+                return "JumpInsn:"+opcode;
             case AbstractInsnNode.LABEL:
                 return "";
             case AbstractInsnNode.LDC_INSN:
-                return "LdcInsn:"+node.getOpcode();
+                return "LdcInsn:"+opcode;
             case AbstractInsnNode.LINE:
                 return "";
             case AbstractInsnNode.LOOKUPSWITCH_INSN:
-                return "LookupSwitchInsn:"+node.getOpcode();
+                return "LookupSwitchInsn:"+opcode;
             case AbstractInsnNode.METHOD_INSN:
-                MethodInsnNode methodInsnNode=(MethodInsnNode)node;
-                return "MethodInsn:"+node.getOpcode()+","+methodInsnNode.owner+"."+methodInsnNode.name+":"+methodInsnNode.desc;
+                return "MethodInsn:"+opcode+","+owner+"."+name+":"+desc;
             case AbstractInsnNode.MULTIANEWARRAY_INSN:
-                MultiANewArrayInsnNode multiANewArrayInsnNode=(MultiANewArrayInsnNode)node;
-                return "MultiANewArrayInsn:"+node.getOpcode()+","+multiANewArrayInsnNode.desc+","+multiANewArrayInsnNode.dims;
+                return "MultiANewArrayInsn:"+opcode+","+desc+","+operand1;
             case AbstractInsnNode.TABLESWITCH_INSN:
-                TableSwitchInsnNode tableSwitchInsnNode=(TableSwitchInsnNode)node;
-                return "TableSwitchInsn:"+node.getOpcode()+","+tableSwitchInsnNode.min+","+tableSwitchInsnNode.max;
+                return "TableSwitchInsn:"+opcode+","+operand1+","+operand2;
             case AbstractInsnNode.TYPE_INSN:
-                TypeInsnNode typeInsnNode=(TypeInsnNode)node;
-                return "TypeInsn:"+node.getOpcode()+","+typeInsnNode.desc;
+                return "TypeInsn:"+opcode+","+desc;
+            case AbstractInsnNode.VAR_INSN:
+                return "VarInsn:"+opcode;
+            default:
+                throw new RuntimeException("Node type not found: "+type);
+        }
+    }
+
+    /**
+     * Counts jump instructions in the given instructions.
+     * @param instructions instructions of a method
+     * @return number of JumpInsnNode in instructions
+     */
+    public static int countJumps(InsnList instructions) {
+        int count=0;
+        for (AbstractInsnNode insn:instructions) {
+            if (insn.getType()==AbstractInsnNode.JUMP_INSN)
+                count++;
+        }
+        return count;
+    }
+
+    /**
+     * Checks the code of two methods is same.
+     * <p>
+     * Labels are compared by their position, and line numbers and frames are ignored.
+     * So the methods are same even if the patch moves them to other lines.
+     * </p>
+     * @param a method
+     * @param b method to compare
+     * @return true if two methods have same instructions and try-catch blocks
+     */
+    public static boolean isSameCode(MethodNode a,MethodNode b) {
+        if (a.access!=b.access)
+            return false;
+        List<AbstractInsnNode> insnsA=getRealInstructions(a.instructions);
+        List<AbstractInsnNode> insnsB=getRealInstructions(b.instructions);
+        if (insnsA.size()!=insnsB.size() || a.tryCatchBlocks.size()!=b.tryCatchBlocks.size())
+            return false;
+
+        Map<LabelNode,Integer> labelsA=getLabelPositions(a.instructions);
+        Map<LabelNode,Integer> labelsB=getLabelPositions(b.instructions);
+        for (int i=0;i<insnsA.size();i++) {
+            if (!isSameInstruction(insnsA.get(i),labelsA,insnsB.get(i),labelsB))
+                return false;
+        }
+        for (int i=0;i<a.tryCatchBlocks.size();i++) {
+            TryCatchBlockNode blockA=a.tryCatchBlocks.get(i);
+            TryCatchBlockNode blockB=b.tryCatchBlocks.get(i);
+            if (!labelsA.get(blockA.start).equals(labelsB.get(blockB.start))
+                    || !labelsA.get(blockA.end).equals(labelsB.get(blockB.end))
+                    || !labelsA.get(blockA.handler).equals(labelsB.get(blockB.handler))
+                    || !Objects.equals(blockA.type,blockB.type))
+                return false;
+        }
+        return true;
+    }
+
+    private static List<AbstractInsnNode> getRealInstructions(InsnList instructions) {
+        List<AbstractInsnNode> result=new ArrayList<>();
+        for (AbstractInsnNode insn:instructions) {
+            if (insn.getOpcode()>=0)
+                result.add(insn);
+        }
+        return result;
+    }
+
+    // Position of a label is the number of real instructions before it.
+    private static Map<LabelNode,Integer> getLabelPositions(InsnList instructions) {
+        Map<LabelNode,Integer> positions=new HashMap<>();
+        int position=0;
+        for (AbstractInsnNode insn:instructions) {
+            if (insn.getType()==AbstractInsnNode.LABEL)
+                positions.put((LabelNode)insn,position);
+            else if (insn.getOpcode()>=0)
+                position++;
+        }
+        return positions;
+    }
+
+    private static boolean isSameLabels(List<LabelNode> a,Map<LabelNode,Integer> labelsA,List<LabelNode> b,Map<LabelNode,Integer> labelsB) {
+        if (a.size()!=b.size())
+            return false;
+        for (int i=0;i<a.size();i++) {
+            if (!labelsA.get(a.get(i)).equals(labelsB.get(b.get(i))))
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean isSameInstruction(AbstractInsnNode a,Map<LabelNode,Integer> labelsA,AbstractInsnNode b,Map<LabelNode,Integer> labelsB) {
+        if (a.getOpcode()!=b.getOpcode() || a.getType()!=b.getType())
+            return false;
+        switch (a.getType()) {
+            case AbstractInsnNode.INSN:
+                return true;
+            case AbstractInsnNode.INT_INSN:
+                return ((IntInsnNode)a).operand==((IntInsnNode)b).operand;
             case AbstractInsnNode.VAR_INSN:
-                return "VarInsn:"+node.getOpcode();
+                return ((VarInsnNode)a).var==((VarInsnNode)b).var;
+            case AbstractInsnNode.TYPE_INSN:
+                return ((TypeInsnNode)a).desc.equals(((TypeInsnNode)b).desc);
+            case AbstractInsnNode.FIELD_INSN:
+                FieldInsnNode fieldA=(FieldInsnNode)a,fieldB=(FieldInsnNode)b;
+                return fieldA.owner.equals(fieldB.owner) && fieldA.name.equals(fieldB.name) && fieldA.desc.equals(fieldB.desc);
+            case AbstractInsnNode.METHOD_INSN:
+                MethodInsnNode methodA=(MethodInsnNode)a,methodB=(MethodInsnNode)b;
+                return methodA.owner.equals(methodB.owner) && methodA.name.equals(methodB.name)
+                        && methodA.desc.equals(methodB.desc) && methodA.itf==methodB.itf;
+            case AbstractInsnNode.INVOKE_DYNAMIC_INSN:
+                InvokeDynamicInsnNode indyA=(InvokeDynamicInsnNode)a,indyB=(InvokeDynamicInsnNode)b;
+                return indyA.name.equals(indyB.name) && indyA.desc.equals(indyB.desc) && indyA.bsm.equals(indyB.bsm)
+                        && Arrays.equals(indyA.bsmArgs,indyB.bsmArgs);
+            case AbstractInsnNode.JUMP_INSN:
+                return labelsA.get(((JumpInsnNode)a).label).equals(labelsB.get(((JumpInsnNode)b).label));
+            case AbstractInsnNode.LDC_INSN:
+                return ((LdcInsnNode)a).cst.equals(((LdcInsnNode)b).cst);
+            case AbstractInsnNode.IINC_INSN:
+                return ((IincInsnNode)a).var==((IincInsnNode)b).var && ((IincInsnNode)a).incr==((IincInsnNode)b).incr;
+            case AbstractInsnNode.TABLESWITCH_INSN:
+                TableSwitchInsnNode tableA=(TableSwitchInsnNode)a,tableB=(TableSwitchInsnNode)b;
+                return tableA.min==tableB.min && tableA.max==tableB.max
+                        && labelsA.get(tableA.dflt).equals(labelsB.get(tableB.dflt))
+                        && isSameLabels(tableA.labels,labelsA,tableB.labels,labelsB);
+            case AbstractInsnNode.LOOKUPSWITCH_INSN:
+                LookupSwitchInsnNode lookupA=(LookupSwitchInsnNode)a,lookupB=(LookupSwitchInsnNode)b;
+                return lookupA.keys.equals(lookupB.keys)
+                        && labelsA.get(lookupA.dflt).equals(labelsB.get(lookupB.dflt))
+                        && isSameLabels(lookupA.labels,labelsA,lookupB.labels,labelsB);
+            case AbstractInsnNode.MULTIANEWARRAY_INSN:
+                return ((MultiANewArrayInsnNode)a).desc.equals(((MultiANewArrayInsnNode)b).desc)
+                        && ((MultiANewArrayInsnNode)a).dims==((MultiANewArrayInsnNode)b).dims;
             default:
-                throw new RuntimeException("Node type not found: "+node.getType());
+                throw new RuntimeException("Node type not found: "+a.getType());
         }
     }
 
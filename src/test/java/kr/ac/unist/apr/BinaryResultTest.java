@@ -0,0 +1,131 @@
+package kr.ac.unist.apr;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import kr.ac.unist.apr.result.CoverageResult;
+
+/**
+ * Round trip of the binary result format, from {@link GlobalStates#writeBinaryResult(String, int, int[])} to
+ * {@link CoverageResult}.
+ */
+class BinaryResultTest {
+    @TempDir
+    Path tempDir;
+
+    private CoverageResult writeAndRead(String name, int magic, int[] counts) throws IOException {
+        Path path = tempDir.resolve(name);
+        GlobalStates.writeBinaryResult(path.toString(), magic, counts);
+        return CoverageResult.read(path);
+    }
+
+    @Test
+    void branchCounts() throws IOException {
+        int[] counts = new int[100];
+        counts[0] = 1;
+        counts[1] = 127; // Largest 1-byte varint
+        counts[2] = 128; // Smallest 2-byte varint
+        counts[50] = 300;
+        counts[99] = 7;
+        CoverageResult result = writeAndRead("branch.bin", GlobalStates.RESULT_MAGIC, counts);
+
+        assertFalse(result.isEdgeCoverage());
+        assertEquals(100, result.getBranchCount());
+        assertEquals(5, result.size());
+        for (int id = 0; id < counts.length; id++)
+            assertEquals(counts[id], result.getCount(id), "count of branch " + id);
+        assertEquals(50, result.getId(3));
+        assertEquals(300, result.getCountAt(3));
+    }
+
+    @Test
+    void largeIdsAndCounts() throws IOException {
+        int[] counts = new int[1 << 22];
+        counts[3] = Integer.MAX_VALUE; // 5-byte varint
+        counts[1 << 14] = 1 << 21;
+        counts[(1 << 21) + 5] = 1 << 28;
+        counts[counts.length - 1] = 42; // Gap of a 4-byte varint
+        CoverageResult result = writeAndRead("large.bin", GlobalStates.RESULT_MAGIC, counts);
+
+        assertEquals(counts.length, result.getBranchCount());
+        assertEquals(4, result.size());
+        assertEquals(Integer.MAX_VALUE, result.getCount(3));
+        assertEquals(1 << 21, result.getCount(1 << 14));
+        assertEquals(1 << 28, result.getCount((1 << 21) + 5));
+        assertEquals(42, result.getCount(counts.length - 1));
+        assertEquals(0, result.getCount(counts.length - 2));
+    }
+
+    @Test
+    void noExecutedBranch() throws IOException {
+        CoverageResult result = writeAndRead("empty.bin", GlobalStates.RESULT_MAGIC, new int[10]);
+        assertFalse(result.isEdgeCoverage());
+        assertEquals(10, result.getBranchCount());
+        assertEquals(0, result.size());
+    }
+
+    @Test
+    void edgeHeader() throws IOException {
+        int[] hits = new int[GlobalStates.EDGE_MAP_SIZE];
+        int index = CoverageResult.getEdgeIndex(3, 4);
+        hits[index] = 255;
+        hits[GlobalStates.EDGE_MAP_SIZE - 1] = 1;
+        CoverageResult result = writeAndRead("edge.bin", GlobalStates.EDGE_RESULT_MAGIC, hits);
+
+        assertTrue(result.isEdgeCoverage());
+        assertEquals(GlobalStates.EDGE_MAP_SIZE, result.getBranchCount());
+        assertEquals(2, result.size());
+        assertEquals(255, result.getCount(index));
+        assertEquals(1, result.getCount(GlobalStates.EDGE_MAP_SIZE - 1));
+    }
+
+    @Test
+    void textEdgeHeader() throws IOException {
+        Path path = tempDir.resolve("edge.txt");
+        Files.write(path, Arrays.asList("# edges " + GlobalStates.EDGE_MAP_SIZE, "9:2", "4:1"),
+                StandardCharsets.UTF_8);
+        CoverageResult result = CoverageResult.read(path);
+        assertTrue(result.isEdgeCoverage());
+        assertEquals(GlobalStates.EDGE_MAP_SIZE, result.getBranchCount());
+        assertEquals(4, result.getId(0));
+        assertEquals(2, result.getCount(9));
+    }
+
+    @Test
+    void truncatedFileIsRejected() throws IOException {
+        int[] counts = new int[1000];
+        counts[10] = 1;
+        counts[500] = 1 << 20;
+        counts[999] = 3;
+        Path path = tempDir.resolve("truncated.bin");
+        GlobalStates.writeBinaryResult(path.toString(), GlobalStates.RESULT_MAGIC, counts);
+        byte[] bytes = Files.readAllBytes(path);
+
+        // Inside a varint, at the end of an entry, and inside the header
+        for (int length : new int[] { bytes.length - 1, bytes.length - 2, 12 }) {
+            Files.write(path, Arrays.copyOf(bytes, length));
+            assertThrows(IOException.class, () -> CoverageResult.read(path), "truncated to " + length + " bytes");
+        }
+    }
+
+    @Test
+    void unsupportedVersionIsRejected() throws IOException {
+        Path path = tempDir.resolve("version.bin");
+        GlobalStates.writeBinaryResult(path.toString(), GlobalStates.RESULT_MAGIC, new int[] { 1 });
+        byte[] bytes = Files.readAllBytes(path);
+        bytes[7] = (byte) (GlobalStates.RESULT_VERSION + 1);
+        Files.write(path, bytes);
+        assertThrows(IOException.class, () -> CoverageResult.read(path));
+    }
+}
@@ -0,0 +1,175 @@
+package kr.ac.unist.apr;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class BranchSelectionTest {
+    @TempDir
+    Path tempDir;
+
+    // Relative path of the class file, as given by the instrumenter
+    private static String classFile(String className) {
+        return className.replace('.', File.separatorChar) + ".class";
+    }
+
+    @Test
+    void everyBranchIsSelectedByDefault() {
+        BranchSelection selection = new BranchSelection();
+        assertTrue(selection.isAll());
+        assertFalse(selection.hasIds());
+        assertTrue(selection.isIdSelected(123456));
+        assertTrue(selection.hasSelectedId(0, 1));
+        assertTrue(selection.isClassSelected(classFile("com.example.Foo")));
+        assertTrue(selection.isMethodSelected("foo(I)V"));
+        assertEquals("all", selection.getIdString());
+    }
+
+    @Test
+    void idsAndRanges() throws IOException {
+        BranchSelection selection = new BranchSelection().addIds(" 3, 10-20 ,,25 - 26");
+        assertTrue(selection.hasIds());
+        assertFalse(selection.isAll());
+        assertFalse(selection.isIdSelected(2));
+        assertTrue(selection.isIdSelected(3));
+        assertFalse(selection.isIdSelected(9));
+        assertTrue(selection.isIdSelected(10));
+        assertTrue(selection.isIdSelected(20));
+        assertFalse(selection.isIdSelected(21));
+        assertTrue(selection.isIdSelected(26));
+        assertEquals("3,10-20,25-26", selection.getIdString());
+    }
+
+    @Test
+    void idFileWithComments() throws IOException {
+        Path file = tempDir.resolve("ids.txt");
+        Files.write(file, Arrays.asList("# selected branches", "1 2,3", "", "  # 100", "7-9\t40"),
+                StandardCharsets.UTF_8);
+        BranchSelection selection = new BranchSelection().addIds("50,@" + file);
+        assertEquals("1-3,7-9,40,50", selection.getIdString());
+        assertFalse(selection.isIdSelected(100));
+    }
+
+    @Test
+    void emptyIdFileSelectsNoBranch() throws IOException {
+        Path file = tempDir.resolve("empty.txt");
+        Files.write(file, Arrays.asList("# nothing"), StandardCharsets.UTF_8);
+        BranchSelection selection = new BranchSelection().addIds("@" + file);
+        assertTrue(selection.hasIds());
+        assertFalse(selection.isIdSelected(0));
+        assertFalse(selection.hasSelectedId(0, Integer.MAX_VALUE));
+        assertEquals("", selection.getIdString());
+    }
+
+    @Test
+    void invalidIds() {
+        assertThrows(IllegalArgumentException.class, () -> new BranchSelection().addIds("-5"));
+        assertThrows(IllegalArgumentException.class, () -> new BranchSelection().addIds("3-1"));
+        assertThrows(IllegalArgumentException.class, () -> new BranchSelection().addIds("1,x"));
+        assertThrows(IllegalArgumentException.class, () -> new BranchSelection().addIds("4-"));
+        assertThrows(IllegalArgumentException.class, () -> new BranchSelection().addRange(-1, 3));
+        assertThrows(IllegalArgumentException.class,
+                () -> new BranchSelection().addRange(0, Integer.MAX_VALUE));
+    }
+
+    @Test
+    void hasSelectedIdAtRangeBoundaries() throws IOException {
+        BranchSelection selection = new BranchSelection().addIds("10-20");
+        // End is exclusive
+        assertFalse(selection.hasSelectedId(0, 10));
+        assertTrue(selection.hasSelectedId(0, 11));
+        assertTrue(selection.hasSelectedId(20, 21));
+        assertFalse(selection.hasSelectedId(21, 100));
+        assertTrue(selection.hasSelectedId(15, 16));
+        assertTrue(selection.hasSelectedId(5, 30));
+        assertFalse(selection.hasSelectedId(15, 15));
+        assertFalse(selection.hasSelectedId(16, 15));
+    }
+
+    @Test
+    void singleStarDoesNotMatchPackages() {
+        BranchSelection selection = new BranchSelection().includeClass("com.example.*");
+        assertFalse(selection.isAll());
+        assertTrue(selection.isClassSelected(classFile("com.example.Foo")));
+        assertFalse(selection.isClassSelected(classFile("com.example.sub.Bar")));
+        assertFalse(selection.isClassSelected(classFile("com.other.Foo")));
+    }
+
+    @Test
+    void doubleStarMatchesPackages() {
+        BranchSelection selection = new BranchSelection().includeClass("com.example.**");
+        assertTrue(selection.isClassSelected(classFile("com.example.Foo")));
+        assertTrue(selection.isClassSelected(classFile("com.example.sub.Bar")));
+        assertFalse(selection.isClassSelected(classFile("com.other.Foo")));
+    }
+
+    @Test
+    void classPatternWithSlashes() {
+        BranchSelection selection = new BranchSelection().includeClass("com/example/Foo");
+        assertTrue(selection.isClassSelected(classFile("com.example.Foo")));
+        assertFalse(selection.isClassSelected(classFile("com.example.Foo2")));
+    }
+
+    @Test
+    void innerClassesMatchTheirOuterClass() {
+        BranchSelection selection = new BranchSelection().includeClass("com.example.Foo");
+        assertTrue(selection.isClassSelected(classFile("com.example.Foo")));
+        assertTrue(selection.isClassSelected(classFile("com.example.Foo$Inner")));
+        assertTrue(selection.isClassSelected(classFile("com.example.Foo$1")));
+        assertFalse(selection.isClassSelected(classFile("com.example.FooBar")));
+
+        BranchSelection excluded = new BranchSelection().excludeClass("com.example.Foo");
+        assertFalse(excluded.isClassSelected(classFile("com.example.Foo$Inner")));
+        assertTrue(excluded.isClassSelected(classFile("com.example.Bar$Inner")));
+    }
+
+    @Test
+    void excludeClassOverridesInclude() {
+        BranchSelection selection = new BranchSelection().includeClass("com.example.**")
+                .excludeClass("com.example.*Test");
+        assertTrue(selection.isClassSelected(classFile("com.example.Foo")));
+        assertFalse(selection.isClassSelected(classFile("com.example.FooTest")));
+        assertTrue(selection.isClassSelected(classFile("com.example.sub.FooTest")));
+    }
+
+    @Test
+    void methodPatternWithoutDescriptorMatchesEveryOverload() {
+        BranchSelection selection = new BranchSelection().includeMethod("get*");
+        assertTrue(selection.isMethodSelected("get()I"));
+        assertTrue(selection.isMethodSelected("getName(Ljava/lang/String;)Ljava/lang/String;"));
+        assertFalse(selection.isMethodSelected("set(I)V"));
+    }
+
+    @Test
+    void methodPatternWithDescriptor() {
+        BranchSelection selection = new BranchSelection().includeMethod("foo(I)V");
+        assertTrue(selection.isMethodSelected("foo(I)V"));
+        assertFalse(selection.isMethodSelected("foo(J)V"));
+        assertFalse(selection.isMethodSelected("foo()V"));
+
+        BranchSelection wildcard = new BranchSelection().includeMethod("foo(*)V");
+        assertTrue(wildcard.isMethodSelected("foo(IJ)V"));
+        assertFalse(wildcard.isMethodSelected("foo(I)I"));
+    }
+
+    @Test
+    void excludeMethod() {
+        BranchSelection selection = new BranchSelection().excludeMethod("toString()Ljava/lang/String;")
+                .excludeMethod("<clinit>");
+        assertFalse(selection.isMethodSelected("toString()Ljava/lang/String;"));
+        assertFalse(selection.isMethodSelected("<clinit>()V"));
+        assertTrue(selection.isMethodSelected("toString(I)Ljava/lang/String;"));
+        assertTrue(selection.isMethodSelected("<init>()V"));
+    }
+}
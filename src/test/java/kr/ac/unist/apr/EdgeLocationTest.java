@@ -0,0 +1,73 @@
+package kr.ac.unist.apr;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import kr.ac.unist.apr.asm.Instruction;
+
+/**
+ * The edge locations of the instrumenter in {@link Instruction} and of the runtime in {@link GlobalStates}
+ * and its source copy in the resources must agree.
+ */
+class EdgeLocationTest {
+    private static final int[] BRANCH_IDS = { 0, 1, 2, 3, 100, 4095, 65535, 65536, 199999, 1 << 24,
+            Integer.MAX_VALUE, -1, Integer.MIN_VALUE };
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void globalStates() {
+        assertEquals(GlobalStates.EDGE_MAP_BITS, Instruction.EDGE_MAP_BITS);
+        assertEquals(GlobalStates.EDGE_MAP_SIZE, Instruction.EDGE_MAP_SIZE);
+        for (int branchId : BRANCH_IDS)
+            assertEquals(GlobalStates.getEdgeLocation(branchId), Instruction.getEdgeLocation(branchId),
+                    "location of branch " + branchId);
+        for (int branchId = 0; branchId < Instruction.EDGE_MAP_SIZE; branchId++) {
+            int location = Instruction.getEdgeLocation(branchId);
+            assertEquals(GlobalStates.getEdgeLocation(branchId), location);
+            assertTrue(location >= 0 && location < Instruction.EDGE_MAP_SIZE, "location of branch " + branchId);
+        }
+    }
+
+    @Test
+    void resourceCopy() throws Exception {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        assumeTrue(compiler != null, "No Java compiler");
+        Path source = tempDir.resolve("src/kr/ac/unist/apr/GlobalStates.java");
+        Files.createDirectories(source.getParent());
+        try (InputStream stream = GlobalStates.class.getResourceAsStream("GlobalStates.java")) {
+            Files.copy(stream, source);
+        }
+        Path output = Files.createDirectories(tempDir.resolve("classes"));
+        ByteArrayOutputStream messages = new ByteArrayOutputStream();
+        assertEquals(0, compiler.run(null, messages, messages, "-d", output.toString(), source.toString()),
+                messages::toString);
+
+        // No parent, so the compiled copy is loaded instead of GlobalStates of the tool
+        try (URLClassLoader loader = new URLClassLoader(new URL[] { output.toUri().toURL() }, null)) {
+            Class<?> copy = loader.loadClass(GlobalStates.STATE_CLASS_NAME);
+            assertEquals(Instruction.EDGE_MAP_BITS, copy.getField("EDGE_MAP_BITS").getInt(null));
+            assertEquals(Instruction.EDGE_MAP_SIZE, copy.getField("EDGE_MAP_SIZE").getInt(null));
+            Method getEdgeLocation = copy.getMethod("getEdgeLocation", int.class);
+            for (int branchId : BRANCH_IDS)
+                assertEquals(Instruction.getEdgeLocation(branchId), getEdgeLocation.invoke(null, branchId),
+                        "location of branch " + branchId);
+        }
+    }
+}
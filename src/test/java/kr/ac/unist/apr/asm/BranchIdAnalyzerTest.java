@@ -0,0 +1,321 @@
+package kr.ac.unist.apr.asm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import org.junit.jupiter.api.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.FrameNode;
+import org.objectweb.asm.tree.IincInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.IntInsnNode;
+import org.objectweb.asm.tree.InvokeDynamicInsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.MultiANewArrayInsnNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+import org.objectweb.asm.tree.TypeInsnNode;
+
+import kr.ac.unist.apr.BranchSelection;
+import kr.ac.unist.apr.Instrumenter;
+import kr.ac.unist.apr.Main;
+
+/**
+ * Branch IDs computed by {@link BranchIdAnalyzer} with {@link BranchFingerprint} and with the legacy fingerprint.
+ */
+class BranchIdAnalyzerTest {
+    private static final String CLASS_NAME = "test/Branches";
+    private static final String METHOD_NAME = "run";
+    private static final String METHOD_DESC = "(II)V";
+
+    private static BranchIdAnalyzer analyze(BranchIdAnalyzer analyzer, Consumer<MethodVisitor> code) {
+        analyzer.visitCode();
+        code.accept(analyzer);
+        analyzer.visitMaxs(4, 2);
+        analyzer.visitEnd();
+        return analyzer;
+    }
+
+    private static BranchIdAnalyzer analyze(boolean legacyFingerprint, SourceRecorder recorder,
+            Consumer<MethodVisitor> code) {
+        return analyze(new BranchIdAnalyzer(Opcodes.ASM9, CLASS_NAME, METHOD_NAME, METHOD_DESC, 0,
+                new BranchSelection(), legacyFingerprint, recorder), code);
+    }
+
+    // Hash source strings of each branch, in the order of jumps
+    private static class SourceRecorder implements BiConsumer<Long, String> {
+        final List<String> sources = new ArrayList<>();
+
+        @Override
+        public void accept(Long hashed, String source) {
+            sources.add(source);
+        }
+    }
+
+    // if (a == 0) { b += 1 x 12 }; return, after some instructions
+    private static void generateBranch(MethodVisitor method, int inserted) {
+        for (int i = 0; i < inserted; i++) {
+            method.visitInsn(Opcodes.ICONST_0);
+            method.visitInsn(Opcodes.POP);
+        }
+        Label exit = new Label();
+        method.visitVarInsn(Opcodes.ILOAD, 0);
+        method.visitJumpInsn(Opcodes.IFEQ, exit);
+        for (int i = 0; i < 12; i++)
+            method.visitIincInsn(1, 1);
+        method.visitLabel(exit);
+        method.visitInsn(Opcodes.RETURN);
+    }
+
+    @Test
+    void insertionBeforeWindowKeepsIds() {
+        Map<Long, Integer> ids = analyze(false, null, m -> generateBranch(m, 0)).getIds();
+        // 16 instructions inserted, far from the 10 instructions before the target of the branch
+        Map<Long, Integer> patchedIds = analyze(false, null, m -> generateBranch(m, 8)).getIds();
+        assertEquals(1, ids.size());
+        assertEquals(ids, patchedIds);
+
+        // The legacy fingerprint hashes every instruction before the target, except the first 10 of the method
+        Map<Long, Integer> legacyIds = analyze(true, null, m -> generateBranch(m, 0)).getIds();
+        Map<Long, Integer> patchedLegacyIds = analyze(true, null, m -> generateBranch(m, 8)).getIds();
+        assertNotEquals(legacyIds.keySet(), patchedLegacyIds.keySet());
+    }
+
+    @Test
+    void insertionInWindowChangesIds() {
+        Map<Long, Integer> ids = analyze(false, null, m -> generateBranch(m, 0)).getIds();
+        Map<Long, Integer> patchedIds = analyze(false, null, m -> {
+            Label exit = new Label();
+            m.visitVarInsn(Opcodes.ILOAD, 0);
+            m.visitJumpInsn(Opcodes.IFEQ, exit);
+            for (int i = 0; i < 12; i++)
+                m.visitIincInsn(1, i == 8 ? 2 : 1);
+            m.visitLabel(exit);
+            m.visitInsn(Opcodes.RETURN);
+        }).getIds();
+        assertNotEquals(ids.keySet(), patchedIds.keySet());
+    }
+
+    @Test
+    void sameWindowsHaveDifferentIds() {
+        // Same 12 instructions before both targets, so their windows are same
+        SourceRecorder recorder = new SourceRecorder();
+        Map<Long, Integer> ids = analyze(false, recorder, m -> {
+            for (int block = 0; block < 2; block++) {
+                Label next = new Label();
+                m.visitVarInsn(Opcodes.ILOAD, 0);
+                m.visitJumpInsn(Opcodes.IFNE, next);
+                for (int i = 0; i < 12; i++)
+                    m.visitIincInsn(1, 1);
+                m.visitLabel(next);
+            }
+            m.visitInsn(Opcodes.RETURN);
+        }).getIds();
+
+        assertEquals(2, ids.size());
+        assertEquals(new HashSet<>(Arrays.asList(0, 1)), new HashSet<>(ids.values()));
+        assertEquals(2, recorder.sources.size());
+        String first = recorder.sources.get(0);
+        String second = recorder.sources.get(1);
+        assertTrue(first.endsWith("#0"), first);
+        assertTrue(second.endsWith("#1"), second);
+        assertEquals(first.substring(0, first.length() - 2), second.substring(0, second.length() - 2));
+    }
+
+    @Test
+    void collisionIsSkipped() {
+        // The first two labels collide
+        BranchFingerprint fingerprint = new BranchFingerprint(CLASS_NAME, METHOD_NAME, METHOD_DESC) {
+            private int labels = 0;
+
+            @Override
+            public long visitLabel() {
+                long hashed = super.visitLabel();
+                return labels++ < 2 ? 42 : hashed;
+            }
+        };
+        List<LogRecord> records = new ArrayList<>();
+        Handler handler = new Handler() {
+            @Override
+            public void publish(LogRecord record) {
+                records.add(record);
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        Main.LOGGER.addHandler(handler);
+        Map<Long, Integer> ids;
+        try {
+            ids = analyze(new BranchIdAnalyzer(Opcodes.ASM9, CLASS_NAME, METHOD_NAME, METHOD_DESC, 0,
+                    new BranchSelection(), fingerprint, null), m -> {
+                        for (int i = 0; i < 3; i++) {
+                            Label next = new Label();
+                            m.visitVarInsn(Opcodes.ILOAD, 0);
+                            m.visitJumpInsn(Opcodes.IFNE, next);
+                            m.visitIincInsn(1, i);
+                            m.visitLabel(next);
+                        }
+                        m.visitInsn(Opcodes.RETURN);
+                    }).getIds();
+        } finally {
+            Main.LOGGER.removeHandler(handler);
+        }
+
+        assertEquals(1, ids.size());
+        assertFalse(ids.containsKey(42L));
+        assertEquals(2, (int) ids.values().iterator().next());
+        assertTrue(records.stream().anyMatch(r -> r.getLevel() == Level.WARNING
+                && r.getMessage().contains("Fingerprint collision in " + CLASS_NAME + "::" + METHOD_NAME)));
+    }
+
+    @Test
+    void legacyFingerprintReproducesBaseline() throws IOException {
+        for (Class<?> type : new Class<?>[] { Instrumenter.class, BranchIdAnalyzer.class, BranchFingerprint.class,
+                ProbePlanner.class, Main.class }) {
+            String className = type.getName().replace('.', '/');
+            byte[] bytes;
+            try (InputStream stream = type.getResourceAsStream(type.getSimpleName() + ".class")) {
+                bytes = readAll(stream);
+            }
+            assertEquals(computeBaselineIds(className, bytes), computeLegacyIds(className, bytes), className);
+        }
+    }
+
+    private static byte[] readAll(InputStream stream) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = stream.read(buffer)) != -1)
+            bytes.write(buffer, 0, read);
+        return bytes.toByteArray();
+    }
+
+    // Branch IDs of each method with BranchIdAnalyzer and the legacy fingerprint
+    private static Map<String, Map<Long, Integer>> computeLegacyIds(String className, byte[] bytes) {
+        Map<String, BranchIdAnalyzer> analyzers = new LinkedHashMap<>();
+        new ClassReader(bytes).accept(new ClassVisitor(Opcodes.ASM9) {
+            private int nextId = 0;
+            private BranchIdAnalyzer last = null;
+
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String descriptor, String signature,
+                    String[] exceptions) {
+                if (last != null)
+                    nextId += last.getJumpCount();
+                last = new BranchIdAnalyzer(Opcodes.ASM9, className, name, descriptor, nextId,
+                        new BranchSelection(), true, null);
+                analyzers.put(name + descriptor, last);
+                return last;
+            }
+        }, 0);
+        Map<String, Map<Long, Integer>> ids = new LinkedHashMap<>();
+        for (Map.Entry<String, BranchIdAnalyzer> entry : analyzers.entrySet())
+            ids.put(entry.getKey(), entry.getValue().getIds());
+        return ids;
+    }
+
+    /**
+     * Branch IDs of each method computed as the first version of JPatchInst, from the tree of the class.
+     */
+    private static Map<String, Map<Long, Integer>> computeBaselineIds(String className, byte[] bytes) {
+        ClassNode classNode = new ClassNode();
+        new ClassReader(bytes).accept(classNode, 0);
+        Map<String, Map<Long, Integer>> result = new LinkedHashMap<>();
+        int prevId = 0;
+        for (MethodNode method : classNode.methods) {
+            InsnList instructions = method.instructions;
+            Map<Long, Integer> ids = new HashMap<>();
+            for (int i = 0; i < instructions.size(); i++) {
+                AbstractInsnNode insn = instructions.get(i);
+                if (insn.getType() != AbstractInsnNode.JUMP_INSN)
+                    continue;
+                int labelIndex = instructions.indexOf(((JumpInsnNode) insn).label);
+                String hashSource = className + "::" + method.name + "::" + method.desc + "::";
+                for (int j = labelIndex - 1; j >= 0 && j >= Instrumenter.MAX_PREV_INSNS; j--) {
+                    String nodeString = toBaselineString(instructions.get(j));
+                    if (nodeString.length() > 0)
+                        hashSource += nodeString + ";";
+                }
+                ids.put((long) hashSource.hashCode(), prevId++);
+            }
+            result.put(method.name + method.desc, ids);
+        }
+        return result;
+    }
+
+    // Same with InsnNodeUtils.convertNodeToString of the first version
+    private static String toBaselineString(AbstractInsnNode node) {
+        switch (node.getType()) {
+            case AbstractInsnNode.FIELD_INSN:
+                FieldInsnNode field = (FieldInsnNode) node;
+                return "FieldInsn:" + node.getOpcode() + "," + field.owner + "." + field.name + ":" + field.desc;
+            case AbstractInsnNode.FRAME:
+                return "Frame:" + node.getOpcode() + "," + ((FrameNode) node).type;
+            case AbstractInsnNode.IINC_INSN:
+                return "IincInsn:" + node.getOpcode() + "," + ((IincInsnNode) node).incr;
+            case AbstractInsnNode.INSN:
+                return "Insn:" + node.getOpcode();
+            case AbstractInsnNode.INT_INSN:
+                return "IntInsn:" + node.getOpcode() + "," + ((IntInsnNode) node).operand;
+            case AbstractInsnNode.INVOKE_DYNAMIC_INSN:
+                InvokeDynamicInsnNode invokeDynamic = (InvokeDynamicInsnNode) node;
+                return "InvokeDynamicInsn:" + node.getOpcode() + "," + invokeDynamic.name + ":" + invokeDynamic.desc;
+            case AbstractInsnNode.JUMP_INSN:
+                return "JumpInsn:" + node.getOpcode();
+            case AbstractInsnNode.LABEL:
+            case AbstractInsnNode.LINE:
+                return "";
+            case AbstractInsnNode.LDC_INSN:
+                return "LdcInsn:" + node.getOpcode();
+            case AbstractInsnNode.LOOKUPSWITCH_INSN:
+                return "LookupSwitchInsn:" + node.getOpcode();
+            case AbstractInsnNode.METHOD_INSN:
+                MethodInsnNode method = (MethodInsnNode) node;
+                return "MethodInsn:" + node.getOpcode() + "," + method.owner + "." + method.name + ":" + method.desc;
+            case AbstractInsnNode.MULTIANEWARRAY_INSN:
+                MultiANewArrayInsnNode array = (MultiANewArrayInsnNode) node;
+                return "MultiANewArrayInsn:" + node.getOpcode() + "," + array.desc + "," + array.dims;
+            case AbstractInsnNode.TABLESWITCH_INSN:
+                TableSwitchInsnNode tableSwitch = (TableSwitchInsnNode) node;
+                return "TableSwitchInsn:" + node.getOpcode() + "," + tableSwitch.min + "," + tableSwitch.max;
+            case AbstractInsnNode.TYPE_INSN:
+                return "TypeInsn:" + node.getOpcode() + "," + ((TypeInsnNode) node).desc;
+            case AbstractInsnNode.VAR_INSN:
+                return "VarInsn:" + node.getOpcode();
+            default:
+                throw new IllegalArgumentException("Node type not found: " + node.getType());
+        }
+    }
+}
@@ -0,0 +1,463 @@
+package kr.ac.unist.apr.asm;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.IincInsnNode;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+import kr.ac.unist.apr.GlobalStates;
+import kr.ac.unist.apr.Instrumenter;
+import kr.ac.unist.apr.result.CoverageResult;
+import kr.ac.unist.apr.result.ProbeEquations;
+
+/**
+ * Branch counts derived from optimized probe placement (-O) are same with probes at every branch.
+ * <p>
+ * Classes are generated with ASM, instrumented in bootstrap mode, which counts in GlobalStates.branchCount
+ * without GREYBOX_BRANCH, and run in this JVM.
+ * </p>
+ */
+class ProbePlannerTest {
+    private static final int[] INPUTS = { 0, 1, 2, 7, 30 };
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void nestedLoops() throws Exception {
+        long[] probes = assertDerivedCountsMatch("test/Loops",
+                generateClass("test/Loops", ProbePlannerTest::generateLoops));
+        assertTrue(probes[1] < probes[0], "Optimized probes run " + probes[1] + " times, full " + probes[0]);
+    }
+
+    @Test
+    void switchesWithSharedTargets() throws Exception {
+        long[] probes = assertDerivedCountsMatch("test/Switches",
+                generateClass("test/Switches", ProbePlannerTest::generateSwitches));
+        assertTrue(probes[1] <= probes[0], "Optimized probes run " + probes[1] + " times, full " + probes[0]);
+    }
+
+    @Test
+    void selfLoop() throws Exception {
+        assertDerivedCountsMatch("test/SelfLoop", generateClass("test/SelfLoop", ProbePlannerTest::generateSelfLoop));
+    }
+
+    @Test
+    void ternaryWithValueOnStack() throws Exception {
+        assertDerivedCountsMatch("test/Ternary", generateClass("test/Ternary", ProbePlannerTest::generateTernary));
+    }
+
+    @Test
+    void tryCatchFallsBackToEveryBranch() throws Exception {
+        byte[] original = generateClass("test/Guarded", ProbePlannerTest::generateTryCatch);
+        Path full = instrument("full", "test/Guarded", original, null);
+        Path equationFile = tempDir.resolve("guarded.eq");
+        Path optimized = instrument("optimized", "test/Guarded", original, equationFile);
+
+        assertEquals(0, ProbeEquations.read(equationFile).size());
+        assertArrayEquals(Files.readAllBytes(full.resolve("test/Guarded.class")),
+                Files.readAllBytes(optimized.resolve("test/Guarded.class")));
+        for (int input : new int[] { -3, 0, 5 })
+            assertEquals(run(full, "test/Guarded", input), run(optimized, "test/Guarded", input));
+    }
+
+    @Test
+    void jsrIsNotPlanned() {
+        // if (x != 0) jsr sub; return; sub: astore 1; ret 1
+        MethodNode method = new MethodNode(Opcodes.ASM9, Opcodes.ACC_STATIC, "jsr", "(I)V", null, null);
+        LabelNode skip = new LabelNode();
+        LabelNode sub = new LabelNode();
+        method.instructions.add(new VarInsnNode(Opcodes.ILOAD, 0));
+        method.instructions.add(new JumpInsnNode(Opcodes.IFEQ, skip));
+        method.instructions.add(new JumpInsnNode(Opcodes.JSR, sub));
+        method.instructions.add(skip);
+        method.instructions.add(new InsnNode(Opcodes.RETURN));
+        method.instructions.add(sub);
+        method.instructions.add(new VarInsnNode(Opcodes.ASTORE, 1));
+        method.instructions.add(new VarInsnNode(Opcodes.RET, 1));
+
+        ProbePlanner planner = new ProbePlanner(method, points(skip, 0, sub, 1), ProbeMode.BOOTSTRAP);
+        assertFalse(planner.plan(new int[] { 0, 1 }));
+    }
+
+    @Test
+    void tryCatchIsNotPlanned() {
+        // try { if (x != 0) return; } catch (Throwable t) {} return;
+        MethodNode method = new MethodNode(Opcodes.ASM9, Opcodes.ACC_STATIC, "guarded", "(I)V", null, null);
+        LabelNode start = new LabelNode();
+        LabelNode end = new LabelNode();
+        LabelNode handler = new LabelNode();
+        method.instructions.add(start);
+        method.instructions.add(new VarInsnNode(Opcodes.ILOAD, 0));
+        method.instructions.add(new JumpInsnNode(Opcodes.IFEQ, end));
+        method.instructions.add(new InsnNode(Opcodes.RETURN));
+        method.instructions.add(end);
+        method.instructions.add(new InsnNode(Opcodes.RETURN));
+        method.instructions.add(handler);
+        method.instructions.add(new InsnNode(Opcodes.POP));
+        method.instructions.add(new InsnNode(Opcodes.RETURN));
+        method.tryCatchBlocks.add(new TryCatchBlockNode(start, end, handler, "java/lang/Throwable"));
+
+        ProbePlanner planner = new ProbePlanner(method, points(end, 0), ProbeMode.BOOTSTRAP);
+        assertFalse(planner.plan(new int[] { 0 }));
+    }
+
+    @Test
+    void loopIsPlanned() {
+        // while (x > 0) { if ((x & 1) != 0) y++; x--; } return;
+        MethodNode method = new MethodNode(Opcodes.ASM9, Opcodes.ACC_STATIC, "loop", "(I)V", null, null);
+        LabelNode condition = new LabelNode();
+        LabelNode even = new LabelNode();
+        LabelNode exit = new LabelNode();
+        method.instructions.add(condition);
+        method.instructions.add(new VarInsnNode(Opcodes.ILOAD, 0));
+        method.instructions.add(new JumpInsnNode(Opcodes.IFLE, exit));
+        method.instructions.add(new VarInsnNode(Opcodes.ILOAD, 0));
+        method.instructions.add(new InsnNode(Opcodes.ICONST_1));
+        method.instructions.add(new InsnNode(Opcodes.IAND));
+        method.instructions.add(new JumpInsnNode(Opcodes.IFEQ, even));
+        method.instructions.add(new IincInsnNode(1, 1));
+        method.instructions.add(even);
+        method.instructions.add(new IincInsnNode(0, -1));
+        method.instructions.add(new JumpInsnNode(Opcodes.GOTO, condition));
+        method.instructions.add(exit);
+        method.instructions.add(new InsnNode(Opcodes.RETURN));
+
+        ProbePlanner planner = new ProbePlanner(method, points(condition, 0, even, 1, exit, 2), ProbeMode.BOOTSTRAP);
+        assertTrue(planner.plan(new int[] { 0, 1, 2 }));
+        assertTrue(planner.apply() <= 3);
+        assertEquals(3, planner.getEquations().size());
+    }
+
+    // Branch IDs of the labels, in the order of the method
+    private static Map<LabelNode, Integer> points(Object... labelsAndIds) {
+        Map<LabelNode, Integer> points = new LinkedHashMap<>();
+        for (int i = 0; i < labelsAndIds.length; i += 2)
+            points.put((LabelNode) labelsAndIds[i], (Integer) labelsAndIds[i + 1]);
+        return points;
+    }
+
+    /**
+     * Run the class instrumented with probes at every branch and with optimized probes, and compare the counts.
+     *
+     * @return number of probes executed with probes at every branch and with optimized probes, for every input
+     */
+    private long[] assertDerivedCountsMatch(String className, byte[] original) throws Exception {
+        Path full = instrument("full", className, original, null);
+        Path equationFile = tempDir.resolve("equations.txt");
+        Path optimized = instrument("optimized", className, original, equationFile);
+        ProbeEquations equations = ProbeEquations.read(equationFile);
+        assertTrue(equations.size() > 0, "Method is not planned");
+
+        long[] probes = new long[2];
+        for (int input : INPUTS) {
+            Map<Integer, Long> expected = run(full, className, input);
+            Map<Integer, Long> raw = run(optimized, className, input);
+            assertEquals(expected, derive(equations, raw), "Counts with input " + input);
+            // Each probe increases one counter
+            probes[0] += expected.values().stream().mapToLong(Long::longValue).sum();
+            probes[1] += raw.values().stream().mapToLong(Long::longValue).sum();
+        }
+        return probes;
+    }
+
+    private Map<Integer, Long> derive(ProbeEquations equations, Map<Integer, Long> raw) throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<Integer, Long> count : raw.entrySet())
+            lines.add(count.getKey() + ":" + count.getValue());
+        Path result = Files.write(tempDir.resolve("raw.txt"), lines, StandardCharsets.UTF_8);
+        return equations.apply(CoverageResult.read(result));
+    }
+
+    private Path instrument(String name, String className, byte[] classBytes, Path equationFile) throws IOException {
+        Path original = tempDir.resolve(name + "-original");
+        Path target = tempDir.resolve(name);
+        for (Path directory : new Path[] { original, target }) {
+            Path file = directory.resolve(className + ".class");
+            Files.createDirectories(file.getParent());
+            Files.write(file, classBytes);
+        }
+        Instrumenter instrumenter = new Instrumenter(target.toString(), original.toString());
+        instrumenter.setProbeMode(ProbeMode.BOOTSTRAP);
+        instrumenter.setProbeEquationFile(equationFile == null ? null : equationFile.toString());
+        instrumenter.instrument("");
+        return target;
+    }
+
+    // Nonzero counters after calling run(input)
+    private static Map<Integer, Long> run(Path classPath, String className, int input) throws Exception {
+        try (URLClassLoader loader = new URLClassLoader(new URL[] { classPath.toUri().toURL() },
+                ProbePlannerTest.class.getClassLoader())) {
+            Method method = loader.loadClass(className.replace('/', '.')).getMethod("run", int.class);
+            synchronized (GlobalStates.class) {
+                Arrays.fill(GlobalStates.branchCount, 0);
+                method.invoke(null, input);
+                Map<Integer, Long> counts = new TreeMap<>();
+                for (int i = 0; i < GlobalStates.branchCount.length; i++) {
+                    if (GlobalStates.branchCount[i] != 0)
+                        counts.put(i, (long) GlobalStates.branchCount[i]);
+                }
+                return counts;
+            }
+        }
+    }
+
+    private interface MethodGenerator {
+        void generate(MethodVisitor mv);
+    }
+
+    // Class with public static int run(int)
+    private static byte[] generateClass(String className, MethodGenerator generator) {
+        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS);
+        writer.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, className, null, "java/lang/Object", null);
+        MethodVisitor mv = writer.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "run", "(I)I", null, null);
+        mv.visitCode();
+        // Branches are instrumented after a line number
+        Label start = new Label();
+        mv.visitLabel(start);
+        mv.visitLineNumber(1, start);
+        generator.generate(mv);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+
+    /*
+     * int a = 0, b = 0;
+     * for (int i = 0; i < n; i++) {
+     *   if (i % 3 == 0) a++; else b += 2;
+     *   for (int j = 0; j < i; j++)
+     *     if (((i ^ j) & 1) != 0) a++;
+     * }
+     * return a * 31 + b;
+     */
+    private static void generateLoops(MethodVisitor mv) {
+        Label condition = new Label();
+        Label otherwise = new Label();
+        Label inner = new Label();
+        Label innerCondition = new Label();
+        Label skip = new Label();
+        Label next = new Label();
+        Label end = new Label();
+        mv.visitInsn(Opcodes.ICONST_0);
+        mv.visitVarInsn(Opcodes.ISTORE, 1);
+        mv.visitInsn(Opcodes.ICONST_0);
+        mv.visitVarInsn(Opcodes.ISTORE, 2);
+        mv.visitInsn(Opcodes.ICONST_0);
+        mv.visitVarInsn(Opcodes.ISTORE, 3);
+        mv.visitLabel(condition);
+        mv.visitVarInsn(Opcodes.ILOAD, 3);
+        mv.visitVarInsn(Opcodes.ILOAD, 0);
+        mv.visitJumpInsn(Opcodes.IF_ICMPGE, end);
+        mv.visitVarInsn(Opcodes.ILOAD, 3);
+        mv.visitInsn(Opcodes.ICONST_3);
+        mv.visitInsn(Opcodes.IREM);
+        mv.visitJumpInsn(Opcodes.IFNE, otherwise);
+        mv.visitIincInsn(1, 1);
+        mv.visitJumpInsn(Opcodes.GOTO, inner);
+        mv.visitLabel(otherwise);
+        mv.visitIincInsn(2, 2);
+        mv.visitLabel(inner);
+        mv.visitInsn(Opcodes.ICONST_0);
+        mv.visitVarInsn(Opcodes.ISTORE, 4);
+        mv.visitLabel(innerCondition);
+        mv.visitVarInsn(Opcodes.ILOAD, 4);
+        mv.visitVarInsn(Opcodes.ILOAD, 3);
+        mv.visitJumpInsn(Opcodes.IF_ICMPGE, next);
+        mv.visitVarInsn(Opcodes.ILOAD, 3);
+        mv.visitVarInsn(Opcodes.ILOAD, 4);
+        mv.visitInsn(Opcodes.IXOR);
+        mv.visitInsn(Opcodes.ICONST_1);
+        mv.visitInsn(Opcodes.IAND);
+        mv.visitJumpInsn(Opcodes.IFEQ, skip);
+        mv.visitIincInsn(1, 1);
+        mv.visitLabel(skip);
+        mv.visitIincInsn(4, 1);
+        mv.visitJumpInsn(Opcodes.GOTO, innerCondition);
+        mv.visitLabel(next);
+        mv.visitIincInsn(3, 1);
+        mv.visitJumpInsn(Opcodes.GOTO, condition);
+        mv.visitLabel(end);
+        mv.visitVarInsn(Opcodes.ILOAD, 1);
+        mv.visitIntInsn(Opcodes.BIPUSH, 31);
+        mv.visitInsn(Opcodes.IMUL);
+        mv.visitVarInsn(Opcodes.ILOAD, 2);
+        mv.visitInsn(Opcodes.IADD);
+        mv.visitInsn(Opcodes.IRETURN);
+    }
+
+    /*
+     * int r = 0;
+     * for (int i = 0; i < n; i++) {
+     *   switch (i % 5) {
+     *   case 0: case 1: case 4: r += 1; break;
+     *   case 2: r += 10; // fall through
+     *   case 3: r += 100; break;
+     *   default: r += 1000;
+     *   }
+     *   switch (i) {
+     *   case 1: case 7: r += 3; break;
+     *   case 20: r += 5; break;
+     *   case 25: default: r -= 1;
+     *   }
+     * }
+     * return r;
+     */
+    private static void generateSwitches(MethodVisitor mv) {
+        Label condition = new Label();
+        Label one = new Label();
+        Label ten = new Label();
+        Label hundred = new Label();
+        Label thousand = new Label();
+        Label second = new Label();
+        Label three = new Label();
+        Label five = new Label();
+        Label other = new Label();
+        Label next = new Label();
+        Label end = new Label();
+        mv.visitInsn(Opcodes.ICONST_0);
+        mv.visitVarInsn(Opcodes.ISTORE, 1);
+        mv.visitInsn(Opcodes.ICONST_0);
+        mv.visitVarInsn(Opcodes.ISTORE, 2);
+        mv.visitLabel(condition);
+        mv.visitVarInsn(Opcodes.ILOAD, 2);
+        mv.visitVarInsn(Opcodes.ILOAD, 0);
+        mv.visitJumpInsn(Opcodes.IF_ICMPGE, end);
+        mv.visitVarInsn(Opcodes.ILOAD, 2);
+        mv.visitInsn(Opcodes.ICONST_5);
+        mv.visitInsn(Opcodes.IREM);
+        mv.visitTableSwitchInsn(0, 4, thousand, one, one, ten, hundred, one);
+        mv.visitLabel(one);
+        mv.visitIincInsn(1, 1);
+        mv.visitJumpInsn(Opcodes.GOTO, second);
+        mv.visitLabel(ten);
+        mv.visitIincInsn(1, 10);
+        mv.visitLabel(hundred);
+        mv.visitIincInsn(1, 100);
+        mv.visitJumpInsn(Opcodes.GOTO, second);
+        mv.visitLabel(thousand);
+        mv.visitIincInsn(1, 1000);
+        mv.visitLabel(second);
+        mv.visitVarInsn(Opcodes.ILOAD, 2);
+        mv.visitLookupSwitchInsn(other, new int[] { 1, 7, 20, 25 }, new Label[] { three, three, five, other });
+        mv.visitLabel(three);
+        mv.visitIincInsn(1, 3);
+        mv.visitJumpInsn(Opcodes.GOTO, next);
+        mv.visitLabel(five);
+        mv.visitIincInsn(1, 5);
+        mv.visitJumpInsn(Opcodes.GOTO, next);
+        mv.visitLabel(other);
+        mv.visitIincInsn(1, -1);
+        mv.visitLabel(next);
+        mv.visitIincInsn(2, 1);
+        mv.visitJumpInsn(Opcodes.GOTO, condition);
+        mv.visitLabel(end);
+        mv.visitVarInsn(Opcodes.ILOAD, 1);
+        mv.visitInsn(Opcodes.IRETURN);
+    }
+
+    /*
+     * if (n > 0) {
+     *   loop: n--; if (n > 0) goto loop;
+     * }
+     * return n;
+     */
+    private static void generateSelfLoop(MethodVisitor mv) {
+        Label loop = new Label();
+        Label done = new Label();
+        mv.visitVarInsn(Opcodes.ILOAD, 0);
+        mv.visitJumpInsn(Opcodes.IFLE, done);
+        mv.visitLabel(loop);
+        mv.visitIincInsn(0, -1);
+        mv.visitVarInsn(Opcodes.ILOAD, 0);
+        mv.visitJumpInsn(Opcodes.IFGT, loop);
+        mv.visitLabel(done);
+        mv.visitVarInsn(Opcodes.ILOAD, 0);
+        mv.visitInsn(Opcodes.IRETURN);
+    }
+
+    // return ((n & 1) != 0 ? 1 : 2) + n;
+    private static void generateTernary(MethodVisitor mv) {
+        Label even = new Label();
+        Label join = new Label();
+        mv.visitVarInsn(Opcodes.ILOAD, 0);
+        mv.visitInsn(Opcodes.ICONST_1);
+        mv.visitInsn(Opcodes.IAND);
+        mv.visitJumpInsn(Opcodes.IFEQ, even);
+        mv.visitInsn(Opcodes.ICONST_1);
+        mv.visitJumpInsn(Opcodes.GOTO, join);
+        mv.visitLabel(even);
+        mv.visitInsn(Opcodes.ICONST_2);
+        mv.visitLabel(join);
+        mv.visitVarInsn(Opcodes.ILOAD, 0);
+        mv.visitInsn(Opcodes.IADD);
+        mv.visitInsn(Opcodes.IRETURN);
+    }
+
+    /*
+     * try {
+     *   if (n < 0) throw new IllegalStateException();
+     *   return n > 3 ? 1 : 0;
+     * } catch (IllegalStateException e) {
+     *   return -1;
+     * }
+     */
+    private static void generateTryCatch(MethodVisitor mv) {
+        Label start = new Label();
+        Label positive = new Label();
+        Label small = new Label();
+        Label end = new Label();
+        Label handler = new Label();
+        mv.visitTryCatchBlock(start, end, handler, "java/lang/IllegalStateException");
+        mv.visitLabel(start);
+        mv.visitVarInsn(Opcodes.ILOAD, 0);
+        mv.visitJumpInsn(Opcodes.IFGE, positive);
+        mv.visitTypeInsn(Opcodes.NEW, "java/lang/IllegalStateException");
+        mv.visitInsn(Opcodes.DUP);
+        mv.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/IllegalStateException", "<init>", "()V", false);
+        mv.visitInsn(Opcodes.ATHROW);
+        mv.visitLabel(positive);
+        mv.visitVarInsn(Opcodes.ILOAD, 0);
+        mv.visitInsn(Opcodes.ICONST_3);
+        mv.visitJumpInsn(Opcodes.IF_ICMPLE, small);
+        mv.visitInsn(Opcodes.ICONST_1);
+        mv.visitInsn(Opcodes.IRETURN);
+        mv.visitLabel(small);
+        mv.visitInsn(Opcodes.ICONST_0);
+        mv.visitLabel(end);
+        mv.visitInsn(Opcodes.IRETURN);
+        mv.visitLabel(handler);
+        mv.visitInsn(Opcodes.POP);
+        mv.visitInsn(Opcodes.ICONST_M1);
+        mv.visitInsn(Opcodes.IRETURN);
+    }
+}
@@ -0,0 +1,105 @@
+package kr.ac.unist.apr.result;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Saving, reading and applying {@link ProbeEquations}.
+ */
+class ProbeEquationsTest {
+    @TempDir
+    Path tempDir;
+
+    private static Map<Integer, int[]> sampleEquations() {
+        Map<Integer, int[]> equations = new HashMap<>();
+        equations.put(12, new int[] { 12, 1, 15, -1, 13, 2 });
+        equations.put(13, new int[] { 14, -3 });
+        equations.put(14, new int[0]);
+        equations.put(100000, new int[] { 99999, 1 });
+        return equations;
+    }
+
+    private CoverageResult rawResult(String... lines) throws IOException {
+        return CoverageResult.read(Files.write(tempDir.resolve("raw.txt"), Arrays.asList(lines),
+                StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void roundTrip() throws IOException {
+        ProbeEquations equations = new ProbeEquations();
+        equations.putAll(sampleEquations());
+        Path path = tempDir.resolve("equations.txt");
+        equations.write(path);
+
+        List<String> lines = Files.readAllLines(path, StandardCharsets.UTF_8);
+        assertEquals(Arrays.asList("12=+12-15+2*13", "13=-3*14", "14=", "100000=+99999"),
+                lines.subList(1, lines.size()));
+
+        ProbeEquations read = ProbeEquations.read(path);
+        assertEquals(4, read.size());
+        CoverageResult raw = rawResult("12:5", "13:4", "14:-1", "15:2", "99999:9");
+        assertEquals(equations.apply(raw), read.apply(raw));
+
+        // Writing the read equations gives the same file
+        Path copy = tempDir.resolve("copy.txt");
+        read.write(copy);
+        assertArrayEquals(Files.readAllBytes(path), Files.readAllBytes(copy));
+    }
+
+    @Test
+    void commentsAndBlankLines() throws IOException {
+        Path path = Files.write(tempDir.resolve("equations.txt"),
+                Arrays.asList("# comment", "", "  3=+1+2  ", "#4=+1"), StandardCharsets.UTF_8);
+        ProbeEquations equations = ProbeEquations.read(path);
+        assertEquals(1, equations.size());
+        Map<Integer, Long> expected = new TreeMap<>();
+        expected.put(1, 3L);
+        expected.put(2, 4L);
+        expected.put(3, 7L);
+        assertEquals(expected, equations.apply(rawResult("1:3", "2:4")));
+    }
+
+    @Test
+    void apply() throws IOException {
+        ProbeEquations equations = new ProbeEquations();
+        equations.putAll(sampleEquations());
+        // Branch IDs 15 and 20 do not have an equation, so their raw counts are kept
+        // 14 is a counter of 13, but the branch of ID 14 is never executed
+        Map<Integer, Long> counts = equations.apply(rawResult("12:5", "13:4", "14:2", "15:2", "20:6"));
+
+        Map<Integer, Long> expected = new TreeMap<>();
+        expected.put(12, 5L - 2L + 2 * 4L);
+        expected.put(13, -6L);
+        expected.put(15, 2L);
+        expected.put(20, 6L);
+        assertEquals(expected, counts);
+    }
+
+    @Test
+    void applyToEdgeCoverage() throws IOException {
+        CoverageResult edges = rawResult("# edges 65536", "1234:3");
+        assertThrows(IllegalArgumentException.class, () -> new ProbeEquations().apply(edges));
+    }
+
+    @Test
+    void malformedLines() throws IOException {
+        for (String line : new String[] { "12", "12=+", "12=13", "12=+1*", "x=+1", "12=+1 junk" }) {
+            Path path = Files.write(tempDir.resolve("malformed.txt"), Arrays.asList(line), StandardCharsets.UTF_8);
+            assertThrows(IOException.class, () -> ProbeEquations.read(path), line);
+        }
+    }
+}
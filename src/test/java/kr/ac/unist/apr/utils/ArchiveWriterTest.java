@@ -0,0 +1,270 @@
+package kr.ac.unist.apr.utils;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.jar.JarFile;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Round trip of {@link ArchiveWriter}, read back with {@link JarFile} and {@link ZipInputStream}.
+ */
+class ArchiveWriterTest {
+    private static final String MANIFEST = "META-INF/MANIFEST.MF";
+    private static final String GREYBOX_MANIFEST = "kr/ac/unist/apr/GreyboxManifest.class";
+    private static final String COMMENT = "archive comment";
+    private static final byte[] PREFIX = "#!/bin/sh\nexec java -jar \"$0\" \"$@\"\n".getBytes(StandardCharsets.UTF_8);
+    private static final long DOS_EPOCH = new GregorianCalendar(1980, Calendar.JANUARY, 1).getTimeInMillis();
+
+    @TempDir
+    Path tempDir;
+
+    private static byte[] content(String name, int size) {
+        byte[] content = new byte[size];
+        for (int i = 0; i < size; i++)
+            content[i] = (byte) (name.charAt(i % name.length()) + i / 7);
+        return content;
+    }
+
+    // Entries of the source archive
+    private static Map<String, byte[]> sourceEntries() {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        entries.put(MANIFEST, "Manifest-Version: 1.0\r\n\r\n".getBytes(StandardCharsets.UTF_8));
+        entries.put("META-INF/TEST.SF", content("signature", 100));
+        entries.put("META-INF/TEST.RSA", content("rsa", 200));
+        entries.put("META-INF/sub/KEEP.SF", content("not a signature", 50));
+        entries.put("pkg/Stored.class", content("stored", 300));
+        entries.put("pkg/Deflated.class", content("deflated", 5000));
+        entries.put("pkg/Kept.class", content("kept", 4000));
+        return entries;
+    }
+
+    // Replaced and added entries
+    private static Map<String, byte[]> newEntries() {
+        Map<String, byte[]> entries = new HashMap<>();
+        entries.put("pkg/Stored.class", content("replaced stored", 400));
+        entries.put("pkg/Deflated.class", content("replaced deflated", 6000));
+        entries.put(GREYBOX_MANIFEST, content("manifest", 250));
+        return entries;
+    }
+
+    private static Map<String, byte[]> expectedEntries() {
+        Map<String, byte[]> entries = new TreeMap<>(sourceEntries());
+        entries.remove("META-INF/TEST.SF");
+        entries.remove("META-INF/TEST.RSA");
+        entries.putAll(newEntries());
+        return entries;
+    }
+
+    /**
+     * Write the source archive with {@link ZipOutputStream}, which writes deflated entries with data descriptors.
+     */
+    private static byte[] createArchive() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream out = new ZipOutputStream(bytes)) {
+            out.setComment(COMMENT);
+            for (Map.Entry<String, byte[]> entry : sourceEntries().entrySet()) {
+                ZipEntry zipEntry = new ZipEntry(entry.getKey());
+                zipEntry.setTime(new GregorianCalendar(2020, Calendar.MARCH, 4, 5, 6, 8).getTimeInMillis());
+                if (entry.getKey().equals("pkg/Stored.class")) {
+                    CRC32 crc = new CRC32();
+                    crc.update(entry.getValue());
+                    zipEntry.setMethod(ZipEntry.STORED);
+                    zipEntry.setSize(entry.getValue().length);
+                    zipEntry.setCompressedSize(entry.getValue().length);
+                    zipEntry.setCrc(crc.getValue());
+                }
+                out.putNextEntry(zipEntry);
+                out.write(entry.getValue());
+                out.closeEntry();
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Add data before the first entry, and move the offsets of the archive after it as zip -A does.
+     */
+    private static byte[] prepend(byte[] archive, boolean adjustOffsets) {
+        ByteBuffer buffer = ByteBuffer.allocate(PREFIX.length + archive.length).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(PREFIX).put(archive);
+        if (!adjustOffsets)
+            return buffer.array();
+
+        int end = buffer.capacity() - 22 - COMMENT.length();
+        assertEquals(0x06054b50, buffer.getInt(end));
+        int count = buffer.getShort(end + 10);
+        int directory = buffer.getInt(end + 16) + PREFIX.length;
+        buffer.putInt(end + 16, directory);
+        for (int i = 0; i < count; i++) {
+            assertEquals(0x02014b50, buffer.getInt(directory));
+            buffer.putInt(directory + 42, buffer.getInt(directory + 42) + PREFIX.length);
+            directory += 46 + buffer.getShort(directory + 28) + buffer.getShort(directory + 30)
+                    + buffer.getShort(directory + 32);
+        }
+        return buffer.array();
+    }
+
+    private Path rewrite(byte[] source, String name) throws IOException {
+        Path sourceFile = Files.write(tempDir.resolve(name + "-source.jar"), source);
+        Map<String, ArchiveWriter.CompressedEntry> entries = new HashMap<>();
+        for (Map.Entry<String, byte[]> entry : newEntries().entrySet())
+            entries.put(entry.getKey(), ArchiveWriter.compress(entry.getValue()));
+        Path destination = tempDir.resolve(name + ".jar");
+        ArchiveWriter.rewrite(sourceFile.toFile(), entries, destination.toFile());
+        return destination;
+    }
+
+    /**
+     * Check the entries with the central directory and with the local headers.
+     */
+    private static void assertEntries(Path archive, int prefixSize) throws IOException {
+        Map<String, byte[]> expected = expectedEntries();
+        try (JarFile jar = new JarFile(archive.toFile())) {
+            assertNotNull(jar.getManifest());
+            assertEquals(COMMENT, jar.getComment());
+            Map<String, byte[]> central = new TreeMap<>();
+            for (ZipEntry entry : Collections.list(jar.entries())) {
+                try (InputStream stream = jar.getInputStream(entry)) {
+                    central.put(entry.getName(), readAll(stream));
+                }
+            }
+            assertContents(expected, central);
+            assertEquals(DOS_EPOCH, jar.getEntry(GREYBOX_MANIFEST).getTime());
+        }
+
+        byte[] bytes = Files.readAllBytes(archive);
+        Map<String, byte[]> local = new TreeMap<>();
+        try (ZipInputStream stream = new ZipInputStream(
+                new ByteArrayInputStream(bytes, prefixSize, bytes.length - prefixSize))) {
+            ZipEntry entry;
+            while ((entry = stream.getNextEntry()) != null)
+                local.put(entry.getName(), readAll(stream));
+        }
+        assertContents(expected, local);
+    }
+
+    private static void assertContents(Map<String, byte[]> expected, Map<String, byte[]> actual) {
+        assertEquals(expected.keySet(), actual.keySet());
+        for (Map.Entry<String, byte[]> entry : expected.entrySet())
+            assertArrayEquals(entry.getValue(), actual.get(entry.getKey()));
+    }
+
+    private static byte[] readAll(InputStream stream) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = stream.read(buffer)) != -1)
+            bytes.write(buffer, 0, read);
+        return bytes.toByteArray();
+    }
+
+    // General purpose flags in the local header of an entry
+    private static int getLocalFlags(Path archive, String name) throws IOException {
+        try (ZipFile zip = new ZipFile(archive.toFile())) {
+            assertNotNull(zip.getEntry(name));
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(archive)).order(ByteOrder.LITTLE_ENDIAN);
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i + 30 + nameBytes.length <= buffer.capacity(); i++) {
+            if (buffer.getInt(i) != 0x04034b50 || buffer.getShort(i + 26) != nameBytes.length)
+                continue;
+            byte[] localName = new byte[nameBytes.length];
+            ((ByteBuffer) buffer.duplicate().position(i + 30)).get(localName);
+            if (Arrays.equals(nameBytes, localName))
+                return buffer.getShort(i + 6) & 0xFFFF;
+        }
+        throw new AssertionError("Local header not found: " + name);
+    }
+
+    @Test
+    void copiedEntries() throws IOException {
+        Path source = Files.write(tempDir.resolve("source.jar"), createArchive());
+        Path archive = rewrite(createArchive(), "copied");
+        assertEntries(archive, 0);
+
+        try (ZipFile sourceZip = new ZipFile(source.toFile()); ZipFile zip = new ZipFile(archive.toFile())) {
+            // Entries not replaced are copied without compressing again
+            for (String name : new String[] { MANIFEST, "pkg/Kept.class", "META-INF/sub/KEEP.SF" }) {
+                assertEquals(sourceZip.getEntry(name).getCompressedSize(), zip.getEntry(name).getCompressedSize());
+                assertEquals(sourceZip.getEntry(name).getCrc(), zip.getEntry(name).getCrc());
+            }
+            // Replaced entries are deflated and keep their time
+            for (String name : new String[] { "pkg/Stored.class", "pkg/Deflated.class" }) {
+                assertEquals(ZipEntry.DEFLATED, zip.getEntry(name).getMethod());
+                assertEquals(sourceZip.getEntry(name).getTime(), zip.getEntry(name).getTime());
+            }
+            assertNull(zip.getEntry("META-INF/TEST.SF"));
+            assertNull(zip.getEntry("META-INF/TEST.RSA"));
+        }
+
+        // The source entry has a data descriptor, but the replaced one has its sizes in the local header
+        assertTrue((getLocalFlags(source, "pkg/Deflated.class") & 1 << 3) != 0);
+        assertEquals(0, getLocalFlags(archive, "pkg/Deflated.class") & 1 << 3);
+        assertTrue((getLocalFlags(archive, "pkg/Kept.class") & 1 << 3) != 0);
+    }
+
+    @Test
+    void reproducible() throws IOException {
+        Path first = rewrite(createArchive(), "first");
+        Path second = rewrite(createArchive(), "second");
+        assertArrayEquals(Files.readAllBytes(first), Files.readAllBytes(second));
+    }
+
+    @Test
+    void rewriteOfRewrittenArchive() throws IOException {
+        // Replaced and added entries are deflated without data descriptors this time
+        Path archive = rewrite(createArchive(), "first");
+        Path again = rewrite(Files.readAllBytes(archive), "again");
+        assertEntries(again, 0);
+        assertArrayEquals(Files.readAllBytes(archive), Files.readAllBytes(again));
+    }
+
+    @Test
+    void prefixData() throws IOException {
+        Path archive = rewrite(prepend(createArchive(), true), "prefix");
+        assertEntries(archive, PREFIX.length);
+        byte[] bytes = Files.readAllBytes(archive);
+        assertArrayEquals(PREFIX, Arrays.copyOf(bytes, PREFIX.length));
+    }
+
+    @Test
+    void unexpectedOffsetsFallBack() throws IOException {
+        // Offsets of the archive are relative to its first entry, so it is written with ZipOutputStream
+        Path archive = rewrite(prepend(createArchive(), false), "fallback");
+        assertEntries(archive, 0);
+        ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(archive)).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(0x04034b50, bytes.getInt(0));
+        try (ZipFile source = new ZipFile(tempDir.resolve("fallback-source.jar").toFile());
+                ZipFile zip = new ZipFile(archive.toFile())) {
+            assertEquals(source.getEntry("pkg/Kept.class").getTime(), zip.getEntry("pkg/Kept.class").getTime());
+        }
+    }
+}